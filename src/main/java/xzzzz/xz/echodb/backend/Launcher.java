@@ -2,6 +2,8 @@ package xzzzz.xz.echodb.backend;
 
 import org.apache.commons.cli.*;
 import xzzzz.xz.echodb.backend.dm.DataManager;
+import xzzzz.xz.echodb.backend.dm.DataManagerOptions;
+import xzzzz.xz.echodb.backend.im.BPlusTree;
 import xzzzz.xz.echodb.backend.server.Server;
 import xzzzz.xz.echodb.backend.tbm.TableManager;
 import xzzzz.xz.echodb.backend.tm.TransactionManager;
@@ -33,15 +35,38 @@ public class Launcher {
         options.addOption("create", true, "-create DBPath");
         options.addOption("open", true, "-open DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("flushInterval", true, "-flushInterval 200 (ms)");
+        options.addOption("flushBatch", true, "-flushBatch 256 (pages)");
+        options.addOption("mmap", false, "-mmap (read pages through a memory-mapped file)");
+        options.addOption("compactRate", true, "-compactRate 64 (pages per second, 0 disables compaction)");
+        options.addOption("checkpointInterval", true, "-checkpointInterval 30000 (ms, 0 disables timed checkpoints)");
+        options.addOption("redoThreads", true, "-redoThreads 1 (threads replaying redo records during crash recovery)");
+        options.addOption("fillFactor", true, "-fillFactor 0.9 (B+ tree node fill factor for bulk loads)");
+        options.addOption("waitWarmup", false, "-waitWarmup (preload cached pages before accepting connections)");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options, args);  // 解析命令行输入（args）
 
+        DataManagerOptions dmOptions = new DataManagerOptions();
+        if (cmd.hasOption("flushInterval"))
+            dmOptions.flushInterval(Long.parseLong(cmd.getOptionValue("flushInterval")));
+        if (cmd.hasOption("flushBatch"))
+            dmOptions.flushBatchSize(Integer.parseInt(cmd.getOptionValue("flushBatch")));
+        if (cmd.hasOption("compactRate"))
+            dmOptions.compactRate(Integer.parseInt(cmd.getOptionValue("compactRate")));
+        if (cmd.hasOption("checkpointInterval"))
+            dmOptions.checkpointInterval(Long.parseLong(cmd.getOptionValue("checkpointInterval")));
+        if (cmd.hasOption("redoThreads"))
+            dmOptions.redoThreads(Integer.parseInt(cmd.getOptionValue("redoThreads")));
+        double fillFactor = cmd.hasOption("fillFactor") ? Double.parseDouble(cmd.getOptionValue("fillFactor"))
+                : BPlusTree.DEFAULT_FILL_FACTOR;
+
         if (cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), dmOptions);
             return;
         }
         if (cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), cmd.hasOption("mmap"),
+                    cmd.hasOption("waitWarmup"), dmOptions, fillFactor);
             return;
         }
         System.out.println("Usage: Launcher (open|create) DBPath");
@@ -75,23 +100,33 @@ public class Launcher {
     /**
      * 创建新的数据库
      */
-    private static void createDB(String path) {
+    private static void createDB(String path, DataManagerOptions dmOptions) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm);
+        DataManager dm = DataManager.create(path, DEFAULT_MEM, tm, dmOptions);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
+        vm.close();
         tm.close();
         dm.close();
     }
 
     /**
      * 启动已有的数据库
+     *
+     * @param waitWarmup 是否等缓冲池预热完成后再开始监听
+     * @param fillFactor 批量装载空索引时 B+ 树节点的填充率
      */
-    private static void openDB(String path, long mem) {
+    private static void openDB(String path, long mem, boolean mmap, boolean waitWarmup, DataManagerOptions dmOptions,
+                               double fillFactor) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, mmap, dmOptions);
+        if (waitWarmup) {
+            long start = System.currentTimeMillis();
+            int pages = dm.awaitWarmUp();
+            System.out.println("Warm-up loaded " + pages + " pages in " + (System.currentTimeMillis() - start) + " ms");
+        }
         VersionManager vm = new VersionManagerImpl(tm, dm);
-        TableManager tbm = TableManager.open(path, vm, dm);
+        TableManager tbm = TableManager.open(path, vm, dm, fillFactor);
         new Server(port, tbm).start();
     }
 }
@@ -2,10 +2,17 @@ package xzzzz.xz.echodb.backend.common;
 
 import xzzzz.xz.echodb.commen.Error;
 
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Set;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongPredicate;
+import java.util.function.Supplier;
 
 /*
   比较点	                抽象方法	                    接口方法
@@ -26,46 +33,182 @@ import java.util.concurrent.locks.ReentrantLock;
  * 在引用计数缓存框架中，缓存的释放是由上层模块主动调用释放方法来触发的，而不是被动地由缓存管理器自动驱逐。
  * 当某个资源不再被上层模块引用时，通过调用释放方法来释放对该资源的引用。只有当资源的引用计数归零时，缓存才会驱逐该资源。
  * 这种方式可以确保缓存中的资源只有在确实不再被使用时才会被释放，避免了不必要的资源驱逐和回源操作。
+ * <p>
+ * 如果构造时传入了置换策略（ReplacePolicy），缓存就变成一个真正的缓冲池：
+ * 引用归零的资源不会立即驱逐，而是继续留在缓存中等待下一次命中；只有当缓存已满、又有新的资源需要装入时，
+ * 才由置换策略从引用计数为 0 的资源中挑选一个驱逐。只有所有资源都正被引用时才会抛出 CacheFullException。
+ * <p>
+ * 并发：缓存按 key 的哈希分成 SEGMENT_COUNT 个分段，每个分段有自己的锁、映射表和置换策略，
+ * 不同分段上的命中互不竞争；缓存容量 maxResource 由所有分段共享，缓存满时先在本分段驱逐，再依次尝试其它分段。
+ * 多个线程同时未命中同一个 key 时，只有第一个线程回源，其余线程等待它的 CompletableFuture 完成后重新查找。
+ * <p>
+ * 驱逐时只在分段锁内把资源移出缓存，并像装载一样在 getting 中登记一个 future；写回（releaseForCache）在释放分段锁之后进行，
+ * 落在同一分段的命中不必等待磁盘 I/O。写回期间对这个 key 的 get 等待 future，写回完成后再从数据源读到最新的内容。
+ * <p>
+ * 也可以不按资源个数、而按共享的内存预算（MemoryBudget）限制缓存：资源装入后按 weigh 估算的字节数记账，
+ * 超出预算时驱逐预算内各个缓存中未被引用的资源。这种模式下缓存不会因为满了而拒绝装入。
  */
 public abstract class AbstractCache<T> {
 
     /**
-     * 用于存储实际缓存的数据
-     * 键是资源的唯一标识符（通常是资源的ID或哈希值），值是缓存的资源对象（类型为 T）。在这个缓存框架中，cache 承担了普通缓存功能，即存储实际的资源数据
+     * 分段数，必须是 2 的幂
      */
-    private HashMap<Long, T> cache;
+    private static final int SEGMENT_COUNT = 16;
 
     /**
-     * 用于记录每个资源的引用个数
-     * 键是资源的唯一标识符，值是一个整数，表示该资源当前的引用计数。引用计数表示有多少个模块或线程正在使用特定的资源。通过跟踪引用计数，可以确定何时可以安全地释放资源
+     * 缓存的一个分段，分段内的所有字段都由分段锁保护
      */
-    private HashMap<Long, Integer> references;
+    private static class Segment<T> {
+
+        /**
+         * 用于存储实际缓存的数据
+         * 键是资源的唯一标识符（通常是资源的ID或哈希值），值是缓存的资源对象（类型为 T）。在这个缓存框架中，cache 承担了普通缓存功能，即存储实际的资源数据
+         */
+        final HashMap<Long, T> cache = new HashMap<>();
+
+        /**
+         * 用于记录每个资源的引用个数
+         * 键是资源的唯一标识符，值是一个整数，表示该资源当前的引用计数。引用计数表示有多少个模块或线程正在使用特定的资源。通过跟踪引用计数，可以确定何时可以安全地释放资源
+         */
+        final HashMap<Long, Integer> references = new HashMap<>();
+
+        /**
+         * 用于记录哪些资源当前正在从数据源获取中（或者被驱逐、正在写回）
+         * 键是资源的唯一标识符，值是装载（写回）完成时被完成的 future。
+         * 其它线程未命中同一个资源时，不再自己回源，而是等待这个 future，避免重复获取相同的资源、或者读到写回之前的旧内容
+         */
+        final HashMap<Long, CompletableFuture<T>> getting = new HashMap<>();
+
+        /**
+         * 置换策略，为 null 时引用归零即驱逐
+         */
+        final ReplacePolicy policy;
+
+        final Lock lock = new ReentrantLock();
+
+        /**
+         * 命中次数
+         */
+        long hits;
+
+        /**
+         * 未命中次数
+         */
+        long misses;
+
+        /**
+         * 分段下标
+         */
+        final int index;
+
+        Segment(int index, ReplacePolicy policy) {
+            this.index = index;
+            this.policy = policy;
+        }
+    }
 
     /**
-     * 用于记录哪些资源当前正在从数据源获取中
-     * 键是资源的唯一标识符，值是一个布尔值，表示该资源是否正在被获取中
-     * 在多线程环境下，当某个线程尝试从数据源获取资源时，需要标记该资源正在被获取，以避免其他线程重复获取相同的资源。getting 映射用于处理多线程场景下的并发访问问题
+     * 已经移出缓存、等待写回的资源
      */
-    private HashMap<Long, Boolean> getting;
+    private static class Evicted<T> {
+        final Segment<T> seg;
+        final long key;
+        final T obj;
+        final CompletableFuture<T> done = new CompletableFuture<>();
+
+        Evicted(Segment<T> seg, long key, T obj) {
+            this.seg = seg;
+            this.key = key;
+            this.obj = obj;
+        }
+    }
+
+    private final Segment<T>[] segments;
 
     /**
      * 最大缓存资源数
      */
-    private int maxResource;
+    private final int maxResource;
+
+    /**
+     * 缓存中元素个数（包括正在装载中的资源）
+     */
+    private final AtomicInteger count = new AtomicInteger();
 
     /**
-     * 缓存中元素个数
+     * 是否使用置换策略
      */
-    private int count = 0;
+    private final boolean replacing;
 
-    private Lock lock;
+    /**
+     * 共享的内存预算，为 null 时只按 maxResource 限制
+     */
+    private final MemoryBudget budget;
+
+    /**
+     * 被置换策略驱逐的资源数
+     */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * 预算驱逐时起始的分段，轮流选择，避免总是驱逐同一个分段
+     */
+    private final AtomicInteger evictHand = new AtomicInteger();
 
     public AbstractCache(int maxResource) {
+        this(maxResource, null);
+    }
+
+    /**
+     * @param policyFactory 为每个分段创建一个置换策略，为 null 时引用归零即驱逐
+     */
+    public AbstractCache(int maxResource, Supplier<ReplacePolicy> policyFactory) {
+        this(maxResource, policyFactory, null);
+    }
+
+    /**
+     * 按共享的内存预算限制缓存，资源的字节数由 weigh 估算
+     */
+    public AbstractCache(MemoryBudget budget, Supplier<ReplacePolicy> policyFactory) {
+        this(0, policyFactory, budget);
+    }
+
+    private AbstractCache(int maxResource, Supplier<ReplacePolicy> policyFactory, MemoryBudget budget) {
         this.maxResource = maxResource;
-        this.cache = new HashMap<>();
-        this.references = new HashMap<>();
-        this.getting = new HashMap<>();
-        this.lock = new ReentrantLock();
+        this.replacing = policyFactory != null;
+        this.budget = budget;
+        this.segments = newSegments();
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new Segment<>(i, replacing ? policyFactory.get() : null);
+        }
+        if (budget != null) {
+            if (!replacing)
+                throw new IllegalArgumentException("a memory budget requires a replace policy");
+            budget.register(new MemoryBudget.Member() {
+                @Override
+                public boolean evictOne() {
+                    return evictAny(segments[evictHand.getAndIncrement() & (SEGMENT_COUNT - 1)]);
+                }
+
+                @Override
+                public int evictIf(LongPredicate keys) {
+                    return evictMatching(keys);
+                }
+            });
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Segment<T>[] newSegments() {
+        return (Segment<T>[]) new Segment<?>[SEGMENT_COUNT];
+    }
+
+    /**
+     * 按 key 选择分段。uid 的低 32 位是页内偏移，高 32 位是页号，先混合再取高位，让相邻的 key 分散到不同分段
+     */
+    private Segment<T> segmentFor(long key) {
+        int h = Long.hashCode(key) * 0x9E3779B9;
+        return segments[h >>> (32 - Integer.numberOfTrailingZeros(SEGMENT_COUNT))];
     }
 
     /**
@@ -76,35 +219,48 @@ public abstract class AbstractCache<T> {
      * Entry - key: uid
      */
     protected T get(long key) throws Exception {
+        Segment<T> seg = segmentFor(key);
+        CompletableFuture<T> loading;
         while (true) {
-            lock.lock();
-            if (getting.containsKey(key)) {  // 有其它线程正在获取相同资源
-                lock.unlock();
-                try {
-                    Thread.sleep(1);  // 释放锁，等待一段时间重新滚获取资源
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
+            seg.lock.lock();
+            try {
+                T obj = seg.cache.get(key);
+                if (obj != null) {  // 资源已经在缓存中，直接返回
+                    seg.references.put(key, seg.references.get(key) + 1);
+                    if (seg.policy != null)
+                        seg.policy.access(key);
+                    seg.hits++;
+                    return obj;
                 }
-                continue;
-            }
 
-            if (cache.containsKey(key)) {  // 资源已经在缓存中，直接返回
-                T obj = cache.get(key);
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
-                return obj;
+                loading = seg.getting.get(key);
+                if (loading == null) {  // 该线程准备从数据源获取资源了
+                    loading = new CompletableFuture<>();
+                    seg.getting.put(key, loading);
+                    seg.misses++;
+                    break;
+                }
+            } finally {
+                seg.lock.unlock();
             }
 
-            if (maxResource > 0 && count == maxResource) {  // 缓存已满
-                lock.unlock();
-                throw Error.CacheFullException;
+            // 有其它线程正在获取相同资源，等待它装载完成后重新查找（重新查找时才增加引用计数；预读失败时重新查找会自己回源）
+            try {
+                loading.get();
+            } catch (ExecutionException e) {
+                throw unwrap(e);
             }
+        }
 
-            count++;
-            getting.put(key, true);  // 该线程准备从数据源获取资源了
-            lock.unlock();
-            break;
+        // 先占一个缓存位置，缓存已满时尝试驱逐未被引用的资源
+        try {
+            reserve(seg, true);
+        } catch (Exception e) {
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            loading.completeExceptionally(e);
+            throw e;
         }
 
         // 尝试获取资源
@@ -112,23 +268,263 @@ public abstract class AbstractCache<T> {
         try {
             obj = getForCache(key);
         } catch (Exception e) {  // 获取资源失败
-            lock.lock();
-            count--;  // 回退缓存元素个数
-            getting.remove(key);
-            lock.unlock();
+            count.decrementAndGet();  // 回退缓存元素个数
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            loading.completeExceptionally(e);
             throw e;
         }
 
         // 获取资源成功
-        lock.lock();
-        getting.remove(key);
-        cache.put(key, obj);
-        references.put(key, 1);
-        lock.unlock();
+        seg.lock.lock();
+        try {
+            seg.getting.remove(key);
+            seg.cache.put(key, obj);
+            seg.references.put(key, 1);
+            if (seg.policy != null)
+                seg.policy.admit(key);
+        } finally {
+            seg.lock.unlock();
+        }
+        loading.complete(obj);
+        if (budget != null)
+            budget.charge(weigh(obj));  // 新资源正被引用，不会被这次记账驱逐
 
         return obj;
     }
 
+    /**
+     * 资源在缓存中时增加引用计数并返回，否则返回 null，不会回源，也不计入命中统计和置换策略的访问历史
+     * <p>
+     * 供后台线程固定住一个驻留资源，防止它在使用期间被驱逐
+     */
+    protected T getIfPresent(long key) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            T obj = seg.cache.get(key);
+            if (obj != null)
+                seg.references.put(key, seg.references.get(key) + 1);
+            return obj;
+        } finally {
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 为预读占住一个资源：资源既不在缓存中、也没有正在装载时，登记为装载中并占用一个缓存位置
+     * <p>
+     * 占住之后其它线程对这个资源的 get 会等待 completePrefetch，因此预读线程从数据源读到的就是最新的内容
+     *
+     * @return 是否占住，返回 true 时调用者必须随后调用 completePrefetch
+     */
+    protected boolean reservePrefetch(long key) {
+        Segment<T> seg = segmentFor(key);
+        CompletableFuture<T> loading = new CompletableFuture<>();
+        seg.lock.lock();
+        try {
+            if (seg.cache.containsKey(key) || seg.getting.containsKey(key))
+                return false;
+            seg.getting.put(key, loading);
+        } finally {
+            seg.lock.unlock();
+        }
+        try {
+            reserve(seg, false);
+        } catch (Exception e) {  // 缓存中的资源都被引用着，放弃预读
+            seg.lock.lock();
+            seg.getting.remove(key);
+            seg.lock.unlock();
+            loading.complete(null);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 预读完成，把资源以引用计数 0 放入缓存；obj 为 null 表示预读失败，等待者会自己回源
+     */
+    protected void completePrefetch(long key, T obj) {
+        Segment<T> seg = segmentFor(key);
+        CompletableFuture<T> loading;
+        seg.lock.lock();
+        try {
+            loading = seg.getting.remove(key);
+            if (obj != null) {
+                seg.cache.put(key, obj);
+                seg.references.put(key, 0);
+                if (seg.policy != null)
+                    seg.policy.admit(key);
+            } else
+                count.decrementAndGet();
+        } finally {
+            seg.lock.unlock();
+        }
+        loading.complete(obj);
+        if (obj != null && budget != null)
+            budget.charge(weigh(obj));
+    }
+
+    /**
+     * 等待者收到的是装载线程抛出的同一个异常对象（上层会用 == 比较 Error 中的静态异常）
+     */
+    private static Exception unwrap(ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception)
+            return (Exception) cause;
+        if (cause instanceof java.lang.Error)
+            throw (java.lang.Error) cause;
+        return e;
+    }
+
+    /**
+     * 为一个即将装载的资源占用缓存位置，调用时不能持有任何分段锁
+     *
+     * @param relieve 没有可驱逐的资源时是否调用 relieve()，预读不值得让其它缓存释放资源
+     */
+    private void reserve(Segment<T> home, boolean relieve) throws Exception {
+        while (true) {
+            int c = count.get();
+            if (maxResource <= 0 || c < maxResource) {
+                if (count.compareAndSet(c, c + 1))
+                    return;
+                continue;
+            }
+            if (!replacing || !evictAny(home) && !(relieve && relieve()))
+                throw Error.CacheFullException;
+        }
+    }
+
+    /**
+     * 从 home 分段开始依次尝试驱逐一个未被引用的资源，写回完成后才返回
+     *
+     * @return 是否成功驱逐
+     */
+    private boolean evictAny(Segment<T> home) {
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            Segment<T> seg = segments[(home.index + i) & (SEGMENT_COUNT - 1)];
+            Evicted<T> e;
+            seg.lock.lock();
+            try {
+                e = evictOne(seg);
+            } finally {
+                seg.lock.unlock();
+            }
+            if (e != null) {
+                writeBack(e);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 由分段的置换策略挑选一个引用计数为 0 的资源移出缓存，调用时需持有分段锁
+     *
+     * @return 移出的资源，调用者释放分段锁之后必须调用 writeBack；没有可驱逐的资源时返回 null
+     */
+    private Evicted<T> evictOne(Segment<T> seg) {
+        if (seg.cache.isEmpty())
+            return null;
+        Long victim = seg.policy.victim(k -> seg.references.get(k) == 0);
+        if (victim == null)
+            return null;
+        evictions.incrementAndGet();
+        return unlink(seg, victim);
+    }
+
+    /**
+     * 把资源移出分段，并登记为写回中，调用时需持有分段锁。资源仍然占着缓存位置和内存预算，直到写回完成
+     */
+    private Evicted<T> unlink(Segment<T> seg, long key) {
+        Evicted<T> e = new Evicted<>(seg, key, seg.cache.remove(key));
+        seg.references.remove(key);
+        if (seg.policy != null)
+            seg.policy.remove(key);
+        seg.getting.put(key, e.done);
+        return e;
+    }
+
+    /**
+     * 写回一个移出缓存的资源，然后归还它的缓存位置，并唤醒等待这个 key 的线程。调用时不能持有分段锁
+     */
+    private void writeBack(Evicted<T> e) {
+        try {
+            releaseForCache(e.obj);
+        } finally {
+            if (budget != null)
+                budget.refund(weigh(e.obj));
+            count.decrementAndGet();
+            e.seg.lock.lock();
+            try {
+                e.seg.getting.remove(e.key, e.done);
+            } finally {
+                e.seg.lock.unlock();
+            }
+            e.done.complete(null);
+        }
+    }
+
+    /**
+     * 驱逐所有 key 满足条件且引用计数为 0 的资源，被引用的资源保留
+     *
+     * @return 驱逐的资源数
+     */
+    private int evictMatching(LongPredicate keys) {
+        int n = 0;
+        for (Segment<T> seg : segments) {
+            List<Evicted<T>> victims = new ArrayList<>();
+            seg.lock.lock();
+            try {
+                for (long key : new ArrayList<>(seg.cache.keySet())) {  // 遍历副本，避免边遍历边删除
+                    if (seg.references.get(key) == 0 && keys.test(key))
+                        victims.add(unlink(seg, key));
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+            evictions.addAndGet(victims.size());
+            for (Evicted<T> e : victims) {
+                writeBack(e);
+            }
+            n += victims.size();
+        }
+        return n;
+    }
+
+    /**
+     * 等待 key 正在进行的装载或驱逐写回完成，没有时直接返回
+     */
+    protected void awaitPending(long key) {
+        Segment<T> seg = segmentFor(key);
+        CompletableFuture<T> pending;
+        seg.lock.lock();
+        try {
+            pending = seg.getting.get(key);
+        } finally {
+            seg.lock.unlock();
+        }
+        if (pending != null)
+            pending.exceptionally(e -> null).join();  // 装载失败由装载的线程处理
+    }
+
+    /**
+     * 缓存已满、且所有资源都被引用时调用，子类可以让持有资源引用的其它缓存释放一些引用
+     *
+     * @return 是否释放了引用，返回 true 时会重新尝试驱逐
+     */
+    protected boolean relieve() {
+        return false;
+    }
+
+    /**
+     * 估算资源占用的字节数，只在使用内存预算时调用，同一个资源每次估算的结果必须相同
+     */
+    protected long weigh(T obj) {
+        return 0;
+    }
+
     /**
      * 当资源不在缓存时的获取行为
      */
@@ -143,19 +539,20 @@ public abstract class AbstractCache<T> {
      * 在上层模块不使用某个资源时，释放对资源的引用。当引用归零时，缓存就会驱逐这个资源
      */
     protected void release(long key) {
-        lock.lock();
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
         try {
-            int ref = references.get(key) - 1;
-            if (ref == 0) {  // 资源当前的引用计数为0，说明没有别的模块或线程正在使用了，从缓存中驱逐
-                T obj = cache.get(key);
+            int ref = seg.references.get(key) - 1;
+            if (ref == 0 && seg.policy == null) {  // 资源当前的引用计数为0，说明没有别的模块或线程正在使用了，从缓存中驱逐
+                T obj = seg.cache.get(key);
                 releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
-                count--;
-            } else  // 还有别的正在使用，引用计数-1，把资源保留在缓存内
-                references.put(key, ref);
+                seg.references.remove(key);
+                seg.cache.remove(key);
+                count.decrementAndGet();
+            } else  // 还有别的正在使用（或由置换策略决定何时驱逐），引用计数-1，把资源保留在缓存内
+                seg.references.put(key, ref);
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
         }
     }
 
@@ -163,17 +560,82 @@ public abstract class AbstractCache<T> {
      * 关闭缓存，写回所有资源
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for (Segment<T> seg : segments) {
+            List<Evicted<T>> all = new ArrayList<>();
+            seg.lock.lock();
+            try {
+                for (long key : new ArrayList<>(seg.cache.keySet())) {  // 遍历副本，避免边遍历边删除
+                    all.add(unlink(seg, key));
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+            for (Evicted<T> e : all) {
+                writeBack(e);
             }
+        }
+    }
+
+    /**
+     * 资源当前的引用计数，不在缓存中时为 0
+     */
+    protected int referenceCount(long key) {
+        Segment<T> seg = segmentFor(key);
+        seg.lock.lock();
+        try {
+            Integer ref = seg.references.get(key);
+            return ref == null ? 0 : ref;
         } finally {
-            lock.unlock();
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 当前驻留在缓存中的所有资源的 key（不包括正在装载的）
+     */
+    protected List<Long> residentKeys() {
+        List<Long> keys = new ArrayList<>();
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            try {
+                keys.addAll(seg.cache.keySet());
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * 命中次数
+     */
+    public long getHitCount() {
+        long sum = 0;
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            sum += seg.hits;
+            seg.lock.unlock();
+        }
+        return sum;
+    }
+
+    /**
+     * 被置换策略驱逐的资源数
+     */
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    /**
+     * 未命中（需要回源）次数
+     */
+    public long getMissCount() {
+        long sum = 0;
+        for (Segment<T> seg : segments) {
+            seg.lock.lock();
+            sum += seg.misses;
+            seg.lock.unlock();
         }
+        return sum;
     }
 }
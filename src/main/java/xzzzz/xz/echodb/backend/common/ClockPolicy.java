@@ -0,0 +1,121 @@
+package xzzzz.xz.echodb.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * CLOCK 置换策略（二次机会算法）
+ * <p>
+ * 把所有缓存帧排成一个环，每帧带一个访问位：
+ * 1. 资源进入缓存或被命中时，访问位置 1；
+ * 2. 需要驱逐时，时钟指针沿环扫描：被引用中的帧直接跳过；访问位为 1 的帧清零后跳过（给它第二次机会）；访问位为 0 的帧被选为牺牲者。
+ * <p>
+ * 与 LRU 相比，命中时只需要置一个标志位，不需要调整链表，开销更小，效果近似 LRU。
+ * <p>
+ * AbstractCache 的各个分段共享总容量，单个分段驻留的帧数可能超过初始容量，此时环会按需扩容。
+ */
+public class ClockPolicy implements ReplacePolicy {
+
+    /**
+     * 每个帧中存放的资源 key
+     */
+    private long[] keys;
+
+    /**
+     * 每个帧是否被占用
+     */
+    private boolean[] used;
+
+    /**
+     * 每个帧的访问位
+     */
+    private boolean[] refBits;
+
+    /**
+     * key -> 帧下标
+     */
+    private final Map<Long, Integer> slots;
+
+    /**
+     * 空闲帧下标
+     */
+    private final Deque<Integer> free;
+
+    /**
+     * 时钟指针
+     */
+    private int hand;
+
+    public ClockPolicy(int capacity) {
+        capacity = Math.max(capacity, 1);
+        this.keys = new long[capacity];
+        this.used = new boolean[capacity];
+        this.refBits = new boolean[capacity];
+        this.slots = new HashMap<>();
+        this.free = new ArrayDeque<>();
+        for (int i = 0; i < capacity; i++) {
+            free.push(i);
+        }
+    }
+
+    @Override
+    public void admit(long key) {
+        if (free.isEmpty())
+            grow();
+        int slot = free.poll();
+        keys[slot] = key;
+        used[slot] = true;
+        refBits[slot] = true;
+        slots.put(key, slot);
+    }
+
+    /**
+     * 环的容量翻倍，新增的帧放在指针之后，不影响已有帧的扫描顺序
+     */
+    private void grow() {
+        int old = keys.length;
+        keys = Arrays.copyOf(keys, old * 2);
+        used = Arrays.copyOf(used, old * 2);
+        refBits = Arrays.copyOf(refBits, old * 2);
+        for (int i = old * 2 - 1; i >= old; i--) {
+            free.push(i);
+        }
+    }
+
+    @Override
+    public void access(long key) {
+        Integer slot = slots.get(key);
+        if (slot != null)
+            refBits[slot] = true;
+    }
+
+    @Override
+    public void remove(long key) {
+        Integer slot = slots.remove(key);
+        if (slot == null) return;
+        used[slot] = false;
+        refBits[slot] = false;
+        free.push(slot);
+    }
+
+    @Override
+    public Long victim(LongPredicate evictable) {
+        // 最多扫两圈：第一圈清掉所有访问位，第二圈一定能找到访问位为 0 的帧（除非全部被引用）
+        for (int i = 0; i < 2 * keys.length; i++) {
+            int slot = hand;
+            hand = (hand + 1) % keys.length;
+            if (!used[slot] || !evictable.test(keys[slot]))
+                continue;
+            if (refBits[slot]) {
+                refBits[slot] = false;
+                continue;
+            }
+            return keys[slot];
+        }
+        return null;
+    }
+}
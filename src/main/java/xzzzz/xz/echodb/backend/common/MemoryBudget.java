@@ -0,0 +1,145 @@
+package xzzzz.xz.echodb.backend.common;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
+
+/**
+ * 多个缓存共享的内存预算（字节）
+ * <p>
+ * DataItem 缓存和 Entry 缓存都登记为预算的成员，资源装入缓存时按估算的字节数记账，驱逐时退还。
+ * 记账后超出容量时，依次让各成员驱逐一个未被引用的资源，直到回到容量以内。
+ * 上层缓存的资源持有下层缓存资源的引用（Entry 引用 DataItem），按轮次依次驱逐各成员，
+ * 上层驱逐后释放的下层资源在下一轮就可以被驱逐。
+ * <p>
+ * 被引用中的资源无法驱逐，预算是一个软上限：所有成员都没有可驱逐的资源时允许暂时超出，并记录超出次数。
+ * 这样正在执行的操作不会因为缓存满而失败，而引用释放之后，保留下来的资源总量会被压回容量以内。
+ */
+public class MemoryBudget {
+
+    /**
+     * 预算的成员，由 AbstractCache 实现
+     */
+    interface Member {
+        /**
+         * 驱逐一个未被引用的资源
+         *
+         * @return 没有可驱逐的资源时返回 false
+         */
+        boolean evictOne();
+
+        /**
+         * 驱逐所有 key 满足条件且未被引用的资源
+         *
+         * @return 驱逐的资源数
+         */
+        int evictIf(LongPredicate keys);
+    }
+
+    private final long capacity;
+
+    private final AtomicLong used = new AtomicLong();
+
+    private final AtomicLong peak = new AtomicLong();
+
+    /**
+     * 没有可驱逐的资源、只能超出容量的次数
+     */
+    private final AtomicLong overcommits = new AtomicLong();
+
+    /**
+     * 按登记顺序：先登记的是下层缓存
+     */
+    private final List<Member> members = new CopyOnWriteArrayList<>();
+
+    public MemoryBudget(long capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("memory budget must be positive");
+        this.capacity = capacity;
+    }
+
+    void register(Member member) {
+        members.add(member);
+    }
+
+    /**
+     * 记账，超出容量时驱逐其它未被引用的资源。调用时不能持有任何缓存的分段锁
+     */
+    void charge(long bytes) {
+        long now = used.addAndGet(bytes);
+        peak.accumulateAndGet(now, Math::max);
+        if (now <= capacity)
+            return;
+        evictUntil(capacity);
+        if (used.get() > capacity)
+            overcommits.incrementAndGet();
+    }
+
+    void refund(long bytes) {
+        used.addAndGet(-bytes);
+    }
+
+    /**
+     * 外部内存紧张（例如页面缓存的页面都被固定着）时，驱逐大约十六分之一的预算，释放它们持有的引用
+     *
+     * @return 是否驱逐了资源
+     */
+    public boolean shed() {
+        return evictUntil(used.get() - Math.max(capacity / 16, 1));
+    }
+
+    /**
+     * 驱逐所有 key 满足条件且未被引用的资源。先处理后登记的上层缓存，释放它们对下层资源的引用
+     *
+     * @return 驱逐的资源数
+     */
+    public int purge(LongPredicate keys) {
+        int n = 0;
+        for (int i = members.size() - 1; i >= 0; i--) {
+            n += members.get(i).evictIf(keys);
+        }
+        return n;
+    }
+
+    /**
+     * 按轮次让各成员各驱逐一个资源，直到已用字节数不超过 target，或者一整轮都没有可驱逐的资源
+     *
+     * @return 是否驱逐了资源
+     */
+    private boolean evictUntil(long target) {
+        boolean any = false;
+        while (used.get() > target) {
+            boolean progress = false;
+            for (Member m : members) {
+                if (m.evictOne())
+                    progress = true;
+            }
+            if (!progress)
+                break;
+            any = true;
+        }
+        return any;
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getUsed() {
+        return used.get();
+    }
+
+    public long getPeak() {
+        return peak.get();
+    }
+
+    public long getOvercommitCount() {
+        return overcommits.get();
+    }
+
+    @Override
+    public String toString() {
+        return "used " + used.get() + " / " + capacity + " bytes, peak " + peak.get() + ", overcommits " + overcommits.get();
+    }
+}
@@ -0,0 +1,37 @@
+package xzzzz.xz.echodb.backend.common;
+
+import java.util.function.LongPredicate;
+
+/**
+ * 缓存置换策略
+ * <p>
+ * AbstractCache 在资源引用归零后不立即驱逐，而是把资源保留在缓存中，直到缓存满时再由置换策略挑选一个“冷”资源驱逐。
+ * 置换策略只负责记录访问历史和挑选牺牲者，资源本身的装载、写回仍由 AbstractCache 完成。
+ * <p>
+ * 所有方法都在 AbstractCache 的锁保护下调用，实现类无需自己加锁。
+ */
+public interface ReplacePolicy {
+
+    /**
+     * 资源第一次进入缓存
+     */
+    void admit(long key);
+
+    /**
+     * 资源在缓存中被命中
+     */
+    void access(long key);
+
+    /**
+     * 资源被移出缓存
+     */
+    void remove(long key);
+
+    /**
+     * 挑选一个可以被驱逐的资源
+     *
+     * @param evictable 判断资源当前是否可以被驱逐（引用计数为 0）
+     * @return 被选中的资源的 key，没有可驱逐的资源时返回 null
+     */
+    Long victim(LongPredicate evictable);
+}
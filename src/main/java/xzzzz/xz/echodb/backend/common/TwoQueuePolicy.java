@@ -0,0 +1,104 @@
+package xzzzz.xz.echodb.backend.common;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * 2Q 置换策略（抗扫描）
+ * <p>
+ * 把缓存分成两个队列，再加一个只记录 key 的“幽灵”队列：
+ * 1. A1in：第一次进入缓存的资源，先进先出。只被访问过一次（或在短时间内被连续访问）的资源停留在这里；
+ * 2. A1out：从 A1in 中被驱逐的资源的 key（不占用缓存帧），记录“最近见过但已经驱逐”的资源；
+ * 3. Am：在 A1out 中被再次命中、重新装入的资源，按 LRU 管理，是真正的热数据。
+ * <p>
+ * 驱逐时，A1in 超过其配额就从 A1in 头部驱逐，否则从 Am 的最久未使用端驱逐。
+ * 全表扫描只会经过 A1in，很快被先进先出地驱逐，不会冲掉 Am 中点查询的热页面。
+ */
+public class TwoQueuePolicy implements ReplacePolicy {
+
+    /**
+     * A1in 的配额
+     */
+    private final int kin;
+
+    /**
+     * A1out 最多记录的 key 数
+     */
+    private final int kout;
+
+    /**
+     * 先进先出队列，value 无意义
+     */
+    private final LinkedHashMap<Long, Boolean> a1in = new LinkedHashMap<>();
+
+    /**
+     * 幽灵队列，先进先出
+     */
+    private final LinkedHashMap<Long, Boolean> a1out = new LinkedHashMap<>();
+
+    /**
+     * 按访问顺序排列的 LRU 队列，头部最久未使用
+     */
+    private final LinkedHashMap<Long, Boolean> am = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param capacity 这个策略管理的帧数，A1in 占 1/4，A1out 记录 1/2
+     */
+    public TwoQueuePolicy(int capacity) {
+        this.kin = Math.max(1, capacity / 4);
+        this.kout = Math.max(1, capacity / 2);
+    }
+
+    @Override
+    public void admit(long key) {
+        if (a1out.remove(key) != null)  // 驱逐后不久又被访问，说明是热数据
+            am.put(key, Boolean.TRUE);
+        else
+            a1in.put(key, Boolean.TRUE);
+    }
+
+    @Override
+    public void access(long key) {
+        am.get(key);  // 在 Am 中则移到最近使用端；在 A1in 中的访问不提升
+    }
+
+    @Override
+    public void remove(long key) {
+        if (a1in.remove(key) != null) {
+            a1out.put(key, Boolean.TRUE);
+            if (a1out.size() > kout) {
+                Iterator<Long> it = a1out.keySet().iterator();
+                it.next();
+                it.remove();
+            }
+        } else
+            am.remove(key);
+    }
+
+    @Override
+    public Long victim(LongPredicate evictable) {
+        Long victim;
+        if (a1in.size() > kin || am.isEmpty()) {
+            victim = first(a1in, evictable);
+            if (victim == null)
+                victim = first(am, evictable);
+        } else {
+            victim = first(am, evictable);
+            if (victim == null)
+                victim = first(a1in, evictable);
+        }
+        return victim;
+    }
+
+    /**
+     * 从队列头部开始找第一个可以驱逐的资源（遍历 keySet 不会改变访问顺序）
+     */
+    private static Long first(LinkedHashMap<Long, Boolean> queue, LongPredicate evictable) {
+        for (Long key : queue.keySet()) {
+            if (evictable.test(key))
+                return key;
+        }
+        return null;
+    }
+}
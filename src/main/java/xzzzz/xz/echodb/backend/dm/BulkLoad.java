@@ -0,0 +1,24 @@
+package xzzzz.xz.echodb.backend.dm;
+
+/**
+ * 批量装载
+ * <p>
+ * 数据项在内存中按顺序排入完整的页面，攒够一批页面后直接追加到文件末尾并落盘，整批只记录一条装载日志，不再逐条写插入日志。
+ * 数据项的 uid 在所在的页面写入文件之后才确定，按 append 的顺序通过 append 和 finish 的返回值交给调用者。
+ */
+public interface BulkLoad {
+
+    /**
+     * 追加一个数据项
+     *
+     * @return 这次追加导致写入文件的数据项的 uid（按追加顺序），没有写入时为空数组
+     */
+    long[] append(byte[] data) throws Exception;
+
+    /**
+     * 写入剩余的页面
+     *
+     * @return 剩余数据项的 uid（按追加顺序）
+     */
+    long[] finish() throws Exception;
+}
@@ -0,0 +1,260 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.dm.logger.Logger;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
+import xzzzz.xz.echodb.backend.utils.FileUtil;
+import xzzzz.xz.echodb.backend.utils.Panic;
+import xzzzz.xz.echodb.commen.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32C;
+
+/**
+ * 模糊检查点
+ * <p>
+ * 没有检查点时，恢复每次都要从日志的第一条读起，日志也从不删除，重启时间和日志大小都随数据库的年龄增长。
+ * 这个线程每隔 interval 毫秒（或者日志增长超过 logBytes 字节时）做一次检查点，不阻塞前台的插入和修改：
+ * 1. 让目前为止的日志落盘，记下它的结束位置 B；
+ * 2. 写回 recLsn 不超过 B 的脏页面并 fsync；
+ * 3. 取脏页表（页号 -> recLsn）和活跃事务表（XID -> 第一条日志的位置）的快照：
+ * 重做从 min(B, 仍然脏的页面的 recLsn) 开始，之前的修改都已经在磁盘上；
+ * 撤销还需要活跃事务在这之前写下的日志，日志保留到 min(重做位置, 活跃事务的第一条日志)；
+ * 4. 把这些原子地写入 .ckpt 文件，然后删除完全位于保留位置之前的日志分段。
+ * <p>
+ * 页面在写日志之前登记到脏页表（见 PageCacheImpl），事务在写第一条日志之前登记到活跃事务表（begin），
+ * 两者记录的都是当时日志的追加位置，不晚于对应日志的开始位置。结束了的事务在做检查点时按 TM 的状态移除。
+ * <p>
+ * .ckpt 文件：[RedoLsn(8)][UndoLsn(8)][PageNumber(4)][DirtyCount(4)]{[Pgno(4)][RecLsn(8)]}[ActiveCount(4)]{[XID(8)][FirstLsn(8)]}[Checksum(4)]
+ * PageNumber 是检查点时的总页数：这些页面已经落盘，恢复截断文件时不能截掉它们。Checksum 是之前所有字节的 CRC32C。
+ * <p>
+ * 崩溃恢复之后、正常关闭之前各做一次检查点：恢复中的修改没有日志，必须立即写回；关闭时之前的分段全部可以删除。
+ */
+public class Checkpoint implements Runnable {
+
+    public static final String CKPT_SUFFIX = ".ckpt";
+
+    public static final String CKPT_TMP_SUFFIX = ".ckpt_tmp";
+
+    /**
+     * 默认的检查点间隔（毫秒）
+     */
+    public static final long DEFAULT_INTERVAL = 30_000;
+
+    /**
+     * 默认在日志增长这么多字节后提前做检查点
+     */
+    public static final long DEFAULT_LOG_BYTES = 64L << 20;
+
+    /**
+     * 检查是否需要做检查点的间隔（毫秒）
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * 一次检查点记录的内容
+     */
+    static class Record {
+        long redoLsn;  // 重做的开始位置
+        long undoLsn;  // 撤销需要读取的开始位置，不晚于 redoLsn
+        int pageNumber;  // 检查点时的总页数
+        Map<Integer, Long> dirtyPages;  // 页号 -> recLsn
+        Map<Long, Long> activeTransactions;  // XID -> 第一条日志的位置
+    }
+
+    private final String path;
+
+    private final PageCache pc;
+
+    private final Logger lg;
+
+    private final TransactionManager tm;
+
+    /**
+     * 检查点的间隔（毫秒），0 表示不按时间做检查点
+     */
+    private final long interval;
+
+    /**
+     * 日志增长多少字节后提前做检查点，0 表示不按日志量做检查点
+     */
+    private final long logBytes;
+
+    /**
+     * 写过日志、还没有确认结束的事务：XID -> 第一条日志的位置
+     */
+    private final Map<Long, Long> firstLsns = new ConcurrentHashMap<>();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    /**
+     * 上一次检查点的日志结束位置
+     */
+    private volatile long lastLsn;
+
+    Checkpoint(String path, PageCache pc, Logger lg, TransactionManager tm, long interval, long logBytes) {
+        this.path = path;
+        this.pc = pc;
+        this.lg = lg;
+        this.tm = tm;
+        this.interval = interval;
+        this.logBytes = logBytes;
+        this.lastLsn = lg.getAppendedLsn();
+        this.thread = new Thread(this, "checkpoint");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 事务写日志之前调用，第一次调用时记下日志的追加位置
+     */
+    void begin(long xid) {
+        if (xid != TransactionManagerImpl.SUPER_XID && !firstLsns.containsKey(xid))
+            firstLsns.putIfAbsent(xid, lg.getAppendedLsn());
+    }
+
+    @Override
+    public void run() {
+        long last = System.nanoTime();
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL));
+            if (closed)
+                break;
+            boolean due = interval > 0 && System.nanoTime() - last >= TimeUnit.MILLISECONDS.toNanos(interval);
+            if (due || (logBytes > 0 && lg.getAppendedLsn() - lastLsn >= logBytes)) {
+                take(true);
+                last = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * 做一次检查点
+     *
+     * @param prune 是否按 TM 的状态移除已经结束的事务。关闭时 TM 已经先关闭，保留所有登记过的事务，只是少删一些日志
+     */
+    synchronized Record take(boolean prune) {
+        long end = lg.flush();
+        Record r = new Record();
+        r.pageNumber = pc.getTotalPageNumber();  // 在 fsync 之前读取，新建页面的写入随写回一起落盘
+        pc.flushUpTo(end);
+
+        r.dirtyPages = pc.dirtyPageTable();
+        r.redoLsn = end;
+        for (long recLsn : r.dirtyPages.values()) {
+            r.redoLsn = Math.min(r.redoLsn, recLsn);
+        }
+
+        r.activeTransactions = new TreeMap<>();
+        r.undoLsn = r.redoLsn;
+        for (Map.Entry<Long, Long> e : firstLsns.entrySet()) {
+            if (prune && !tm.isActive(e.getKey())) {
+                firstLsns.remove(e.getKey());
+                continue;
+            }
+            r.activeTransactions.put(e.getKey(), e.getValue());
+            r.undoLsn = Math.min(r.undoLsn, e.getValue());
+        }
+
+        save(r);
+        lg.deleteBefore(r.undoLsn);
+        lastLsn = end;
+        return r;
+    }
+
+    private void save(Record r) {
+        ByteBuffer buf = ByteBuffer.allocate(32 + r.dirtyPages.size() * 12 + r.activeTransactions.size() * 16);
+        buf.putLong(r.redoLsn).putLong(r.undoLsn).putInt(r.pageNumber);
+        buf.putInt(r.dirtyPages.size());
+        for (Map.Entry<Integer, Long> e : r.dirtyPages.entrySet()) {
+            buf.putInt(e.getKey()).putLong(e.getValue());
+        }
+        buf.putInt(r.activeTransactions.size());
+        for (Map.Entry<Long, Long> e : r.activeTransactions.entrySet()) {
+            buf.putLong(e.getKey()).putLong(e.getValue());
+        }
+        buf.putInt(checksum(buf.array(), buf.position()));
+        FileUtil.replaceAtomically(path, CKPT_SUFFIX, CKPT_TMP_SUFFIX, buf.array(), buf.position());
+        FileUtil.syncDirectory(new File(path + CKPT_SUFFIX));  // 检查点文件的重命名必须先于删除日志分段落盘
+    }
+
+    private static int checksum(byte[] raw, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(raw, 0, length);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 读取上一次检查点
+     *
+     * @return 没有做过检查点（例如旧版本创建的数据库）时返回 null，恢复从日志的第一条开始
+     */
+    static Record load(String path) {
+        new File(path + CKPT_TMP_SUFFIX).delete();
+        File f = new File(path + CKPT_SUFFIX);
+        if (!f.exists())
+            return null;
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+        // 文件是原子替换的，内容不对说明文件损坏；之前的日志分段可能已经删除，不能退回到从头恢复
+        int length = buf.remaining() - 4;
+        if (length < 28 || checksum(buf.array(), length) != buf.getInt(length))
+            Panic.panic(Error.BadCheckpointException);
+
+        Record r = new Record();
+        r.redoLsn = buf.getLong();
+        r.undoLsn = buf.getLong();
+        r.pageNumber = buf.getInt();
+        r.dirtyPages = new TreeMap<>();
+        for (int n = buf.getInt(); n > 0; n--) {
+            r.dirtyPages.put(buf.getInt(), buf.getLong());
+        }
+        r.activeTransactions = new TreeMap<>();
+        for (int n = buf.getInt(); n > 0; n--) {
+            r.activeTransactions.put(buf.getLong(), buf.getLong());
+        }
+        return r;
+    }
+
+    /**
+     * 创建数据库时删除残留的检查点文件
+     */
+    void create() {
+        new File(path + CKPT_SUFFIX).delete();
+        new File(path + CKPT_TMP_SUFFIX).delete();
+    }
+
+    /**
+     * 停止检查点线程，并等待正在进行的检查点完成
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        if (!thread.isAlive())
+            return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -1,11 +1,15 @@
 package xzzzz.xz.echodb.backend.dm;
 
+import xzzzz.xz.echodb.backend.common.MemoryBudget;
 import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
 import xzzzz.xz.echodb.backend.dm.logger.Logger;
 import xzzzz.xz.echodb.backend.dm.page.PageOne;
 import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageIndex.SegmentMap;
 import xzzzz.xz.echodb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface DataManager {
 
     /**
@@ -14,9 +18,84 @@ public interface DataManager {
     DataItem read(long uid) throws Exception;
 
     /**
-     * 插入，并返回新插入的数据项的uid
+     * 插入到共享段，并返回新插入的数据项的uid
+     */
+    default long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, SegmentMap.SHARED, data);
+    }
+
+    /**
+     * 插入到 segment 段的页面中，并返回新插入的数据项的uid
+     */
+    long insert(long xid, long segment, byte[] data) throws Exception;
+
+    /**
+     * 批量插入到共享段
+     */
+    default List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        return insertBatch(xid, SegmentMap.SHARED, datas);
+    }
+
+    /**
+     * 批量插入到 segment 段，按顺序返回新插入的数据项的uid。同一页面上的多个数据项只固定一次页面、只写一条日志
+     */
+    List<Long> insertBatch(long xid, long segment, List<byte[]> datas) throws Exception;
+
+    /**
+     * 开始一次装载到共享段的批量装载
      */
-    long insert(long xid, byte[] data) throws Exception;
+    default BulkLoad bulkLoad(long xid) {
+        return bulkLoad(xid, SegmentMap.SHARED);
+    }
+
+    /**
+     * 开始一次批量装载：数据项直接写成完整的页面，每批页面只记录一条装载日志，写入的页面归 segment 段所有
+     */
+    BulkLoad bulkLoad(long xid, long segment);
+
+    /**
+     * 回收一个不再被任何事务可见的数据项：置为无效，空间由后台页面压缩回收。之后读取这个 uid 返回 null
+     */
+    void free(long uid) throws Exception;
+
+    /**
+     * 等待目前为止写入的日志全部落盘
+     */
+    void flushLog();
+
+    /**
+     * 等待事务 xid 的日志落盘，事务提交前调用：只等到它的最后一条日志（或 trackLog 记下的位置）为止，
+     * 之后其它事务追加的日志不必等待，同时提交的事务共用一次 fsync。之后不再跟踪这个事务，没有写过日志的事务直接返回
+     */
+    void flushLog(long xid);
+
+    /**
+     * 把目前为止追加的日志计入事务 xid，提交时一起落盘。
+     * 代表事务写下的 SUPER_XID 日志（例如索引的插入）不带事务的 XID，写完之后调用
+     */
+    void trackLog(long xid);
+
+    /**
+     * 事务中止：它的日志不需要落盘，不再跟踪
+     */
+    void forgetLog(long xid);
+
+    /**
+     * 提示接下来会按顺序读取这些数据项，后台预读它们所在的页面
+     */
+    void prefetch(List<Long> uids);
+
+    /**
+     * 等待打开时启动的缓冲池预热完成，新建的数据库没有预热，直接返回 0
+     *
+     * @return 预热装载的页数
+     */
+    int awaitWarmUp();
+
+    /**
+     * 数据项缓存使用的内存预算，上层的缓存（例如 VM 的 Entry 缓存）与它共享同一个预算
+     */
+    MemoryBudget getMemoryBudget();
 
     /**
      * 关闭：需要执行缓存和日志的关闭流程，还需要设置第一页的字节校验
@@ -28,10 +107,24 @@ public interface DataManager {
      * 从空文件创建DM
      */
     static DataManager create(String path, long mem, TransactionManager tm) {
+        return create(path, mem, tm, new DataManagerOptions());
+    }
+
+    /**
+     * 从空文件创建DM
+     *
+     * @param options 这个数据库实例的可调参数
+     */
+    static DataManager create(String path, long mem, TransactionManager tm, DataManagerOptions options) {
         PageCache pc = PageCache.create(path, mem);  // 创建一个PageCache实例
-        Logger lg = Logger.create(path);  // 创建一个Logger实例
-        DataManagerImpl dm = new DataManagerImpl(tm, pc, lg);  // 创建一个DataManagerImpl实例
+        pc.setWriteBack(options.getFlushInterval(), options.getFlushBatchSize());
+        Logger lg = Logger.create(path, options.getLogSegmentSize());  // 创建一个Logger实例
+        DataManagerImpl dm = new DataManagerImpl(path, tm, pc, lg, DataManagerImpl.newBudget(mem), options);  // 创建一个DataManagerImpl实例
+        dm.segments.create();
+        dm.checkpoint.create();
         dm.initPageOne();
+        dm.compactor.start();
+        dm.checkpoint.start();
         return dm;
     }
 
@@ -39,15 +132,44 @@ public interface DataManager {
      * 从已有文件创建DM
      */
     static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);  // 打开一个PageCache实例
-        Logger lg = Logger.open(path);  // 打开一个Logger实例
-        DataManagerImpl dm = new DataManagerImpl(tm, pc, lg);  // 创建一个DataManagerImpl实例
-        if (!dm.loadCheckPageOne()) {  // 校验失败，说明上次非正常关闭数据库，进行恢复操作
-            Recover.recover(tm, lg, pc);
+        return open(path, mem, tm, false);
+    }
+
+    /**
+     * 从已有文件创建DM
+     *
+     * @param mmap 是否以内存映射方式读取页面
+     */
+    static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        return open(path, mem, tm, mmap, new DataManagerOptions());
+    }
+
+    /**
+     * 从已有文件创建DM
+     *
+     * @param mmap    是否以内存映射方式读取页面
+     * @param options 这个数据库实例的可调参数
+     */
+    static DataManager open(String path, long mem, TransactionManager tm, boolean mmap, DataManagerOptions options) {
+        PageCache pc = PageCache.open(path, mem, mmap);  // 打开一个PageCache实例
+        pc.setWriteBack(options.getFlushInterval(), options.getFlushBatchSize());
+        Logger lg = Logger.open(path, options.getLogSegmentSize());  // 打开一个Logger实例
+        DataManagerImpl dm = new DataManagerImpl(path, tm, pc, lg, DataManagerImpl.newBudget(mem), options);  // 创建一个DataManagerImpl实例
+        boolean clean = dm.loadCheckPageOne();
+        if (!clean) {  // 校验失败，说明上次非正常关闭数据库，进行恢复操作
+            Recover.recover(tm, lg, pc, Checkpoint.load(path), options);  // 从上一次检查点开始恢复
+            dm.checkpoint.take(true);  // 恢复中的修改没有日志，立即写回
+        }
+        dm.loadSegments();  // 恢复可能截断了文件，区要按恢复之后的页数剪短
+        if (!clean || !dm.loadFreeSpaceMap()) {  // 恢复之后空闲空间表已经过期，逐页重建
+            dm.fillPageIndex();
         }
-        dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);  // 设置PageOne为打开状态
         dm.pc.flushPage(dm.pageOne);
+        if (clean)  // 崩溃之后 .warm 还是更早一次正常关闭时留下的，已经过期；恢复时重做过的页面本来就在缓存中
+            dm.warmUp = WarmUp.start(path, pc);  // 后台预热上次关闭时驻留的页面
+        dm.compactor.start();
+        dm.checkpoint.start();
         return dm;
     }
 }
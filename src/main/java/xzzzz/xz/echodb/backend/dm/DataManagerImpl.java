@@ -1,6 +1,9 @@
 package xzzzz.xz.echodb.backend.dm;
 
 import xzzzz.xz.echodb.backend.common.AbstractCache;
+import xzzzz.xz.echodb.backend.common.ClockPolicy;
+import xzzzz.xz.echodb.backend.common.MemoryBudget;
+import xzzzz.xz.echodb.backend.common.SubArray;
 import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
 import xzzzz.xz.echodb.backend.dm.dataItem.DataItemImpl;
 import xzzzz.xz.echodb.backend.dm.logger.Logger;
@@ -8,13 +11,23 @@ import xzzzz.xz.echodb.backend.dm.page.Page;
 import xzzzz.xz.echodb.backend.dm.page.PageOne;
 import xzzzz.xz.echodb.backend.dm.page.PageX;
 import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageIndex.FreeSpaceMap;
 import xzzzz.xz.echodb.backend.dm.pageIndex.PageIndex;
 import xzzzz.xz.echodb.backend.dm.pageIndex.PageInfo;
+import xzzzz.xz.echodb.backend.dm.pageIndex.SegmentMap;
 import xzzzz.xz.echodb.backend.tm.TransactionManager;
+import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
 import xzzzz.xz.echodb.backend.utils.Panic;
 import xzzzz.xz.echodb.backend.utils.UidUtil;
 import xzzzz.xz.echodb.commen.Error;
 
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * DataManager（DM）是数据库管理系统中的一层，主要负责底层数据的管理和操作。其功能和作用包括：
  * <p>
@@ -35,6 +48,12 @@ import xzzzz.xz.echodb.commen.Error;
  * 3) 抽象 DB 文件为 DataItem 供上层模块使用，并提供缓存。
  * DM 的功能其实可以归纳为两点：上层模块和文件系统之间的一个抽象层，向下直接读写文件，向上提供数据的包装；另外就是日志功能。
  * 可以注意到，无论是向上还是向下，DM 都提供了一个缓存的功能，用内存操作来保证效率。
+ * <p>
+ * DataItem 缓存引用归零后不立即驱逐，由 CLOCK 置换，总量受内存预算限制，预算与 VM 的 Entry 缓存共享。
+ * 缓存中的 DataItem 固定着所在的页面：页面缓存的页面全部被固定时，由预算驱逐一部分 DataItem 释放页面；
+ * 页面压缩前也先驱逐这一页上未被使用的 DataItem。
+ * <p>
+ * 每张表的记录、每棵 B+ 树的节点各自从自己的段中按区分配页面（见 SegmentMap），同一个段的页面在文件中连续存放。
  */
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
@@ -44,19 +63,93 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     private Logger lg;
 
-    private PageIndex pIndex;
+    /**
+     * 各段的页面索引
+     */
+    final SegmentMap segments;
+
+    /**
+     * 无后缀的数据库文件路径
+     */
+    private final String path;
+
+    /**
+     * 打开时启动的缓冲池预热
+     */
+    WarmUp warmUp = WarmUp.none();
+
+    /**
+     * 后台页面压缩
+     */
+    final PageCompactor compactor;
+
+    /**
+     * 后台检查点
+     */
+    final Checkpoint checkpoint;
+
+    /**
+     * 写过日志、还没有提交或中止的事务：XID -> 最后一条日志的结束位置
+     */
+    private final Map<Long, Long> lastLsns = new ConcurrentHashMap<>();
+
+    /**
+     * 一次预读提示最多涉及的页面数，超出部分由页面缓存的顺序检测或正常读取处理
+     */
+    private static final int MAX_PREFETCH_PAGES = 64;
+
+    /**
+     * 批量插入选页时申请空间的上限：留出 PageIndex 区间的余量，按区间向上取整后仍能选中（或新建）一张空页
+     */
+    private static final int BATCH_SELECT_LIMIT = PageX.MAX_FREE_SPACE - 2 * (PageCache.PAGE_SIZE / 40);
+
+    /**
+     * DataItem 与 Entry 缓存共享的内存预算占 mem 的比例的倒数。数据项的内容在页面中，已经计入页面缓存，预算只包括对象本身和修改前的副本
+     */
+    private static final int ITEM_BUDGET_RATIO = 8;
+
+    /**
+     * 内存预算的下限
+     */
+    private static final long MIN_ITEM_BUDGET = 1 << 20;
+
+    /**
+     * 一个缓存的 DataItem 除数据之外的估算开销：DataItemImpl、SubArray、读写锁，以及缓存映射表和置换策略中的记录
+     */
+    private static final int ITEM_OVERHEAD = 192;
 
     /**
      * 第一页
      */
     public Page pageOne;
 
-    public DataManagerImpl(TransactionManager tm, PageCache pc, Logger lg) {
-        super(0);
+    /**
+     * DataItem 与 Entry 缓存共享的内存预算
+     */
+    private final MemoryBudget budget;
+
+    public DataManagerImpl(String path, TransactionManager tm, PageCache pc, Logger lg, MemoryBudget budget,
+                           DataManagerOptions options) {
+        super(budget, () -> new ClockPolicy(1024));
+        this.path = path;
         this.tm = tm;
         this.pc = pc;
         this.lg = lg;
-        this.pIndex = new PageIndex();
+        this.budget = budget;
+        this.segments = new SegmentMap(path);
+        this.compactor = new PageCompactor(pc, lg, segments, budget, options.getCompactRate());
+        this.checkpoint = new Checkpoint(path, pc, lg, tm, options.getCheckpointInterval(),
+                options.getCheckpointLogBytes());
+        pc.setPressureHandler(budget::shed);
+        pc.setLogFlusher(lg::flush);  // 写回页面之前，页面上修改的日志必须先落盘
+        pc.setLogPosition(lg::getAppendedLsn);  // 页面变脏时的日志位置，检查点据此决定重做的开始位置
+    }
+
+    /**
+     * 按 DM 的内存大小创建 DataItem 与 Entry 缓存的内存预算
+     */
+    static MemoryBudget newBudget(long mem) {
+        return new MemoryBudget(Math.max(mem / ITEM_BUDGET_RATIO, MIN_ITEM_BUDGET));
     }
 
     /**
@@ -72,11 +165,35 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
                 Panic.panic(e);
             }
             if (pg == null) Panic.panic(Error.PageIsNullException);
-            pIndex.add(i, PageX.getFreeSpace(pg));
+            pg.lock();
+            try {
+                PageX.migrate(pg);  // 逐页扫描时顺便把旧格式的页面迁移为槽页
+            } finally {
+                pg.unlock();
+            }
+            if (PageX.getDeadBytes(pg) > 0)  // 崩溃恢复撤销的插入等无效数据项，交给后台压缩回收
+                compactor.noteDead(i);
+            segments.indexOf(i).add(i, PageX.getFreeSpace(pg));
             pg.release();
         }
     }
 
+    /**
+     * 上次正常关闭时，从空闲空间表填充 PageIndex，不读取任何页面
+     *
+     * @return 空闲空间表不可用时返回 false
+     */
+    public boolean loadFreeSpaceMap() {
+        return FreeSpaceMap.load(path, segments, pc.getTotalPageNumber());
+    }
+
+    /**
+     * 读取各段的区，必须在崩溃恢复之后、填充 PageIndex 之前调用
+     */
+    public void loadSegments() {
+        segments.load(pc.getTotalPageNumber());
+    }
+
     /**
      * 在创建DM时初始化PageOne并写回磁盘
      */
@@ -108,7 +225,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      */
     @Override
     public DataItem read(long uid) throws Exception {
-        DataItemImpl di = (DataItemImpl) super.get(uid);
+        DataItemImpl di;
+        try {
+            di = (DataItemImpl) super.get(uid);
+        } catch (Exception e) {
+            if (e == Error.InvalidUidException)  // 槽已经被压缩回收，与无效的数据项一样视为不存在
+                return null;
+            throw e;
+        }
         if (!di.isValid()) {
             di.release();
             return null;
@@ -120,50 +244,182 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
      * 首先需要写入插入日志，接着才可以通过 PageX 插入数据，并返回插入位置的偏移。最后需要将页面信息重新插入 pageIndex
      */
     @Override
-    public long insert(long xid, byte[] data) throws Exception {
+    public long insert(long xid, long segment, byte[] data) throws Exception {
         byte[] raw = DataItem.wrapDataItemRaw(data);  // 将输入的Entry包装成DataItem的原始格式
         if (raw.length > PageX.MAX_FREE_SPACE)
             throw Error.DataTooLargeException;
 
+        long[] uids = new long[1];
+        insertIntoPage(xid, selectPage(segment, raw.length), new byte[][]{raw}, 0, uids);
+        return uids[0];
+    }
+
+    /**
+     * 批量插入：每次选中一个页面后，把接下来能放下的数据项都插入这一页，每页只固定一次、只写一条日志
+     * <p>
+     * 选页时按剩余数据的总量申请空间（不超过 BATCH_SELECT_LIMIT），倾向于选中较空的页面，让一页容纳尽量多的数据项
+     */
+    @Override
+    public List<Long> insertBatch(long xid, long segment, List<byte[]> datas) throws Exception {
+        byte[][] raws = new byte[datas.size()][];
+        int remaining = 0;
+        for (int i = 0; i < raws.length; i++) {
+            raws[i] = DataItem.wrapDataItemRaw(datas.get(i));
+            if (raws[i].length > PageX.MAX_FREE_SPACE)
+                throw Error.DataTooLargeException;
+            remaining += raws[i].length;
+        }
+
+        long[] uids = new long[raws.length];
+        int i = 0;
+        while (i < raws.length) {
+            int want = Math.max(raws[i].length, Math.min(remaining, BATCH_SELECT_LIMIT));
+            int next = insertIntoPage(xid, selectPage(segment, want), raws, i, uids);
+            for (; i < next; i++) {
+                remaining -= raws[i].length;
+            }
+        }
+
+        List<Long> res = new ArrayList<>(uids.length);
+        for (long uid : uids) {
+            res.add(uid);
+        }
+        return res;
+    }
+
+    @Override
+    public BulkLoad bulkLoad(long xid, long segment) {
+        checkpoint.begin(xid);
+        return new PageBulkLoad(xid, this, pc, segments, segment);
+    }
+
+    /**
+     * 从段的 PageIndex 中选出一个空闲空间不少于 size 的页面，没有时创建新页面：共享段逐页创建，其它段分配一个新的区
+     */
+    private PageInfo selectPage(long segment, int size) throws Exception {
+        PageIndex pIndex = segments.index(segment);
         PageInfo pi = null;
         for (int i = 0; i < 5; i++) {  // 尝试5次找到一个可以容纳新数据项的页面
-            pi = pIndex.select(raw.length);
+            pi = pIndex.select(size);
             if (pi != null) break;  // 如果找到了合适的页面，跳出循环
-            else {
+            else if (segment == SegmentMap.SHARED) {
                 int newPgno = pc.newPage(PageX.initRaw());  // 如果没有找到合适的页面，创建一个新的页面，并将其添加到页面索引中
                 pIndex.add(newPgno, PageX.MAX_FREE_SPACE);
+            } else {
+                segments.grow(segment, pc);
             }
         }
         if (pi == null)
             throw Error.DatabaseBusyException;
+        return pi;
+    }
 
+    /**
+     * 把 raws[from] 开始、页面放得下的数据项插入 pi 对应的页面，uid 写入 uids 的对应位置
+     * <p>
+     * 只插入一个数据项时写普通的插入日志，多个时写一条批量插入日志
+     *
+     * @return 下一个尚未插入的数据项下标
+     */
+    private int insertIntoPage(long xid, PageInfo pi, byte[][] raws, int from, long[] uids) throws Exception {
         Page pg = null;
         int freeSpace = 0;
         try {
             pg = pc.getPage(pi.pgno);
-            byte[] log = Recover.insertLog(xid, pg, raw);  // 生成插入日志
-            lg.log(log);  // 将日志写入日志文件
-
-            short offset = PageX.insert(pg, raw);  // 在页面中插入新的数据项，并返回插入位置
+            pg.lock();
+            try {
+                if (!PageX.migrate(pg))  // 旧格式的页面先迁移为槽页，页尾放不下槽目录时 getFreeSpace 为 0，不会被选中
+                    Panic.panic(Error.BadPageException);
+            } finally {
+                pg.unlock();
+            }
+            int to = from + Math.max(1, PageX.fitCount(pg, raws, from));  // 选页保证了第一个数据项放得下
+            byte[] log = to - from == 1
+                    ? Recover.insertLog(xid, pg, raws[from])  // 生成插入日志
+                    : Recover.batchInsertLog(xid, pg, raws, from, to);
+            pg.startUpdate();  // 日志写入之前登记为脏页面，插入完成之前后台写回线程不写回这一页
+            try {
+                long lsn = log(xid, log);  // 将日志追加到日志缓冲区
 
-            pg.release();  // 释放页面
-            return UidUtil.parseToUid(pi.pgno, offset);  // 返回新插入的数据项的唯一标识符
+                pg.lock();  // 与后台写回线程互斥，避免写回半个数据项
+                try {
+                    pg.updateLsn(lsn);
+                    for (int i = from; i < to; i++) {
+                        short slot = PageX.insert(pg, raws[i]);  // 在页面中插入新的数据项，并返回槽号
+                        uids[i] = UidUtil.parseToUid(pi.pgno, slot);  // 新插入的数据项的唯一标识符
+                    }
+                    PageX.setPageLsn(pg, lsn);
+                } finally {
+                    pg.unlock();
+                }
+            } finally {
+                pg.endUpdate();
+            }
+            return to;
         } finally {
             // 将页面重新添加到页面索引中
-            if (pg != null)
-                pIndex.add(pi.pgno, PageX.getFreeSpace(pg));
-            else
-                pIndex.add(pi.pgno, freeSpace);  // 这一页的空闲空间设置为0，这样后续的insert的时候就不会找到此页
+            if (pg != null) {
+                freeSpace = PageX.getFreeSpace(pg);  // 必须在释放页面之前读取，释放后页面帧可能被回收给其它页面
+                pg.release();  // 释放页面
+            }
+            segments.indexOf(pi.pgno).add(pi.pgno, freeSpace);  // 取页面失败时这一页的空闲空间设置为0，这样后续的insert的时候就不会找到此页
+        }
+    }
+
+    /**
+     * 把数据项的有效位置为无效（以 SUPER_XID 记录更新日志），并把所在页面交给后台压缩
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem di = read(uid);
+        if (di == null)
+            return;
+        try {
+            di.before();
+            DataItem.setDataItemRawInvalid(di.getRaw());
+            di.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            di.release();
+        }
+        compactor.noteDead(UidUtil.parseUid(uid).getPgno());
+    }
+
+    /**
+     * 按读取顺序取前 MAX_PREFETCH_PAGES 个不同的页面，排序后把连续的页号合并成一次预读
+     */
+    @Override
+    public void prefetch(List<Long> uids) {
+        Set<Integer> pages = new LinkedHashSet<>();
+        for (long uid : uids) {
+            pages.add(UidUtil.parseUid(uid).getPgno());
+            if (pages.size() >= MAX_PREFETCH_PAGES)
+                break;
+        }
+        int[] pgnos = pages.stream().mapToInt(Integer::intValue).sorted().toArray();
+        int runStart = 0;
+        for (int i = 1; i <= pgnos.length; i++) {
+            if (i == pgnos.length || pgnos[i] != pgnos[i - 1] + 1) {
+                pc.prefetch(pgnos[runStart], i - runStart);
+                runStart = i;
+            }
         }
     }
 
     @Override
     protected DataItem getForCache(long uid) throws Exception {
         UidUtil.UidInfo uidInfo = UidUtil.parseUid(uid);
-        short offset = uidInfo.getOffset();
         int pgno = uidInfo.getPgno();
         Page pg = pc.getPage(pgno);
-        return DataItem.parseDataItem(pg, offset, this);
+        pg.lock();  // 与页面压缩互斥：解析出 DataItem 之后它持有页面的引用，压缩会跳过这一页
+        try {
+            int offset = PageX.locate(pg, uidInfo.getOffset());
+            if (offset >= 0)
+                return DataItem.parseDataItem(pg, offset, uid, this);
+        } finally {
+            pg.unlock();
+        }
+        pg.release();
+        throw Error.InvalidUidException;
     }
 
     /**
@@ -174,6 +430,15 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         di.getPage().release();
     }
 
+    /**
+     * 对象开销加上数据项长度：数据项被修改过之后会保留一份同样长度的修改前副本
+     */
+    @Override
+    protected long weigh(DataItem di) {
+        SubArray raw = di.getRaw();
+        return ITEM_OVERHEAD + raw.end - raw.start;
+    }
+
     /**
      * 释放对 dataItem 资源的引用
      */
@@ -183,16 +448,75 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     /**
      * 为 xid 生成 update 日志
+     *
+     * @return 日志的 LSN
      */
-    public void logDataItem(long xid, DataItem di) {
+    public long logDataItem(long xid, DataItem di) {
         byte[] log = Recover.updateLog(xid, di);
-        lg.log(log);
+        return log(xid, log);
+    }
+
+    /**
+     * 追加 xid 的一条日志。事务的第一条日志之前先在检查点中登记，恢复需要从它开始撤销；
+     * 记下事务最后一条日志的结束位置，提交时只等到这里（见 flushLog(long)）
+     */
+    long log(long xid, byte[] log) {
+        checkpoint.begin(xid);
+        long lsn = lg.log(log);
+        if (xid != TransactionManagerImpl.SUPER_XID)
+            lastLsns.merge(xid, lsn, Math::max);
+        return lsn;
+    }
+
+    @Override
+    public void flushLog() {
+        lg.flush();
+    }
+
+    @Override
+    public void flushLog(long xid) {
+        Long lsn = lastLsns.remove(xid);
+        if (lsn != null)
+            lg.flush(lsn);
+    }
+
+    @Override
+    public void trackLog(long xid) {
+        if (xid != TransactionManagerImpl.SUPER_XID)
+            lastLsns.merge(xid, lg.getAppendedLsn(), Math::max);
+    }
+
+    @Override
+    public void forgetLog(long xid) {
+        lastLsns.remove(xid);
     }
 
+    @Override
+    public int awaitWarmUp() {
+        return warmUp.await();
+    }
+
+    @Override
+    public MemoryBudget getMemoryBudget() {
+        return budget;
+    }
+
+    /**
+     * 关闭时先停止预热，再把驻留页号和空闲空间表写入文件供下次打开使用。
+     * 这两个文件必须在第一页标记为正常关闭之前写完，否则下次打开时可能读到过期的空闲空间表。
+     * 关闭日志之前做最后一次检查点，之前的日志分段都可以删除
+     */
     @Override
     public void close() {
+        compactor.close();
+        checkpoint.close();
+        warmUp.stop();
         super.close();
+        checkpoint.take(false);
         lg.close();
+        WarmUp.save(path, pc);
+        FreeSpaceMap.save(path, segments, pc.getTotalPageNumber());
+        segments.close();
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
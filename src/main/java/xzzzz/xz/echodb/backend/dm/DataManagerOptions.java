@@ -0,0 +1,141 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.dm.logger.LoggerImpl;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageWriter;
+
+/**
+ * 一个数据库实例的 DM 可调参数
+ * <p>
+ * 在 DataManager.create/open 时传入，由 DM 交给持有对应线程或文件的对象各自保存。
+ * 同一个 JVM 中打开的多个数据库（例如测试）互不影响；未设置的参数使用各自的默认值。
+ */
+public class DataManagerOptions {
+
+    private long flushInterval = PageWriter.DEFAULT_INTERVAL;
+
+    private int flushBatchSize = PageWriter.DEFAULT_BATCH_SIZE;
+
+    private int compactRate = PageCompactor.DEFAULT_RATE;
+
+    private int logSegmentSize = LoggerImpl.DEFAULT_SEGMENT_SIZE;
+
+    private long checkpointInterval = Checkpoint.DEFAULT_INTERVAL;
+
+    private long checkpointLogBytes = Checkpoint.DEFAULT_LOG_BYTES;
+
+    private long redoMemory = Recover.DEFAULT_REDO_MEMORY;
+
+    private int redoThreads = Recover.DEFAULT_REDO_THREADS;
+
+    /**
+     * 后台脏页写回的间隔（毫秒）
+     */
+    public DataManagerOptions flushInterval(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("flush interval must be positive");
+        this.flushInterval = millis;
+        return this;
+    }
+
+    /**
+     * 后台脏页写回每批最多写回的页数
+     */
+    public DataManagerOptions flushBatchSize(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("flush batch size must be positive");
+        this.flushBatchSize = pages;
+        return this;
+    }
+
+    /**
+     * 后台页面压缩每秒最多压缩的页数，0 表示不压缩
+     */
+    public DataManagerOptions compactRate(int pagesPerSecond) {
+        if (pagesPerSecond < 0)
+            throw new IllegalArgumentException("compaction rate must not be negative");
+        this.compactRate = pagesPerSecond;
+        return this;
+    }
+
+    /**
+     * 日志新分段的大小（字节），已有的分段不受影响
+     */
+    public DataManagerOptions logSegmentSize(int bytes) {
+        if (bytes < LoggerImpl.MIN_SEGMENT_SIZE)
+            throw new IllegalArgumentException("log segment too small");
+        this.logSegmentSize = bytes;
+        return this;
+    }
+
+    /**
+     * 检查点的间隔（毫秒），0 表示不按时间做检查点
+     */
+    public DataManagerOptions checkpointInterval(long millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("checkpoint interval must not be negative");
+        this.checkpointInterval = millis;
+        return this;
+    }
+
+    /**
+     * 日志增长多少字节后提前做检查点，0 表示不按日志量做检查点
+     */
+    public DataManagerOptions checkpointLogBytes(long bytes) {
+        if (bytes < 0)
+            throw new IllegalArgumentException("checkpoint log bytes must not be negative");
+        this.checkpointLogBytes = bytes;
+        return this;
+    }
+
+    /**
+     * 崩溃恢复时缓存重做日志的内存上限（字节）
+     */
+    public DataManagerOptions redoMemory(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("redo memory must be positive");
+        this.redoMemory = bytes;
+        return this;
+    }
+
+    /**
+     * 崩溃恢复时并行重做的线程数，1 表示在恢复线程中逐页重做
+     */
+    public DataManagerOptions redoThreads(int threads) {
+        if (threads <= 0)
+            throw new IllegalArgumentException("redo threads must be positive");
+        this.redoThreads = threads;
+        return this;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public int getFlushBatchSize() {
+        return flushBatchSize;
+    }
+
+    public int getCompactRate() {
+        return compactRate;
+    }
+
+    public int getLogSegmentSize() {
+        return logSegmentSize;
+    }
+
+    public long getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public long getCheckpointLogBytes() {
+        return checkpointLogBytes;
+    }
+
+    public long getRedoMemory() {
+        return redoMemory;
+    }
+
+    public int getRedoThreads() {
+        return redoThreads;
+    }
+}
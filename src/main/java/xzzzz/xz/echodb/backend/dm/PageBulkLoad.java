@@ -0,0 +1,111 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
+import xzzzz.xz.echodb.backend.dm.page.Page;
+import xzzzz.xz.echodb.backend.dm.page.PageImpl;
+import xzzzz.xz.echodb.backend.dm.page.PageX;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageIndex.SegmentMap;
+import xzzzz.xz.echodb.backend.utils.UidUtil;
+import xzzzz.xz.echodb.commen.Error;
+
+/**
+ * 按页面批量装载
+ * <p>
+ * 1. 数据项依次插入内存中的新槽页，放不下时开始下一页；
+ * 2. 攒满 BATCH_PAGES 页（或 finish）时，由 PageCache.appendPages 在文件末尾一次写入并 fsync；
+ * 3. 页面落盘之后再记录一条装载日志，记下这批页面各自的槽数。崩溃时日志中没有的页面要么被截断，要么其中的数据项属于未提交的事务，不可见；
+ * 4. 这批页面登记为段的一个区，连同剩余的空闲空间交给段的 PageIndex，之后的普通插入可以继续使用。
+ */
+class PageBulkLoad implements BulkLoad {
+
+    /**
+     * 每次写入文件的页数
+     */
+    private static final int BATCH_PAGES = 64;
+
+    private static final long[] NONE = new long[0];
+
+    private final long xid;
+
+    /**
+     * 装载日志通过 DM 记录，计入事务的日志位置
+     */
+    private final DataManagerImpl dm;
+
+    private final PageCache pc;
+
+    private final SegmentMap segments;
+
+    private final long segment;
+
+    private final Page[] pages = new Page[BATCH_PAGES];
+
+    private final int[] slotCounts = new int[BATCH_PAGES];
+
+    /**
+     * 当前批次中已经开始的页数，最后一页是正在填充的页面
+     */
+    private int filled;
+
+    PageBulkLoad(long xid, DataManagerImpl dm, PageCache pc, SegmentMap segments, long segment) {
+        this.xid = xid;
+        this.dm = dm;
+        this.pc = pc;
+        this.segments = segments;
+        this.segment = segment;
+    }
+
+    @Override
+    public long[] append(byte[] data) throws Exception {
+        byte[] raw = DataItem.wrapDataItemRaw(data);
+        if (raw.length > PageX.MAX_FREE_SPACE)
+            throw Error.DataTooLargeException;
+
+        long[] written = NONE;
+        if (filled == 0 || PageX.getFreeSpace(pages[filled - 1]) < raw.length) {
+            if (filled == BATCH_PAGES)
+                written = flush();
+            pages[filled] = new PageImpl(0, PageX.initRaw(), null);  // 页号在写入文件时才分配
+            slotCounts[filled] = 0;
+            filled++;
+        }
+        PageX.insert(pages[filled - 1], raw);
+        slotCounts[filled - 1]++;
+        return written;
+    }
+
+    @Override
+    public long[] finish() {
+        return flush();
+    }
+
+    /**
+     * 写入当前批次的页面，返回其中数据项的 uid
+     */
+    private long[] flush() {
+        if (filled == 0)
+            return NONE;
+        byte[][] raws = new byte[filled][];
+        int items = 0;
+        for (int i = 0; i < filled; i++) {
+            raws[i] = pages[i].getData();
+            items += slotCounts[i];
+        }
+        int first = pc.appendPages(raws, filled);  // 先落盘
+        dm.log(xid, Recover.bulkLoadLog(xid, first, slotCounts, filled));  // 再记录装载日志，提交前要落盘，否则恢复时这批页面会被截掉
+        segments.register(segment, first, filled);
+
+        long[] uids = new long[items];
+        int n = 0;
+        for (int i = 0; i < filled; i++) {
+            for (int slot = 0; slot < slotCounts[i]; slot++) {
+                uids[n++] = UidUtil.parseToUid(first + i, PageX.slotId(slot));
+            }
+            segments.index(segment).add(first + i, PageX.getFreeSpace(pages[i]));
+            pages[i] = null;
+        }
+        filled = 0;
+        return uids;
+    }
+}
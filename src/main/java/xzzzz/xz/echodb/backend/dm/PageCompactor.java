@@ -0,0 +1,196 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.common.MemoryBudget;
+import xzzzz.xz.echodb.backend.dm.logger.Logger;
+import xzzzz.xz.echodb.backend.dm.page.Page;
+import xzzzz.xz.echodb.backend.dm.page.PageX;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageIndex.PageIndex;
+import xzzzz.xz.echodb.backend.dm.pageIndex.PageInfo;
+import xzzzz.xz.echodb.backend.dm.pageIndex.SegmentMap;
+import xzzzz.xz.echodb.backend.utils.Panic;
+import xzzzz.xz.echodb.backend.utils.UidUtil;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 后台页面压缩
+ * <p>
+ * 被删除的记录（VM 回收后有效位被置为无效）和恢复时撤销的插入都以无效数据项的形式留在页面中。
+ * 出现无效数据项的页面登记为候选页，这个线程按 I/O 预算逐个检查候选页，无效数据项占已用空间的比例达到 DEAD_RATIO 时压缩：
+ * 1. 从页面所属段的 PageIndex 中取走页面，保证没有插入在使用它；
+ * 2. 驱逐缓存中这一页上未被使用的 DataItem（以及引用它们的 Entry），再持有页面锁，
+ * 并确认除自己之外没有任何引用（没有缓存的 DataItem 指向页面内的位置），否则留到下一轮；
+ * 3. 生成压缩后的页面映像，先记录映像日志，再覆盖页面；
+ * 4. 把页面连同新的空闲空间交还给 PageIndex，之后的插入就可以使用回收出来的空间。
+ * <p>
+ * 每压缩一页消耗一个令牌，令牌按 rate 页/秒 补充，避免压缩与前台事务争抢磁盘。rate 为 0 时不压缩。
+ */
+public class PageCompactor implements Runnable {
+
+    /**
+     * 默认每秒最多压缩的页数
+     */
+    public static final int DEFAULT_RATE = 64;
+
+    /**
+     * 无效数据项占已用空间的比例达到这个值才值得压缩
+     */
+    private static final double DEAD_RATIO = 0.25;
+
+    /**
+     * 没有候选页时的等待时间（毫秒）
+     */
+    private static final long IDLE_INTERVAL = 200;
+
+    /**
+     * 每秒最多压缩的页数
+     */
+    private final int rate;
+
+    private final PageCache pc;
+
+    private final Logger lg;
+
+    private final SegmentMap segments;
+
+    private final MemoryBudget budget;
+
+    /**
+     * 候选页
+     */
+    private final Set<Integer> candidates = ConcurrentHashMap.newKeySet();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    private double tokens;
+
+    private long lastRefill = System.nanoTime();
+
+    PageCompactor(PageCache pc, Logger lg, SegmentMap segments, MemoryBudget budget, int rate) {
+        this.pc = pc;
+        this.lg = lg;
+        this.segments = segments;
+        this.budget = budget;
+        this.rate = rate;
+        this.thread = new Thread(this, "page-compactor");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * 登记一个出现了无效数据项的页面
+     */
+    void noteDead(int pgno) {
+        candidates.add(pgno);
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            if (rate == 0 || candidates.isEmpty()) {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(IDLE_INTERVAL));
+                continue;
+            }
+            List<Integer> pages = new ArrayList<>(candidates);
+            pages.sort(null);
+            for (int pgno : pages) {
+                if (closed || !acquireToken())
+                    break;
+                if (compact(pgno))
+                    candidates.remove(pgno);
+            }
+        }
+    }
+
+    /**
+     * 等待一个令牌
+     *
+     * @return 等待期间被关闭或暂停时返回 false
+     */
+    private boolean acquireToken() {
+        while (!closed) {
+            int r = rate;
+            if (r == 0)
+                return false;
+            long now = System.nanoTime();
+            tokens = Math.min(r, tokens + (now - lastRefill) / 1e9 * r);  // 最多积攒一秒的令牌
+            lastRefill = now;
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+            LockSupport.parkNanos((long) ((1 - tokens) / r * 1e9));
+        }
+        return false;
+    }
+
+    /**
+     * 尝试压缩一个页面
+     *
+     * @return 页面已经处理完（压缩了或不值得压缩）时返回 true；页面正在被使用时返回 false，留到下一轮
+     */
+    boolean compact(int pgno) {
+        if (pgno <= 1 || pgno > pc.getTotalPageNumber())
+            return true;
+        PageIndex pIndex = segments.indexOf(pgno);
+        PageInfo pi = pIndex.take(pgno);
+        if (pi == null)  // 正在被插入使用
+            return false;
+
+        int freeSpace = pi.freeSpace;
+        budget.purge(uid -> UidUtil.parseUid(uid).getPgno() == pgno);
+        Page pg = null;
+        try {
+            pg = pc.getPage(pgno);
+        } catch (Exception e) {
+            pIndex.add(pgno, freeSpace);
+            return false;
+        }
+        pg.lock();
+        try {
+            if (pc.getPinCount(pgno) > 1)  // 有 DataItem 正引用页面中的位置，数据项不能移动
+                return false;
+            int dead = PageX.getDeadBytes(pg);
+            if (dead == 0 || dead < PageX.getUsedBytes(pg) * DEAD_RATIO)
+                return true;
+            byte[] image = PageX.compact(pg);
+            pg.setDirty(true);  // 写日志之前登记到脏页表，持有页面锁，写回线程要等覆盖完成之后才能写回
+            long lsn = lg.log(Recover.pageImageLog(pgno, image));  // 先写日志，再修改页面
+            pg.updateLsn(lsn);
+            PageX.applyImage(pg, image);
+            PageX.setPageLsn(pg, lsn);  // 映像中的 PageLsn 是压缩之前的
+            freeSpace = PageX.getFreeSpace(pg);
+            return true;
+        } finally {
+            pg.unlock();
+            pg.release();
+            pIndex.add(pgno, freeSpace);
+        }
+    }
+
+    /**
+     * 停止压缩线程，并等待正在压缩的页面处理完
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        if (!thread.isAlive())
+            return;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+}
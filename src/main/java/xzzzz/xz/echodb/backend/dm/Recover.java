@@ -1,6 +1,5 @@
 package xzzzz.xz.echodb.backend.dm;
 
-import com.google.common.primitives.Bytes;
 import xzzzz.xz.echodb.backend.common.SubArray;
 import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
 import xzzzz.xz.echodb.backend.dm.logger.Logger;
@@ -8,8 +7,9 @@ import xzzzz.xz.echodb.backend.dm.page.Page;
 import xzzzz.xz.echodb.backend.dm.page.PageX;
 import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
 import xzzzz.xz.echodb.backend.tm.TransactionManager;
+import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
 import xzzzz.xz.echodb.backend.utils.Panic;
-import xzzzz.xz.echodb.backend.utils.Parser;
 import xzzzz.xz.echodb.backend.utils.UidUtil;
 import xzzzz.xz.echodb.commen.Error;
 
@@ -74,6 +74,23 @@ import java.util.*;
  * 1. 倒序扫描事务 T 的所有日志
  * 2. 如果日志是插入操作 (Ti, I, A, x)，就将 A 位置的数据删除
  * 3. 如果日志是更新操作 (Ti, U, A, oldx, newx)，就将 A 位置的值设置为 oldx
+ * <p>
+ * 批量插入时，同一页面上连续插入的多个数据项合并为一条日志 (Ti, I*, P, [x1, x2, ...])，重做时依次插入，撤销时倒序撤销，效果与逐条的插入日志相同。
+ * <p>
+ * 批量装载（BulkLoad）直接在文件末尾写入完整的页面并落盘，之后只记录一条标记 (Ti, L, P, n, [s1, s2, ...])：从 P 开始的 n 个页面，各自前 si 个槽属于 Ti。
+ * 页面在写日志之前已经落盘，重做不需要做任何事；撤销时把这些槽的数据项置为无效，与撤销插入的效果相同。
+ * <p>
+ * 另外，后台页面压缩会以 SUPER_XID 记录整页的映像 (P, pgno, image)，重做时按日志顺序整页覆盖；它不属于任何用户事务，不需要撤销。
+ * 之后的日志都按槽号定位数据项，不受压缩移动数据项的影响。
+ * <p>
+ * 槽页记录了最后一次修改的日志结束位置（PageLsn，见 PageX），重做时跳过结束位置不超过它的日志：
+ * 写回磁盘的页面可能已经是压缩之后的映像，映像之前的插入和修改引用的槽可能已经被回收，不能再重做。
+ * <p>
+ * 有检查点（见 Checkpoint）时，重做从检查点记录的 RedoLsn 开始：在它之前的修改都已经写回了磁盘；
+ * 撤销从 UndoLsn 开始读取，它不晚于检查点时所有活跃事务的第一条日志。之前的日志分段可能已经被删除。
+ * <p>
+ * 恢复只顺序读一遍日志：重做日志按页分组后逐页应用，撤销只记下日志的 LSN，最后按 LSN 倒序重新读取（见 recover）。
+ * 不同页面的重做互不影响，可以按页号分给多个线程并行进行（见 DataManagerOptions.redoThreads），撤销在所有重做完成之后单线程进行。
  */
 public class Recover {
 
@@ -81,10 +98,28 @@ public class Recover {
 
     private final static byte LOG_TYPE_UPDATE = 1;
 
+    private final static byte LOG_TYPE_SLOT_INSERT = 2;
+
+    private final static byte LOG_TYPE_PAGE_IMAGE = 3;
+
+    private final static byte LOG_TYPE_BATCH_INSERT = 4;
+
+    private final static byte LOG_TYPE_BULK_LOAD = 5;
+
     private final static int REDO = 0;
 
     private final static int UNDO = 1;
 
+    /**
+     * 默认的重做日志缓存上限
+     */
+    public final static long DEFAULT_REDO_MEMORY = 64L << 20;
+
+    /**
+     * 默认的并行重做线程数，1 表示在恢复线程中逐页重做
+     */
+    public final static int DEFAULT_REDO_THREADS = 1;
+
     // [LogType](1B) [XID](8) [UID](8) [OldRaw] [NewRaw]
     private final static int OF_TYPE = 0;
 
@@ -101,12 +136,39 @@ public class Recover {
 
     private final static int OF_INSERT_RAW = OF_INSERT_OFFSET + 2;
 
+    // [LogType](1) [XID](8) [Pgno](4) [Slot](2) [Offset](2) [Raw]
+    private final static int OF_SLOT_INSERT_SLOT = OF_INSERT_PGNO + 4;
+
+    private final static int OF_SLOT_INSERT_OFFSET = OF_SLOT_INSERT_SLOT + 2;
+
+    private final static int OF_SLOT_INSERT_RAW = OF_SLOT_INSERT_OFFSET + 2;
+
+    // [LogType](1) [XID](8) [Pgno](4) [Slot](2) [Offset](2) [Count](2) {[Size](2) [Raw]} * Count
+    private final static int OF_BATCH_INSERT_COUNT = OF_SLOT_INSERT_RAW;
+
+    private final static int OF_BATCH_INSERT_ITEMS = OF_BATCH_INSERT_COUNT + 2;
+
+    // [LogType](1) [XID](8) [Pgno](4) [Count](2) {[SlotCount](2)} * Count
+    private final static int OF_BULK_LOAD_PGNO = OF_XID + 8;
+
+    private final static int OF_BULK_LOAD_COUNT = OF_BULK_LOAD_PGNO + 4;
+
+    private final static int OF_BULK_LOAD_SLOTS = OF_BULK_LOAD_COUNT + 2;
+
+    // [LogType](1) [XID](8) [Pgno](4) [Image](PAGE_SIZE)
+    private final static int OF_IMAGE_PGNO = OF_XID + 8;
+
+    private final static int OF_IMAGE_RAW = OF_IMAGE_PGNO + 4;
+
     /**
-     * Insert 日志信息：[LogType](1) [XID](8) [Pgno](4) [Offset](2) [Raw]
+     * Insert 日志信息：
+     * 旧格式页面：[LogType](1) [XID](8) [Pgno](4) [Offset](2) [Raw]
+     * 槽页：[LogType](1) [XID](8) [Pgno](4) [Slot](2) [Offset](2) [Raw]
      */
     static class InsertLogInfo {
         long xid;  // 事务ID
         int pgno;  // 数据页
+        int slot = -1;  // 槽号，旧格式的插入日志为 -1
         short offset;  // 页内偏移
         byte[] raw;  // 插入的值
     }
@@ -116,13 +178,47 @@ public class Recover {
      */
     private static InsertLogInfo parseInsertLog(byte[] log) {
         InsertLogInfo li = new InsertLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_INSERT_PGNO));
-        li.pgno = Parser.parseInt(Arrays.copyOfRange(log, OF_INSERT_PGNO, OF_INSERT_OFFSET));
-        li.offset = Parser.parseShort(Arrays.copyOfRange(log, OF_INSERT_OFFSET, OF_INSERT_RAW));
-        li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        li.xid = ByteCodec.getLong(log, OF_XID);
+        li.pgno = ByteCodec.getInt(log, OF_INSERT_PGNO);
+        if (log[OF_TYPE] == LOG_TYPE_SLOT_INSERT) {
+            li.slot = ByteCodec.getUnsignedShort(log, OF_SLOT_INSERT_SLOT);
+            li.offset = ByteCodec.getShort(log, OF_SLOT_INSERT_OFFSET);
+            li.raw = Arrays.copyOfRange(log, OF_SLOT_INSERT_RAW, log.length);
+        } else {
+            li.offset = ByteCodec.getShort(log, OF_INSERT_OFFSET);
+            li.raw = Arrays.copyOfRange(log, OF_INSERT_RAW, log.length);
+        }
         return li;
     }
 
+    /**
+     * 将批量插入日志拆分为逐条的 Insert 日志信息：第 i 个数据项使用槽 Slot+i，紧接在前一个数据项之后
+     */
+    private static List<InsertLogInfo> parseBatchInsertLog(byte[] log) {
+        long xid = ByteCodec.getLong(log, OF_XID);
+        int pgno = ByteCodec.getInt(log, OF_INSERT_PGNO);
+        int slot = ByteCodec.getUnsignedShort(log, OF_SLOT_INSERT_SLOT);
+        int offset = ByteCodec.getUnsignedShort(log, OF_SLOT_INSERT_OFFSET);
+        int count = ByteCodec.getUnsignedShort(log, OF_BATCH_INSERT_COUNT);
+
+        List<InsertLogInfo> lis = new ArrayList<>(count);
+        int pos = OF_BATCH_INSERT_ITEMS;
+        for (int i = 0; i < count; i++) {
+            int size = ByteCodec.getUnsignedShort(log, pos);
+            pos += 2;
+            InsertLogInfo li = new InsertLogInfo();
+            li.xid = xid;
+            li.pgno = pgno;
+            li.slot = slot + i;
+            li.offset = (short) offset;
+            li.raw = Arrays.copyOfRange(log, pos, pos + size);
+            lis.add(li);
+            pos += size;
+            offset += size;
+        }
+        return lis;
+    }
+
     /**
      * update 日志信息：[LogType](1) [XID](8) [UID](8) [OldRaw] [NewRaw]
      * [UID] = [Pgno](4) (保留2) [Offset](2)
@@ -134,7 +230,7 @@ public class Recover {
     static class UpdateLogInfo {
         long xid;
         int pgno;
-        short offset;
+        short offset;  // uid 的低 16 位：槽号（最高位为 1）或旧格式的页内偏移
         byte[] oldRaw;  // 修改前的原始值
         byte[] newRaw;  // 修改后的新值
     }
@@ -144,8 +240,8 @@ public class Recover {
      */
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = ByteCodec.getLong(log, OF_XID);
+        long uid = ByteCodec.getLong(log, OF_UPDATE_UID);
         UidUtil.UidInfo uidInfo = UidUtil.parseUid(uid);
         li.offset = uidInfo.getOffset();
         li.pgno = uidInfo.getPgno();
@@ -156,129 +252,311 @@ public class Recover {
     }
 
     private static boolean isInertLog(byte[] log) {
-        return log[0] == LOG_TYPE_INSERT;
+        return log[0] == LOG_TYPE_INSERT || log[0] == LOG_TYPE_SLOT_INSERT;
+    }
+
+    private static boolean isBatchInsertLog(byte[] log) {
+        return log[0] == LOG_TYPE_BATCH_INSERT;
     }
 
     /**
-     * 重做所有已完成（提交/取消）的事务
+     * 批量装载日志：[LogType](1) [XID](8) [Pgno](4) [Count](2) {[SlotCount](2)} * Count
      */
-    private static void redoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            if (isInertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                if (!tm.isActive(li.xid))
-                    doInsertLog(pc, li, REDO);
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                if (!tm.isActive(li.xid))
-                    doUpdateLog(pc, li, REDO);
-            }
+    private static boolean isBulkLoadLog(byte[] log) {
+        return log[0] == LOG_TYPE_BULK_LOAD;
+    }
+
+    /**
+     * 页面映像日志：[LogType](1) [XID](8) [Pgno](4) [Image]，由页面压缩以 SUPER_XID 写入，重做时整页覆盖，不需要撤销
+     */
+    private static boolean isPageImageLog(byte[] log) {
+        return log[0] == LOG_TYPE_PAGE_IMAGE;
+    }
+
+    /**
+     * 各类日志的 XID 都紧跟在 LogType 之后
+     */
+    private static long parseLogXid(byte[] log) {
+        return ByteCodec.getLong(log, OF_XID);
+    }
+
+    /**
+     * 日志涉及的页号
+     */
+    private static int parseLogPgno(byte[] log) {
+        if (isPageImageLog(log))
+            return ByteCodec.getInt(log, OF_IMAGE_PGNO);
+        if (isBulkLoadLog(log)) {  // 装载的最后一页
+            int pgno = ByteCodec.getInt(log, OF_BULK_LOAD_PGNO);
+            return pgno + ByteCodec.getUnsignedShort(log, OF_BULK_LOAD_COUNT) - 1;
         }
+        if (isInertLog(log) || isBatchInsertLog(log))
+            return ByteCodec.getInt(log, OF_INSERT_PGNO);
+        return UidUtil.parseUid(ByteCodec.getLong(log, OF_UPDATE_UID)).getPgno();
     }
 
     /**
-     * 撤销所有未完成（正在进行）的事务
+     * 一条需要重做的日志和它的结束位置
      */
-    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc) {
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while (true) {
-            byte[] log = lg.next();
-            if (log == null) break;
-            long xid;
-            if (isInertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                xid = li.xid;
+    private static class RedoLog {
+        final byte[] log;
+        final long end;
+
+        RedoLog(byte[] log, long end) {
+            this.log = log;
+            this.end = end;
+        }
+    }
+
+    /**
+     * 按页分组的重做日志：页号 -> 这一页的日志，按日志顺序排列
+     * <p>
+     * 每条需要重做的日志只涉及一个页面，不同页面的重做互不影响，只需要保持同一页面上的顺序。
+     * 应用时按页号顺序逐页进行，每个页面只取一次，页面的读取基本是顺序的。
+     */
+    private static class RedoLists {
+        final Map<Integer, List<RedoLog>> pages = new HashMap<>();
+        long bytes;  // 缓存的日志字节数
+
+        void add(int pgno, byte[] log, long end) {
+            pages.computeIfAbsent(pgno, k -> new ArrayList<>()).add(new RedoLog(log, end));
+            bytes += log.length;
+        }
+
+        /**
+         * 按页号顺序应用所有缓存的日志，然后清空
+         * <p>
+         * threads 大于 1 时按页号把页面分给各个线程，每个线程按页号顺序处理分到的页面，同一页面的日志仍在同一个线程中按日志顺序应用；
+         * 所有线程结束后才返回，之后的读取、截断和撤销都在重做完成之后进行
+         */
+        void apply(PageCache pc, int threads) {
+            int[] pgnos = pages.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            if (threads <= 1 || pgnos.length <= 1) {
+                apply(pc, pgnos, 0, 1);
             } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                xid = li.xid;
-            }
-            if (tm.isActive(xid)) {
-                if (!logCache.containsKey(xid))
-                    logCache.put(xid, new ArrayList<>());
-                logCache.get(xid).add(log);
+                Thread[] workers = new Thread[Math.min(threads, pgnos.length)];
+                for (int i = 0; i < workers.length; i++) {
+                    int part = i;
+                    workers[i] = new Thread(() -> apply(pc, pgnos, part, workers.length), "recover-redo-" + i);
+                    workers[i].start();
+                }
+                for (Thread worker : workers) {
+                    try {
+                        worker.join();
+                    } catch (InterruptedException e) {
+                        Panic.panic(e);
+                    }
+                }
             }
+            pages.clear();
+            bytes = 0;
         }
 
-        // 倒序undo
-        for (Map.Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size() - 1; i >= 0; i--) {
-                byte[] log = logs.get(i);
-                if (isInertLog(log))
-                    doInsertLog(pc, parseInsertLog(log), UNDO);
-                else
-                    doUpdateLog(pc, parseUpdateLog(log), UNDO);
+        /**
+         * 应用 pgno % parts == part 的页面的日志
+         */
+        private void apply(PageCache pc, int[] pgnos, int part, int parts) {
+            for (int pgno : pgnos) {
+                if (pgno % parts != part)
+                    continue;
+                Page pg = getPage(pc, pgno);
+                try {
+                    for (RedoLog r : pages.get(pgno)) {
+                        if (r.end <= PageX.getPageLsn(pg))  // 页面上已经包含这条日志的修改
+                            continue;
+                        redoLog(pg, r.log);
+                        PageX.setPageLsn(pg, r.end);
+                    }
+                } finally {
+                    pg.release();
+                }
             }
-            tm.abort(entry.getKey());  // 中止当前事务
         }
     }
 
     /**
-     * 根据 flag 对 Insert 日志进行重做/撤销
+     * 撤销链：未完成事务的日志的 LSN，按日志顺序排列。撤销时按 LSN 倒序重新读取日志，不在内存中保留日志内容
      */
-    private static void doInsertLog(PageCache pc, InsertLogInfo li, int flag) {
+    private static class UndoChain {
+        long[] lsns = new long[64];
+        int size;
+        final Set<Long> xids = new LinkedHashSet<>();
+
+        void add(long xid, long lsn) {
+            if (size == lsns.length)
+                lsns = Arrays.copyOf(lsns, size * 2);
+            lsns[size++] = lsn;
+            xids.add(xid);
+        }
+    }
+
+    private static Page getPage(PageCache pc, int pgno) {
         Page pg = null;
         try {
-            pg = pc.getPage(li.pgno);
+            pg = pc.getPage(pgno);
         } catch (Exception e) {
             Panic.panic(e);
         }
         if (pg == null) Panic.panic(Error.PageIsNullException);
+        return pg;
+    }
+
+    /**
+     * 在页面 pg 上重做一条日志
+     */
+    private static void redoLog(Page pg, byte[] log) {
+        if (isPageImageLog(log)) {
+            PageX.applyImage(pg, Arrays.copyOfRange(log, OF_IMAGE_RAW, log.length));
+        } else if (isBatchInsertLog(log)) {
+            for (InsertLogInfo li : parseBatchInsertLog(log))
+                doInsertLog(pg, li, REDO);
+        } else if (isInertLog(log)) {
+            doInsertLog(pg, parseInsertLog(log), REDO);
+        } else {
+            doUpdateLog(pg, parseUpdateLog(log), REDO);
+        }
+    }
+
+    /**
+     * 撤销一条日志。批量插入倒序撤销其中的各个数据项
+     */
+    private static void undoLog(PageCache pc, byte[] log) {
+        if (isBulkLoadLog(log)) {
+            undoBulkLoadLog(pc, log);
+            return;
+        }
+        Page pg = getPage(pc, parseLogPgno(log));
         try {
-            if (flag == UNDO)  // 如果标志位为UNDO，将数据项设置为无效
-                DataItem.setDataItemRawInvalid(li.raw);
-                // todo BUG？
+            if (isBatchInsertLog(log)) {
+                List<InsertLogInfo> lis = parseBatchInsertLog(log);
+                for (int j = lis.size() - 1; j >= 0; j--)
+                    doInsertLog(pg, lis.get(j), UNDO);
+            } else if (isInertLog(log))
+                doInsertLog(pg, parseInsertLog(log), UNDO);
             else
-                PageX.recoverInsert(pg, li.raw, li.offset);
+                doUpdateLog(pg, parseUpdateLog(log), UNDO);
         } finally {
             pg.release();
         }
     }
 
-    private static void doUpdateLog(PageCache pc, UpdateLogInfo li, int flag) {
+    /**
+     * 撤销所有未完成（正在进行）的事务：按 LSN 从大到小逐条撤销，再把这些事务标记为中止。
+     * 不同事务之间不会修改彼此未提交的数据，整体倒序与逐个事务倒序的结果相同，而日志只需要从后向前读一遍
+     */
+    private static void undoTransactions(TransactionManager tm, Logger lg, PageCache pc, UndoChain undo) {
+        for (int i = undo.size - 1; i >= 0; i--) {
+            lg.rewind(undo.lsns[i]);
+            byte[] log = lg.next();
+            if (log == null)
+                Panic.panic(Error.BadLogFileException);
+            undoLog(pc, log);
+        }
+        for (long xid : undo.xids) {
+            tm.abort(xid);  // 中止当前事务
+        }
+    }
+
+    /**
+     * 根据 flag 对 Insert 日志进行重做/撤销
+     */
+    private static void doInsertLog(Page pg, InsertLogInfo li, int flag) {
+        // 撤销插入时，把数据项以无效状态写回原位置（逻辑删除）。
+        // 不能只改日志里的副本：页面不再每次释放都刷盘，未提交事务插入的数据可能从未落盘，而指向它的索引节点却会被重做
+        if (flag == UNDO)
+            DataItem.setDataItemRawInvalid(li.raw);
+        if (li.slot < 0)
+            PageX.recoverInsert(pg, li.raw, li.offset);
+        else
+            PageX.recoverSlotInsert(pg, li.raw, li.slot, li.offset);
+    }
+
+    private static void doUpdateLog(Page pg, UpdateLogInfo li, int flag) {
         byte[] raw = flag == REDO ? li.newRaw : li.oldRaw;
-        Page pg = null;
-        try {
-            pg = pc.getPage(li.pgno);
-        } catch (Exception e) {
-            Panic.panic(e);
+        int offset = PageX.locate(pg, li.offset);  // 槽页中 uid 记录的是槽号，由槽目录解析出偏移
+        if (offset < 0) {
+            // 撤销时槽还不存在，说明数据项是同一个未完成事务插入的、插入没有落盘也没有被重做，随后撤销插入时会整体写入无效的数据项
+            if (flag == UNDO)
+                return;
+            Panic.panic(Error.BadLogFileException);
         }
-        if (pg == null) Panic.panic(Error.PageIsNullException);
-        try {
-            PageX.recoverUpdate(pg, raw, li.offset);
-        } finally {
-            pg.release();
+        PageX.recoverUpdate(pg, raw, (short) offset);
+    }
+
+    /**
+     * 撤销批量装载：把装载写入的槽中的数据项置为无效。页面之后可能被其它事务插入过数据，只处理日志中记录的前 SlotCount 个槽
+     */
+    private static void undoBulkLoadLog(PageCache pc, byte[] log) {
+        int first = ByteCodec.getInt(log, OF_BULK_LOAD_PGNO);
+        int count = ByteCodec.getUnsignedShort(log, OF_BULK_LOAD_COUNT);
+        for (int i = 0; i < count; i++) {
+            int pos = OF_BULK_LOAD_SLOTS + i * 2;
+            int slots = ByteCodec.getUnsignedShort(log, pos);
+            Page pg = getPage(pc, first + i);
+            try {
+                for (int slot = 0; slot < slots; slot++) {
+                    int offset = PageX.locate(pg, PageX.slotId(slot));
+                    if (offset >= 0)
+                        DataItem.setDataItemRawInvalid(new SubArray(pg.getData(), offset, offset + 1));
+                }
+                pg.setDirty(true);
+            } finally {
+                pg.release();
+            }
         }
+    }
 
+    /**
+     * 日志指针置为 lsn，lsn 小于 0（没有检查点）时置为第一条日志
+     */
+    private static void rewind(Logger lg, long lsn) {
+        if (lsn < 0)
+            lg.rewind();
+        else
+            lg.rewind(lsn);
     }
 
     /**
      * 根据日志恢复数据库
+     * <p>
+     * 只顺序读一遍日志，同时得到最大页号、按页分组的重做日志和未完成事务的撤销链：
+     * 已完成事务（以及 SUPER_XID）在 RedoLsn 之后的日志按页缓存，缓存超过 options.getRedoMemory() 字节时先按页应用一次，再继续读取；
+     * 未完成事务的日志只记下 LSN。读完之后截断文件、应用剩下的重做日志，最后倒序撤销。
+     * <p>
+     * 提前应用的页面都不超过最终的最大页号，之后的截断不会影响它们。
+     * 事务是否活跃只取决于 XID 文件，每个 XID 只查询一次。
+     *
+     * @param ckpt    上一次检查点，为 null 时从日志的第一条开始恢复
+     * @param options 重做日志的内存上限和并行重做的线程数
      */
-    public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, Checkpoint.Record ckpt,
+                               DataManagerOptions options) {
         System.out.println("Recovering");
 
-        lg.rewind();
+        long redoLsn = ckpt == null ? -1 : ckpt.redoLsn;
+        rewind(lg, ckpt == null ? -1 : ckpt.undoLsn);
 
-        // 获取当前数据库的最大页数
-        int maxPage = 0;
+        int maxPage = ckpt == null ? 0 : ckpt.pageNumber;  // 检查点之前的页面已经落盘，不能截掉
+        Map<Long, Boolean> active = new HashMap<>();
+        RedoLists redo = new RedoLists();
+        UndoChain undo = new UndoChain();
+        long limit = options.getRedoMemory();
+        int threads = options.getRedoThreads();
         while (true) {
+            long lsn = lg.getPosition();
             byte[] log = lg.next();
             if (log == null) break;
-            int pgno;
-            if (isInertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
+            int pgno = parseLogPgno(log);
             if (pgno > maxPage)
                 maxPage = pgno;
+            long xid = parseLogXid(log);
+            if (active.computeIfAbsent(xid, tm::isActive)) {  // 页面映像日志属于 SUPER_XID，不会被撤销
+                undo.add(xid, lsn);
+            } else if (lsn >= redoLsn && !isBulkLoadLog(log)) {  // 装载的页面在写这条日志之前已经落盘，不需要重做
+                redo.add(pgno, log, lg.getPosition());
+                if (redo.bytes >= limit)
+                    redo.apply(pc, threads);
+            }
         }
         if (maxPage == 0)
             maxPage = 1;
@@ -286,10 +564,10 @@ public class Recover {
         pc.truncateByBgno(maxPage);
         System.out.println("Truncate to " + maxPage + " pages.");
 
-        redoTransactions(tm, lg, pc);
+        redo.apply(pc, threads);
         System.out.println("Redo Transactions Over");
 
-        undoTransactions(tm, lg, pc);
+        undoTransactions(tm, lg, pc, undo);
         System.out.println("Undo Transactions Over");
 
         System.out.println("Recovery Over");
@@ -299,27 +577,84 @@ public class Recover {
      * 创建一个更新日志：Update：[LogType](1) [XID](8) [UID](8) [OldRaw] [NewRaw]
      */
     public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
         byte[] oldRaw = di.getOldRaw();
         SubArray raw = di.getRaw();
-        // 把原来 SubArray 中指定区间的一部分数据（start 到 end）拷贝出来，形成一个全新的 byte[] 数组，不再使用原来的引用，避免后续修改时可能影响全局！
-        // 操作方式	                            是否拷贝数据？	        是否和原数组共享？	        是否安全独立？
-        // SubArray.raw	                        ❌ 否	            ✅ 是	                ❌ 否（共享引用）
-        // Arrays.copyOfRange(...start, end)	✅ 是	            ❌ 否	                ✅ 是（完全独立）
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+        byte[] log = new byte[OF_UPDATE_RAW + oldRaw.length + (raw.end - raw.start)];
+        log[OF_TYPE] = LOG_TYPE_UPDATE;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putLong(log, OF_UPDATE_UID, di.getUid());
+        System.arraycopy(oldRaw, 0, log, OF_UPDATE_RAW, oldRaw.length);
+        // 新值直接从页面拷贝进日志，之后页面上的修改不会影响日志
+        System.arraycopy(raw.raw, raw.start, log, OF_UPDATE_RAW + oldRaw.length, raw.end - raw.start);
+        return log;
     }
 
     /**
-     * 创建一个插入日志：Insert：[LogType](1) [XID](8) [Pgno](4) [Offset](2) [Raw]
+     * 创建一个插入日志：Insert：[LogType](1) [XID](8) [Pgno](4) [Slot](2) [Offset](2) [Raw]
+     * <p>
+     * 页面必须已经是槽页，记录的是下一个槽号和当前的 FSO，即 PageX.insert 将要使用的位置
      */
     public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logType = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logType, xidRaw, pgnoRaw, offsetRaw, raw);
+        byte[] log = new byte[OF_SLOT_INSERT_RAW + raw.length];
+        log[OF_TYPE] = LOG_TYPE_SLOT_INSERT;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        ByteCodec.putShort(log, OF_SLOT_INSERT_SLOT, (short) PageX.getSlotCount(pg));
+        ByteCodec.putShort(log, OF_SLOT_INSERT_OFFSET, PageX.getFSO(pg));
+        System.arraycopy(raw, 0, log, OF_SLOT_INSERT_RAW, raw.length);
+        return log;
+    }
+
+    /**
+     * 创建一个批量插入日志：[LogType](1) [XID](8) [Pgno](4) [Slot](2) [Offset](2) [Count](2) {[Size](2) [Raw]} * Count
+     * <p>
+     * raws[from, to) 将依次插入同一个槽页，与 insertLog 一样记录第一个数据项将要使用的槽号和偏移
+     */
+    public static byte[] batchInsertLog(long xid, Page pg, byte[][] raws, int from, int to) {
+        int length = OF_BATCH_INSERT_ITEMS;
+        for (int i = from; i < to; i++) {
+            length += 2 + raws[i].length;
+        }
+        byte[] log = new byte[length];
+        log[OF_TYPE] = LOG_TYPE_BATCH_INSERT;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putInt(log, OF_INSERT_PGNO, pg.getPageNumber());
+        ByteCodec.putShort(log, OF_SLOT_INSERT_SLOT, (short) PageX.getSlotCount(pg));
+        ByteCodec.putShort(log, OF_SLOT_INSERT_OFFSET, PageX.getFSO(pg));
+        ByteCodec.putShort(log, OF_BATCH_INSERT_COUNT, (short) (to - from));
+        int pos = OF_BATCH_INSERT_ITEMS;
+        for (int i = from; i < to; i++) {
+            ByteCodec.putShort(log, pos, (short) raws[i].length);
+            System.arraycopy(raws[i], 0, log, pos + 2, raws[i].length);
+            pos += 2 + raws[i].length;
+        }
+        return log;
+    }
+
+    /**
+     * 创建一个批量装载日志：[LogType](1) [XID](8) [Pgno](4) [Count](2) {[SlotCount](2)} * Count
+     */
+    public static byte[] bulkLoadLog(long xid, int pgno, int[] slotCounts, int count) {
+        byte[] log = new byte[OF_BULK_LOAD_SLOTS + count * 2];
+        log[OF_TYPE] = LOG_TYPE_BULK_LOAD;
+        ByteCodec.putLong(log, OF_XID, xid);
+        ByteCodec.putInt(log, OF_BULK_LOAD_PGNO, pgno);
+        ByteCodec.putShort(log, OF_BULK_LOAD_COUNT, (short) count);
+        for (int i = 0; i < count; i++) {
+            ByteCodec.putShort(log, OF_BULK_LOAD_SLOTS + i * 2, (short) slotCounts[i]);
+        }
+        return log;
+    }
+
+    /**
+     * 创建一个页面映像日志：[LogType](1) [XID](8) [Pgno](4) [Image]
+     */
+    public static byte[] pageImageLog(int pgno, byte[] image) {
+        byte[] log = new byte[OF_IMAGE_RAW + image.length];
+        log[OF_TYPE] = LOG_TYPE_PAGE_IMAGE;
+        ByteCodec.putLong(log, OF_XID, TransactionManagerImpl.SUPER_XID);
+        ByteCodec.putInt(log, OF_IMAGE_PGNO, pgno);
+        System.arraycopy(image, 0, log, OF_IMAGE_RAW, image.length);
+        return log;
     }
 }
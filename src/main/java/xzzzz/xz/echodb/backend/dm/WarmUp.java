@@ -0,0 +1,153 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.utils.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 缓冲池预热
+ * <p>
+ * 正常关闭时把页面缓存中驻留的页号按升序写入 .warm 文件：[Count(4字节)][Pgno(4字节)]...
+ * 下次打开时由一个后台线程读出这些页号，把连续的页号合并成一次大块读取装入缓存，让重启后的前几次查询不必逐页回源。
+ * <p>
+ * 写文件与 Booter 一样，先写临时文件再重命名替换，保证文件要么是旧的要么是完整的新的；
+ * 上次没有正常关闭（经过崩溃恢复）时不预热，文件缺失、长度不符或页号越界时也放弃预热，不影响正常打开，下次正常关闭时重新写入。预热只是提示，读到的页面以引用计数 0 放入缓存，随时可以被驱逐。
+ */
+public class WarmUp implements Runnable {
+
+    /**
+     * 预热文件的后缀
+     */
+    public static final String WARM_SUFFIX = ".warm";
+
+    /**
+     * 预热文件的临时后缀
+     */
+    public static final String WARM_TMP_SUFFIX = ".warm_tmp";
+
+    /**
+     * 单次装载的最大页数
+     */
+    private static final int MAX_RUN = 64;
+
+    private final String path;
+
+    private final PageCache pc;
+
+    private final CompletableFuture<Integer> done = new CompletableFuture<>();
+
+    private volatile boolean stopped;
+
+    private WarmUp(String path, PageCache pc) {
+        this.path = path;
+        this.pc = pc;
+    }
+
+    /**
+     * 启动后台预热线程
+     */
+    static WarmUp start(String path, PageCache pc) {
+        new File(path + WARM_TMP_SUFFIX).delete();
+        WarmUp w = new WarmUp(path, pc);
+        Thread t = new Thread(w, "page-warmup");
+        t.setDaemon(true);
+        t.start();
+        return w;
+    }
+
+    /**
+     * 一个已经完成的预热（新建的数据库没有可预热的页面）
+     */
+    static WarmUp none() {
+        WarmUp w = new WarmUp(null, null);
+        w.done.complete(0);
+        return w;
+    }
+
+    @Override
+    public void run() {
+        int loaded = 0;
+        try {
+            int[] pgnos = load(path, pc.getTotalPageNumber());
+            int runStart = 0;
+            for (int i = 1; i <= pgnos.length && !stopped; i++) {
+                if (i == pgnos.length || pgnos[i] != pgnos[i - 1] + 1 || i - runStart == MAX_RUN) {
+                    pc.preload(pgnos[runStart], i - runStart);
+                    loaded += i - runStart;
+                    runStart = i;
+                }
+            }
+        } catch (Exception e) {  // 预热失败不影响正常使用，页面在第一次访问时照常读取
+            loaded = 0;
+        }
+        done.complete(loaded);
+    }
+
+    /**
+     * 等待预热完成
+     *
+     * @return 预热装载的页数
+     */
+    int await() {
+        return done.join();
+    }
+
+    /**
+     * 放弃尚未装载的页面，并等待正在进行的一次读取结束
+     */
+    void stop() {
+        stopped = true;
+        done.join();
+    }
+
+    /**
+     * 读取预热文件中的页号，文件不可用时返回空数组
+     */
+    static int[] load(String path, int pageNumber) {
+        File f = new File(path + WARM_SUFFIX);
+        if (!f.exists())
+            return new int[0];
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        } catch (IOException e) {
+            return new int[0];
+        }
+        if (buf.remaining() < 4)
+            return new int[0];
+        int count = buf.getInt();
+        if (count < 0 || buf.remaining() != count * 4)
+            return new int[0];
+        int[] pgnos = new int[count];
+        for (int i = 0; i < count; i++) {
+            pgnos[i] = buf.getInt();
+            if (pgnos[i] < 2 || pgnos[i] > pageNumber || (i > 0 && pgnos[i] <= pgnos[i - 1]))
+                return new int[0];
+        }
+        return pgnos;
+    }
+
+    /**
+     * 把缓存中驻留的页号（第一页除外）写入预热文件
+     */
+    static void save(String path, PageCache pc) {
+        int[] resident = pc.residentPages();
+        ByteBuffer buf = ByteBuffer.allocate(4 + resident.length * 4);
+        buf.putInt(0);
+        int count = 0;
+        for (int pgno : resident) {
+            if (pgno < 2)  // 第一页由 DM 自己持有，打开时总会读取
+                continue;
+            buf.putInt(pgno);
+            count++;
+        }
+        buf.putInt(0, count);
+
+        FileUtil.replaceAtomically(path, WARM_SUFFIX, WARM_TMP_SUFFIX, buf.array(), buf.position());
+    }
+}
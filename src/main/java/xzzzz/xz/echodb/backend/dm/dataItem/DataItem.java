@@ -1,13 +1,9 @@
 package xzzzz.xz.echodb.backend.dm.dataItem;
 
-import com.google.common.primitives.Bytes;
 import xzzzz.xz.echodb.backend.common.SubArray;
 import xzzzz.xz.echodb.backend.dm.DataManagerImpl;
 import xzzzz.xz.echodb.backend.dm.page.Page;
-import xzzzz.xz.echodb.backend.utils.Parser;
-import xzzzz.xz.echodb.backend.utils.UidUtil;
-
-import java.util.Arrays;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
 
 public interface DataItem {
 
@@ -19,13 +15,13 @@ public interface DataItem {
 
     /**
      * 在修改数据项之前调用，用于锁定数据项并保存原始数据
-     * 写锁定，脏页面，把原始数据拷贝至旧的原始数据
+     * 写锁定，登记页面上有进行中的修改，把原始数据拷贝至旧的原始数据
      */
     void before();
 
     /**
      * 在需要撤销修改时调用，用于恢复原始数据并解锁数据项
-     * 把旧的原始数据拷贝至原始数据，写锁定解除
+     * 把旧的原始数据拷贝至原始数据，结束页面上的修改，写锁定解除
      */
     void unBefore();
 
@@ -34,7 +30,7 @@ public interface DataItem {
      * 修改操作通过上层的tbm实现，先删除一条记录，再插入一条新记录，插入新记录调用 DM 插入
      * 所以在删除记录的时候调用after方法先写了日志，插入的时候才进行了数据的修改
      * <p>
-     * dm记录日志，写锁定解除
+     * dm记录日志，结束页面上的修改（脏页面），写锁定解除
      */
     void after(long xid);
 
@@ -79,20 +75,19 @@ public interface DataItem {
      * DataSize  2字节，标识Data的长度
      */
     static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1];  // 创建一个长度为 1 的数组，里面的值默认为 0
-        byte[] size = Parser.short2Byte((short) raw.length);
-        return Bytes.concat(valid, size, raw);
+        byte[] item = new byte[DataItemImpl.OF_DATA + raw.length];  // ValidFlag 默认为 0
+        ByteCodec.putShort(item, DataItemImpl.OF_SIZE, (short) raw.length);
+        System.arraycopy(raw, 0, item, DataItemImpl.OF_DATA, raw.length);
+        return item;
     }
 
     /**
-     * 从页面的 offset 位置解析 dataItem 数据项
+     * 从页面的 offset 位置解析 uid 对应的 dataItem 数据项（槽页中 uid 记录的是槽号，offset 由槽目录解析得到）
      */
-    static DataItem parseDataItem(Page pg, short offset, DataManagerImpl dm) {
+    static DataItem parseDataItem(Page pg, int offset, long uid, DataManagerImpl dm) {
         byte[] raw = pg.getData();
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OF_SIZE, offset + DataItemImpl.OF_DATA));
-        short length = (short) (size + DataItemImpl.OF_DATA);  // 整个 dataItem 的长度
-        long uid = UidUtil.parseToUid(pg.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + length), new byte[length], dm, uid, pg);
+        int length = ByteCodec.getUnsignedShort(raw, offset + DataItemImpl.OF_SIZE) + DataItemImpl.OF_DATA;  // 整个 dataItem 的长度
+        return new DataItemImpl(new SubArray(raw, offset, offset + length), null, dm, uid, pg);  // 修改前副本在第一次修改时才分配
     }
 
     /**
@@ -101,4 +96,11 @@ public interface DataItem {
     static void setDataItemRawInvalid(byte[] raw) {
         raw[DataItemImpl.OF_VALID] = (byte) 1;
     }
+
+    /**
+     * 将页面中的 dataItem 的有效位设置为无效，需在 before() 与 after() 之间调用
+     */
+    static void setDataItemRawInvalid(SubArray raw) {
+        raw.raw[raw.start + DataItemImpl.OF_VALID] = (byte) 1;
+    }
 }
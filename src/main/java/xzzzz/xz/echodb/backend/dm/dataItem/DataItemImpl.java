@@ -3,6 +3,7 @@ package xzzzz.xz.echodb.backend.dm.dataItem;
 import xzzzz.xz.echodb.backend.common.SubArray;
 import xzzzz.xz.echodb.backend.dm.DataManagerImpl;
 import xzzzz.xz.echodb.backend.dm.page.Page;
+import xzzzz.xz.echodb.backend.dm.page.PageX;
 
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -44,7 +45,12 @@ public class DataItemImpl implements DataItem {
     private SubArray raw;
 
     /**
-     * 旧的原始数据，数组长度就是原始数据的长度
+     * [Data] 部分的视图，创建时确定，每次 data() 返回同一个对象，调用者不能修改它的字段
+     */
+    private final SubArray data;
+
+    /**
+     * 旧的原始数据，数组长度就是原始数据的长度。只读的数据项不需要，第一次 before() 时才分配，之后复用
      */
     private byte[] oldRaw;
 
@@ -69,6 +75,7 @@ public class DataItemImpl implements DataItem {
 
     public DataItemImpl(SubArray raw, byte[] oldRaw, DataManagerImpl dm, long uid, Page pg) {
         this.raw = raw;
+        this.data = new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
         this.oldRaw = oldRaw;
         this.dm = dm;
         this.uid = uid;
@@ -87,25 +94,36 @@ public class DataItemImpl implements DataItem {
 
     @Override
     public SubArray data() {
-        return new SubArray(raw.raw, raw.start + OF_DATA, raw.end);
+        return data;
     }
 
     @Override
     public void before() {
         wLock.lock();
-        pg.setDirty(true);
+        pg.startUpdate();  // 日志写入前，后台写回线程不能写回这个页面
+        if (oldRaw == null)
+            oldRaw = new byte[raw.end - raw.start];
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        pg.endUpdate();
         wLock.unlock();
     }
 
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid, this);
+        long lsn = dm.logDataItem(xid, this);
+        pg.updateLsn(lsn);
+        pg.lock();
+        try {
+            PageX.setPageLsn(pg, lsn);  // 恢复时跳过页面上已经包含的日志
+        } finally {
+            pg.unlock();
+        }
+        pg.endUpdate();
         wLock.unlock();
     }
 
@@ -1,26 +1,23 @@
 package xzzzz.xz.echodb.backend.dm.logger;
 
-import xzzzz.xz.echodb.backend.utils.FileInfo;
-import xzzzz.xz.echodb.backend.utils.FileUtil;
-import xzzzz.xz.echodb.backend.utils.Panic;
-import xzzzz.xz.echodb.backend.utils.Parser;
-
-import java.io.File;
-import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
-
 public interface Logger {
 
     /**
-     * 向日志文件写入日志
+     * 追加一条日志，返回它的结束位置（LSN）。返回时日志不一定已经落盘
      */
-    void log(byte[] data);
+    long log(byte[] data);
 
     /**
-     * 将文件截断到当前位置
+     * 等待到 lsn 为止的日志落盘
      */
-    void truncate(long x) throws IOException;
+    void flush(long lsn);
+
+    /**
+     * 等待目前为止追加的所有日志落盘
+     *
+     * @return 落盘的日志的结束位置
+     */
+    long flush();
 
     /**
      * 读取下一条日志的 [Data]
@@ -28,45 +25,70 @@ public interface Logger {
     byte[] next();
 
     /**
-     * 日志指针置为4
+     * 已经追加到的位置：之后追加的日志的 LSN 都不小于它
+     */
+    long getAppendedLsn();
+
+    /**
+     * 日志指针置为第一条日志
      */
     void rewind();  // 重绕，倒带
 
+    /**
+     * 日志指针的当前位置：下一次 next() 返回的日志的 LSN，恰好读完一个分段时是下一个分段的开始位置。可以用于 rewind(lsn)
+     */
+    long getPosition();
+
+    /**
+     * 日志指针置为 lsn 处的日志。lsn 必须是某条日志的开始位置，或者是之前 getAppendedLsn 返回的位置
+     */
+    void rewind(long lsn);
+
+    /**
+     * 删除完全位于 lsn 之前、并且已经落盘的分段，正在追加的分段不会被删除
+     *
+     * @return 删除的分段数
+     */
+    int deleteBefore(long lsn);
+
     /**
      * 关闭日志
      */
     void close();
 
     /**
-     * 日志文件的创建，初始化 [XChecksum] 为 0
+     * 日志文件的创建：写入第一个分段
      */
     static Logger create(String path) {
-        FileInfo fi = access(path, FileUtil.Mode.CREATE);
-        FileChannel fc = fi.getFc();
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
 
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));  // 将0转换成四字节的数字
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return new LoggerImpl(fi.getRaf(), fc, 0);
+    /**
+     * 日志文件的创建：写入第一个分段
+     *
+     * @param segmentSize 每个分段写满多少字节后开始下一个分段
+     */
+    static Logger create(String path, int segmentSize) {
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        lg.create();
+        return lg;
     }
 
     /**
-     * 打开日志文件，需要首先校验日志文件的 [XChecksum]，并移除文件尾部可能存在的 [BadTail]
+     * 打开日志文件，需要首先检查各个分段，并移除最后一个分段尾部可能存在的 [BadTail]
      */
     static Logger open(String path) {
-        FileInfo fi = access(path, FileUtil.Mode.OPEN);
-        LoggerImpl lg = new LoggerImpl(fi.getRaf(), fi.getFc());
-        lg.init();
-        return lg;
+        return open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
     }
 
-    private static FileInfo access(String path, FileUtil.Mode mode) {
-        File f = new File(path + LoggerImpl.LOG_SUFFIX);
-        return FileUtil.checkFileAndBuildInfo(f, mode);
+    /**
+     * 打开日志文件，需要首先检查各个分段，并移除最后一个分段尾部可能存在的 [BadTail]
+     *
+     * @param segmentSize 之后新建的分段的大小，已有的分段不受影响
+     */
+    static Logger open(String path, int segmentSize) {
+        LoggerImpl lg = new LoggerImpl(path, segmentSize);
+        lg.init();
+        return lg;
     }
 }
@@ -1,34 +1,43 @@
 package xzzzz.xz.echodb.backend.dm.logger;
 
-import com.google.common.primitives.Bytes;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
+import xzzzz.xz.echodb.backend.utils.FileUtil;
 import xzzzz.xz.echodb.backend.utils.Panic;
-import xzzzz.xz.echodb.backend.utils.Parser;
 import xzzzz.xz.echodb.commen.Error;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * 日志读写
  * <p>
- * 日志的二进制文件，按照如下的格式进行排布：
- * [XChecksum][Log1][Log2][Log3]...[LogN][BadTail]
- * XChecksum：一个四字节的整数，是对后续所有日志计算的校验和
- * Log1 ~ LogN：常规的日志数据
- * BadTail：在数据库崩溃时，没有来得及写完的日志数据（不一定存在）
+ * 日志由若干个分段文件组成：path.log.000001、path.log.000002 ...，每个分段写满 segmentSize 字节后开始下一个分段。
+ * 所有分段首尾相接构成一个连续的字节流，日志在字节流中的偏移就是它的 LSN。每个分段的格式如下：
+ * [Magic(4)][Reserved(4)][BaseLsn(8)][Log1][Log2]...[LogN][BadTail]
+ * BaseLsn：分段第一个字节（分段头）的 LSN，打开时用来检查分段是否首尾相接
+ * BadTail：在数据库崩溃时，没有来得及写完的日志数据（不一定存在，只可能出现在最后一个分段）
  * <p>
- * 每条日志的格式如下：
- * Size：一个四字节整数，标识了 Data 段的字节数
- * Checksum：该条日志的校验和
- * [Size][Checksum][Data]
- * [0, 0, 0, 3] [3, -112, -4, 93] [97, 97, 97]
- * [0, 0, 0, 3] [14, 40, -23, -38] [98, 98, 98]
- * [0, 0, 0, 3] [24, -64, -41, 87] [99, 99, 99]
+ * 每条日志的格式如下，日志不跨越分段：
+ * [Size(4)][Checksum(4)][Lsn(8)][Data]
+ * Size：Data 段的字节数
+ * Checksum：Data 与 Lsn 的 CRC32C
+ * Lsn：这条日志自己的 LSN。磁盘上残留的旧数据即使校验和碰巧正确，位置也对不上
+ * <p>
+ * 每条日志自己就能校验，不再有对所有日志计算的总校验和：打开时只需要逐条检查最后一个分段、截断 [BadTail]，
+ * 之前的分段在开始写下一个分段之前已经落盘，只检查分段头；追加日志也不再需要改写文件头。
  * <p>
  * [Data] 的格式如下：
  * Update：[LogType](1) [XID](8) [UID](8) [OldRaw] [NewRaw]
@@ -36,11 +45,33 @@ import java.util.concurrent.locks.ReentrantLock;
  * <p>
  * Logger 被实现成迭代器模式，通过 next() 方法，不断地从文件中读取下一条日志，并将其中的 Data 解析出来并返回。
  * next() 方法的实现主要依靠 internNext();
+ * <p>
+ * 组提交：log() 只把日志追加到内存中的日志缓冲区，返回日志结束位置的 LSN，不写文件。
+ * 后台的刷盘线程把缓冲区整批写入分段文件并 fsync；
+ * 需要持久化的调用者（提交事务、写回页面）调用 flush(lsn) 等待到 lsn 为止的日志落盘；
+ * 刷盘线程写一批的同时，新的日志追加到另一个缓冲区，等待中的多个提交由下一次 fsync 一起完成。
+ * <p>
+ * 检查点之后，完全位于检查点所需位置之前的分段由 deleteBefore 删除，恢复从检查点记录的位置开始读取（rewind(lsn)）。
+ * <p>
+ * 旧版本的单个 path.log 文件（[XChecksum][Log1]...，每条日志 [Size][Checksum][Data]）在打开时迁移为分段日志。
  */
 public class LoggerImpl implements Logger {
 
+    /**
+     * 旧格式中总校验和与单条日志校验和的种子
+     */
     private final static int SEED = 13331;
 
+    /**
+     * 分段头的魔数 "ELOG"
+     */
+    private final static int MAGIC = 0x454C4F47;
+
+    /**
+     * 分段头的长度：[Magic(4)][Reserved(4)][BaseLsn(8)]
+     */
+    final static int SEGMENT_HEADER = 16;
+
     /**
      * 每条日志的 [Size] 段偏移量
      */
@@ -52,169 +83,402 @@ public class LoggerImpl implements Logger {
     private final static int OF_CHECKSUM = OF_SIZE + 4;
 
     /**
-     * 每条日志的 [Data] 段偏移量 8
+     * 每条日志的 [Lsn] 段偏移量
+     */
+    private final static int OF_LSN = OF_CHECKSUM + 4;
+
+    /**
+     * 每条日志的 [Data] 段偏移量 16
      */
-    private final static int OF_DATA = OF_CHECKSUM + 4;
+    private final static int OF_DATA = OF_LSN + 8;
 
+    /**
+     * 旧格式的日志文件，也是分段文件名的前缀
+     */
     public final static String LOG_SUFFIX = ".log";
 
-    private RandomAccessFile file;
+    /**
+     * 默认的分段大小
+     */
+    public final static int DEFAULT_SEGMENT_SIZE = 16 << 20;
+
+    /**
+     * 读取日志时一次读入的字节数
+     */
+    private final static int READ_CHUNK = 1 << 20;
+
+    /**
+     * 向前（LSN 减小的方向）跳读时，缓冲区在目标位置之后多读的字节数，大多数日志不需要再读一次
+     */
+    private final static int BACKWARD_SLACK = 64 << 10;
+
+    /**
+     * 缓冲区中的日志达到这个字节数时，即使没有人等待也开始写入
+     */
+    private final static int FLUSH_THRESHOLD = 1 << 20;
+
+    /**
+     * 缓冲区中的日志达到这个字节数时，追加日志的线程等待刷盘，避免缓冲区无限增长
+     */
+    private final static int MAX_BUFFERED = 8 << 20;
+
+    /**
+     * 分段的最小字节数：至少放得下分段头和一条空日志
+     */
+    public final static int MIN_SEGMENT_SIZE = SEGMENT_HEADER + OF_DATA;
+
+    /**
+     * 一个分段文件
+     */
+    static class Segment {
+        final int no;
+
+        /**
+         * 分段头的 LSN
+         */
+        final long base;
+
+        final File file;
+
+        /**
+         * 刷盘线程写入用的通道，分段写满并落盘后关闭
+         */
+        FileChannel writer;
+
+        Segment(int no, long base, File file) {
+            this.no = no;
+            this.base = base;
+            this.file = file;
+        }
+    }
+
+    /**
+     * 无后缀的数据库文件路径
+     */
+    private final String path;
 
-    private FileChannel fc;
+    /**
+     * BaseLsn -> 分段，由 lock 保护修改，刷盘线程和读取时不加锁查询
+     */
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
 
-    private Lock lock;
+    /**
+     * 正在追加的分段
+     */
+    private Segment current;
 
     /**
-     * 当前日志指针的位置
+     * 保护读指针、日志缓冲区和各个 LSN
+     */
+    private final Lock lock;
+
+    /**
+     * 有日志需要写入，或者被关闭时通知刷盘线程
+     */
+    private final Condition flushRequested;
+
+    /**
+     * 一批日志落盘后通知等待的线程
+     */
+    private final Condition flushed;
+
+    /**
+     * 当前日志指针的位置（LSN）
      */
     private long position;
 
     /**
-     * 打开时记录，log操作不更新
+     * 读取日志用的分段和通道
+     */
+    private Segment readSegment;
+
+    private FileChannel reader;
+
+    /**
+     * 读缓冲区：readSegment 中从 bufStart 开始的 bufLen 个字节。顺序读取时一次读入 READ_CHUNK 字节，解析其中的多条日志
+     */
+    private byte[] readBuf;
+
+    private long bufStart;
+
+    private int bufLen;
+
+    /**
+     * 上一次读缓冲区未命中时分段文件的大小
+     */
+    private long readSize;
+
+    private final CRC32C readCrc = new CRC32C();
+
+    /**
+     * 追加日志的缓冲区，按 LSN 顺序排列，第一个字节的 LSN 是 flushedLsn（刷盘线程写入期间是正在写入的这一批的末尾）
+     */
+    private byte[] buffer = new byte[FLUSH_THRESHOLD];
+
+    /**
+     * 刷盘线程写入时与 buffer 交换的另一个缓冲区
+     */
+    private byte[] spare = new byte[FLUSH_THRESHOLD];
+
+    private int buffered;
+
+    /**
+     * 缓冲区末尾的 LSN，在锁内修改，不加锁读取
      */
-    private long fileSize;
+    private volatile long appendedLsn;
 
     /**
-     * 四字节的整数，是对后续所有日志计算的校验和
+     * 已经落盘的日志的结束位置
      */
-    private int xChecksum;
+    private volatile long flushedLsn;
 
-    public LoggerImpl(RandomAccessFile file, FileChannel fc) {
-        this.file = file;
-        this.fc = fc;
+    /**
+     * 等待中的 flush 请求的最大 LSN
+     */
+    private long requestedLsn;
+
+    /**
+     * 刷盘线程写入并 fsync 的批次数
+     */
+    private volatile long flushCount;
+
+    private boolean closed;
+
+    private Thread flusher;
+
+    /**
+     * 新分段的大小，已有的分段不受影响
+     */
+    private final int segmentSize;
+
+    LoggerImpl(String path, int segmentSize) {
+        if (segmentSize < MIN_SEGMENT_SIZE)
+            throw new IllegalArgumentException("log segment too small");
+        this.path = path;
+        this.segmentSize = segmentSize;
         this.lock = new ReentrantLock();
+        this.flushRequested = lock.newCondition();
+        this.flushed = lock.newCondition();
     }
 
-    public LoggerImpl(RandomAccessFile file, FileChannel fc, int xChecksum) {
-        this.file = file;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        this.lock = new ReentrantLock();
+    private File segmentFile(int no) {
+        return new File(String.format("%s%s.%06d", path, LOG_SUFFIX, no));
     }
 
     /**
-     * 日志文件打开时的初始化，读取日志文件的 [XChecksum] 以及去除 [BadTail]
+     * 按编号排列的已有分段文件
      */
-    public void init() {
-        long size = 0;
-        try {
-            size = this.file.length();  // 读取文件大小
-        } catch (IOException e) {
-            Panic.panic(e);
+    private List<File> listSegmentFiles() {
+        File f = new File(path + LOG_SUFFIX);
+        File dir = f.getAbsoluteFile().getParentFile();
+        String prefix = f.getName() + ".";
+        List<File> files = new ArrayList<>();
+        File[] all = dir.listFiles();
+        if (all == null)
+            return files;
+        for (File file : all) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.length() == prefix.length() + 6 && name.substring(prefix.length()).chars().allMatch(Character::isDigit))
+                files.add(file);
         }
-        if (size < 4)  // 若文件大小小于4，证明日志文件创建出现问题,XChecksum为4字节
-            Panic.panic(Error.BadLogFileException);
+        files.sort(null);
+        return files;
+    }
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
+    private static int segmentNo(File f) {
+        String name = f.getName();
+        return Integer.parseInt(name.substring(name.length() - 6));
+    }
+
+    /**
+     * 创建日志：写入第一个分段的分段头并落盘
+     */
+    void create() {
+        if (new File(path + LOG_SUFFIX).exists() || !listSegmentFiles().isEmpty())
+            Panic.panic(Error.FileExistsException);
+        createFirstSegment();
+    }
+
+    private void createFirstSegment() {
+        Segment seg = new Segment(1, 0, segmentFile(1));
+        try (FileChannel fc = FileChannel.open(seg.file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            ByteBuffer buf = ByteBuffer.wrap(segmentHeader(0));
+            while (buf.hasRemaining()) {
+                fc.write(buf);
+            }
+            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
-        int xCheckSum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xCheckSum;
-
-        checkAndRemoveTail();
+        syncDirectory();
+        segments.put(seg.base, seg);
+        current = seg;
+        startFlusher(SEGMENT_HEADER);
     }
 
     /**
-     * [BadTail] 该条日志尚未写入完成，文件的校验和也就不会包含该日志的校验和，去掉 [BadTail] 即可保证日志文件的一致性
+     * 日志文件打开时的初始化：检查各分段首尾相接，逐条检查最后一个分段并去除 [BadTail]。
+     * 存在旧格式的日志文件时，先把它迁移为分段日志
      */
-    private void checkAndRemoveTail() {
-        rewind();  // 将当前指针位置重置为常规日志开始的位置
+    void init() {
+        File legacy = new File(path + LOG_SUFFIX);
+        if (legacy.exists()) {
+            migrateLegacy(legacy);
+            return;
+        }
 
-        int xCheck = 0;  // 初始化校验和为 0
-        while (true) {  // 循环读取日志，直到没有更多的日志可以读取
-            byte[] log = internNext();
-            if (log == null) break;
-            xCheck = calCheckNum(xCheck, log);  // 对所有日志计算的校验和
+        List<File> files = listSegmentFiles();
+        if (files.isEmpty())
+            Panic.panic(Error.FileNotExistsException);
+        long expected = -1;
+        for (int i = 0; i < files.size(); i++) {
+            File f = files.get(i);
+            long base = readSegmentBase(f);
+            if (base < 0 || (expected >= 0 && base != expected)) {  // 分段头不完整或者没有接上：从这里开始的分段都没有被确认落盘过
+                if (i == 0)
+                    Panic.panic(Error.BadLogFileException);
+                for (File rest : files.subList(i, files.size())) {
+                    rest.delete();
+                }
+                syncDirectory();
+                break;
+            }
+            Segment seg = new Segment(segmentNo(f), base, f);
+            segments.put(base, seg);
+            current = seg;
+            expected = base + f.length();
         }
-        if (xCheck != xChecksum)  // 比较计算得到的校验和文件中的校验和，如果不相等，说明日志已经被破坏，抛出异常
-            Panic.panic(Error.BadLogFileException);
 
-        // 尝试将文件截断到当前位置，移除 [BadTail]
-        try {
-            truncate(position);
-        } catch (Exception e) {
+        long end = scanTail(current);
+        try (RandomAccessFile raf = new RandomAccessFile(current.file, "rw")) {
+            raf.setLength(end - current.base);  // 移除 [BadTail]
+            raf.getFD().sync();
+        } catch (IOException e) {
             Panic.panic(e);
         }
+        startFlusher(end);
+    }
 
-        /*
-            RandomAccessFile raf = new RandomAccessFile("test.txt", "rw");
-            FileChannel fc = raf.getChannel();
-
-            raf.seek(100);
-            System.out.println(fc.position()); // 输出：100 ✅
-
-            fc.position(200);
-            raf.writeInt(42); // 会从 200 开始写 ✅
-
-                     [文件]
-                       ↑
-                 ┌────────────┐
-                 │ FileChannel│ <─── position()
-                 └────────────┘
-                       ↑
-                 ┌────────────┐
-                 │RandomAccess│ <─── seek()
-                 └────────────┘
-            RandomAccessFile.seek() 和 FileChannel.position() 操作的是同一个底层文件位置指针（file pointer），本质上就是“一个东西，两种 API 封装”
-
-            控制器	            操作方式	                                感觉像是...
-            RandomAccessFile	面向 stream 流的读写（面向流（RAF））	    用遥控器点歌
-            FileChannel	        面向 buffer 的底层控制（面向缓冲区（NIO））	直接用 app 拖进度条
-         */
-        // 尝试把文件指针移动到 position 字节（最后的）位置
-        try {
-            file.seek(position);
+    /**
+     * 读取分段头中的 BaseLsn
+     *
+     * @return 分段头不完整或魔数不对时返回 -1
+     */
+    private static long readSegmentBase(File f) {
+        if (f.length() < SEGMENT_HEADER)
+            return -1;
+        byte[] header = new byte[SEGMENT_HEADER];
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            raf.readFully(header);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        if (ByteCodec.getInt(header, 0) != MAGIC)
+            return -1;
+        return ByteCodec.getLong(header, 8);
+    }
 
-        rewind();
+    private static byte[] segmentHeader(long base) {
+        byte[] header = new byte[SEGMENT_HEADER];
+        ByteCodec.putInt(header, 0, MAGIC);
+        ByteCodec.putLong(header, 8, base);
+        return header;
     }
 
     /**
-     * 读取下一条日志，如果出现异常则返回null
+     * 逐条检查分段中的日志
+     *
+     * @return 最后一条完整日志的结束位置
      */
-    private byte[] internNext() {
-        if (position + OF_DATA >= fileSize)  // [Size][Checksum]已经超过了文件大小
-            return null;
-        ByteBuffer tmp = ByteBuffer.allocate(4);  // 读取每条日志的Size：一个四字节整数，标识了 Data 段的字节数，进而得到Data段的字节数
-        try {
-            fc.position(position);
-            fc.read(tmp);
-        } catch (IOException e) {
-            Panic.panic(e);
+    private long scanTail(Segment seg) {
+        position = seg.base + SEGMENT_HEADER;
+        while (readRecord(seg, false) != null) {
         }
-        int size = Parser.parseInt(tmp.array());  // 当前日志的Data段字节数
-        if (position + size + OF_DATA > fileSize)  // [Size][Checksum][Data]已经超过了文件大小
-            return null;
+        closeReader();
+        return position;
+    }
 
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);  // 通过校验，开始读取当前日志
-        try {
-            fc.position(position);
-            fc.read(buf);
+    /**
+     * 从 end 开始追加，启动刷盘线程
+     */
+    private void startFlusher(long end) {
+        appendedLsn = end;
+        flushedLsn = end;
+        requestedLsn = end;
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        rewind();
+    }
+
+    /**
+     * 把旧格式的日志迁移为分段日志：取校验和与 [XChecksum] 相等的最长前缀，逐条追加后落盘，最后删除旧文件。
+     * 迁移中途崩溃时旧文件还在，下次打开时丢弃已经写出的分段重新迁移
+     */
+    private void migrateLegacy(File legacy) {
+        for (File f : listSegmentFiles()) {
+            f.delete();
+        }
+        createFirstSegment();
+        try (RandomAccessFile raf = new RandomAccessFile(legacy, "r")) {
+            long size = raf.length();
+            if (size < 4)
+                Panic.panic(Error.BadLogFileException);
+            int xChecksum = raf.readInt();
+
+            long valid = xChecksum == 0 ? 4 : -1;  // 校验和与 [XChecksum] 相等的最长前缀的结束位置
+            int xCheck = 0;
+            long pos = 4;
+            byte[] log;
+            while ((log = readLegacy(raf, pos, size)) != null) {
+                xCheck = calCheckNum(xCheck, log);
+                pos += log.length;
+                if (xCheck == xChecksum)
+                    valid = pos;
+            }
+            if (valid < 0)
+                Panic.panic(Error.BadLogFileException);
+
+            pos = 4;
+            while (pos < valid) {
+                log = readLegacy(raf, pos, valid);
+                log(Arrays.copyOfRange(log, 8, log.length));
+                pos += log.length;
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
-        byte[] log = buf.array();
-        int checkNum1 = calCheckNum(0, Arrays.copyOfRange(log, OF_DATA, log.length));  // 计算当前日志的校验和
-        int checkNum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));  // 当前日志存储的校验和
-        if (checkNum1 != checkNum2)
+        flush();
+        legacy.delete();
+        syncDirectory();
+    }
+
+    /**
+     * 读取旧格式中 pos 处的一条日志 [Size][Checksum][Data]
+     *
+     * @return 不完整或校验和不对时返回 null
+     */
+    private static byte[] readLegacy(RandomAccessFile raf, long pos, long size) throws IOException {
+        if (pos + 8 > size)
+            return null;
+        raf.seek(pos);
+        int length = raf.readInt();
+        if (length < 0 || pos + 8 + length > size)
+            return null;
+        byte[] log = new byte[8 + length];
+        raf.seek(pos);
+        raf.readFully(log);
+        int checksum = calCheckNum(0, Arrays.copyOfRange(log, 8, log.length));
+        if (checksum != ByteCodec.getInt(log, 4))
             return null;
-        position += log.length;
         return log;
     }
 
     /**
-     * 单条文件的校验和
+     * 旧格式的校验和
      * 把每个字节按顺序组合进一个整数 xCheck 中，计算出一个 校验和，用于后续校验数据完整性
-     * 在日志系统、数据库写入、数据传输中经常用来检测数据是否损坏或篡改
      */
-    private int calCheckNum(int xCheck, byte[] log) {
+    private static int calCheckNum(int xCheck, byte[] log) {
         for (byte b : log)
             // 逐步混合进每个字节的值
             // 保证顺序敏感、内容敏感（只要内容或顺序变，校验值就变）
@@ -222,79 +486,395 @@ public class LoggerImpl implements Logger {
         return xCheck;
     }
 
-    @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
-        lock.lock();
+    /**
+     * 读取下一条日志的 [Data]，到达日志末尾或遇到不完整的日志时返回 null
+     */
+    private byte[] internNext() {
+        while (true) {
+            Map.Entry<Long, Segment> e = segments.floorEntry(position);
+            if (e == null)
+                return null;
+            Segment seg = e.getValue();
+            if (position == seg.base)  // 上一个分段恰好读完
+                position += SEGMENT_HEADER;
+            byte[] log = readRecord(seg, true);
+            if (log != null)
+                return log;
+            if (!segments.containsKey(position))  // 这个分段读完了，并且下一个分段恰好从这里开始时继续读下一个分段
+                return null;
+        }
+    }
+
+    /**
+     * 从分段 seg 中读取 position 处的一条完整日志 [Size][Checksum][Lsn][Data]，返回其中的 [Data]
+     *
+     * @param sealed 分段是否已经写完：写完的分段读到文件末尾时，position 停在文件末尾，由调用者转到下一个分段
+     * @return 到达分段末尾或日志不完整时返回 null
+     */
+    private byte[] readRecord(Segment seg, boolean sealed) {
+        FileChannel fc = reader(seg);
+        long offset = position - seg.base;
         try {
-            fc.position(fc.size());  // 把新的日志写入末尾
-            fc.write(buf);
+            if (!fill(fc, offset, OF_DATA)) {
+                if (sealed && offset == readSize)
+                    position = seg.base + readSize;
+                return null;
+            }
+            int p = (int) (offset - bufStart);
+            int length = ByteCodec.getInt(readBuf, p + OF_SIZE);
+            if (length < 0 || length > Integer.MAX_VALUE - OF_DATA || ByteCodec.getLong(readBuf, p + OF_LSN) != position)
+                return null;
+            if (!fill(fc, offset, OF_DATA + length))
+                return null;
+            p = (int) (offset - bufStart);
+            if (checksum(readCrc, readBuf, p, length) != ByteCodec.getInt(readBuf, p + OF_CHECKSUM))
+                return null;
+            position += OF_DATA + length;
+            return Arrays.copyOfRange(readBuf, p + OF_DATA, p + OF_DATA + length);
         } catch (IOException e) {
             Panic.panic(e);
+            return null;
+        }
+    }
+
+    /**
+     * 保证分段中 [offset, offset + need) 在读缓冲区中，需要时从文件读入一块。
+     * 目标在缓冲区之前时（撤销按 LSN 倒序读取），新的一块在目标位置之后只多读 BACKWARD_SLACK 字节，之前的日志大多也在这一块中
+     *
+     * @return 超出文件末尾时返回 false
+     */
+    private boolean fill(FileChannel fc, long offset, int need) throws IOException {
+        if (offset >= bufStart && offset + need <= bufStart + bufLen)
+            return true;
+        long size = readSize = fc.size();
+        if (offset + need > size)
+            return false;
+        int cap = Math.max(READ_CHUNK, need);
+        if (readBuf == null || readBuf.length < cap)
+            readBuf = new byte[cap];
+        long start = offset;
+        if (bufLen > 0 && offset < bufStart)
+            start = Math.max(0, Math.min(offset, offset + need + BACKWARD_SLACK - cap));
+        int len = (int) Math.min(cap, size - start);
+        ByteBuffer buf = ByteBuffer.wrap(readBuf, 0, len);
+        while (buf.hasRemaining() && fc.read(buf, start + buf.position()) > 0) {
+        }
+        bufStart = start;
+        bufLen = buf.position();
+        return offset + need <= bufStart + bufLen;
+    }
+
+    private FileChannel reader(Segment seg) {
+        if (readSegment != seg) {
+            closeReader();
+            try {
+                reader = FileChannel.open(seg.file.toPath(), StandardOpenOption.READ);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            readSegment = seg;
+        }
+        return reader;
+    }
+
+    private void closeReader() {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        reader = null;
+        readSegment = null;
+        bufStart = 0;
+        bufLen = 0;
+    }
+
+    /**
+     * raw 中从 off 开始、数据长度为 len 的日志的 Data 与 Lsn 的 CRC32C，LSN 直接从日志头中读取，不另外分配数组
+     */
+    private static int checksum(CRC32C crc, byte[] raw, int off, int len) {
+        crc.reset();
+        crc.update(raw, off + OF_DATA, len);
+        crc.update(raw, off + OF_LSN, 8);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 把日志追加到缓冲区，返回它的结束位置。当前分段放不下时先开始一个新的分段。缓冲区过大时等待刷盘
+     */
+    @Override
+    public long log(byte[] data) {
+        byte[] log = new byte[OF_DATA + data.length];
+        ByteCodec.putInt(log, OF_SIZE, data.length);
+        System.arraycopy(data, 0, log, OF_DATA, data.length);
+        CRC32C crc = new CRC32C();
+        crc.update(data);  // 数据部分的校验在锁外计算，LSN 在锁内确定后再加入
+
+        long lsn;
+        lock.lock();
+        try {
+            long used = appendedLsn - current.base;
+            if (used > SEGMENT_HEADER && used + log.length > segmentSize) {  // 日志不跨越分段，超过分段大小的日志单独占一个分段
+                Segment seg = new Segment(current.no + 1, appendedLsn, segmentFile(current.no + 1));
+                segments.put(seg.base, seg);
+                current = seg;
+                append(segmentHeader(seg.base));
+            }
+            ByteCodec.putLong(log, OF_LSN, appendedLsn);
+            crc.update(log, OF_LSN, 8);
+            ByteCodec.putInt(log, OF_CHECKSUM, (int) crc.getValue());
+            append(log);
+            lsn = appendedLsn;
+            if (buffered >= FLUSH_THRESHOLD)
+                flushRequested.signal();
         } finally {
             lock.unlock();
         }
-        updateXChecksum(log);
+        if (lsn - flushedLsn > MAX_BUFFERED)
+            flush(lsn);
+        return lsn;
     }
 
     /**
-     * 将数据解析成完整的log格式 [Size][Checksum][Data]
+     * 在锁内追加到缓冲区
      */
-    private byte[] wrapLog(byte[] data) {
-        byte[] checkSum = Parser.int2Byte(calCheckNum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        return Bytes.concat(size, checkSum, data);
+    private void append(byte[] bytes) {
+        if (buffered + bytes.length > buffer.length)
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, buffered + bytes.length));
+        System.arraycopy(bytes, 0, buffer, buffered, bytes.length);
+        buffered += bytes.length;
+        appendedLsn += bytes.length;
+    }
+
+    @Override
+    public void flush(long lsn) {
+        if (lsn <= flushedLsn)
+            return;
+        lock.lock();
+        try {
+            if (lsn > requestedLsn) {
+                requestedLsn = lsn;
+                flushRequested.signal();
+            }
+            while (flushedLsn < lsn) {
+                if (closed)
+                    Panic.panic(Error.BadLogFileException);
+                flushed.awaitUninterruptibly();
+            }
+        } finally {
+            lock.unlock();
+        }
     }
 
     /**
-     * 更新总校验值
+     * 刷盘线程完成的批次数：同一批中的日志共用一次 fsync
      */
-    private void updateXChecksum(byte[] log) {
-        this.xChecksum = calCheckNum(this.xChecksum, log);
+    long getFlushCount() {
+        return flushCount;
+    }
+
+    @Override
+    public long flush() {
+        long lsn;
+        lock.lock();
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(this.xChecksum)));
-            fc.force(false);
+            lsn = appendedLsn;
+        } finally {
+            lock.unlock();
+        }
+        flush(lsn);
+        return lsn;
+    }
+
+    /**
+     * 刷盘线程：等到有 flush 请求或缓冲区达到 FLUSH_THRESHOLD，交换缓冲区后在锁外写入并 fsync
+     */
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            int length;
+            long start;
+            lock.lock();
+            try {
+                while (!closed && requestedLsn <= flushedLsn && buffered < FLUSH_THRESHOLD) {
+                    flushRequested.awaitUninterruptibly();
+                }
+                if (buffered == 0) {
+                    if (closed)
+                        return;
+                    continue;
+                }
+                batch = buffer;
+                length = buffered;
+                start = flushedLsn;
+                buffer = spare;
+                buffered = 0;
+            } finally {
+                lock.unlock();
+            }
+
+            writeBatch(batch, length, start);
+
+            lock.lock();
+            try {
+                spare = batch.length > FLUSH_THRESHOLD * 4 ? new byte[FLUSH_THRESHOLD] : batch;  // 偶尔的大批次不长期占用内存
+                flushedLsn = start + length;
+                flushCount++;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 把从 start 开始的一批日志写入各自的分段并落盘。
+     * 一个分段写满之后先落盘再写下一个分段，打开时只需要逐条检查最后一个分段
+     */
+    private void writeBatch(byte[] batch, int length, long start) {
+        long lsn = start;
+        int off = 0;
+        Segment seg = null;
+        try {
+            while (off < length) {
+                seg = segments.floorEntry(lsn).getValue();
+                Long nextBase = segments.higherKey(seg.base);
+                int n = nextBase == null ? length - off : (int) Math.min(length - off, nextBase - lsn);
+                if (seg.writer == null) {
+                    boolean created = !seg.file.exists();
+                    seg.writer = FileChannel.open(seg.file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    if (created)
+                        syncDirectory();
+                }
+                ByteBuffer buf = ByteBuffer.wrap(batch, off, n);
+                long pos = lsn - seg.base - off;
+                while (buf.hasRemaining()) {
+                    seg.writer.write(buf, pos + buf.position());
+                }
+                lsn += n;
+                off += n;
+                if (nextBase != null && lsn == nextBase) {  // 分段写满
+                    seg.writer.force(false);
+                    seg.writer.close();
+                    seg.writer = null;
+                    seg = null;
+                }
+            }
+            if (seg != null)
+                seg.writer.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
     }
 
+    /**
+     * 新建或删除分段文件后，把目录项落盘
+     */
+    private void syncDirectory() {
+        FileUtil.syncDirectory(new File(path + LOG_SUFFIX));
+    }
+
     @Override
-    public void truncate(long x) throws IOException {
+    public byte[] next() {
         lock.lock();
         try {
-            fc.truncate(x);
+            return internNext();
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 日志指针置为第一个分段的第一条日志
+     */
     @Override
-    public byte[] next() {
+    public void rewind() {
+        position = segments.firstKey() + SEGMENT_HEADER;
+    }
+
+    /**
+     * 日志指针置为 lsn。lsn 恰好是某个分段的开始位置时，读取时跳过分段头
+     */
+    @Override
+    public void rewind(long lsn) {
+        if (lsn < segments.firstKey())  // 所在的分段已经被删除
+            Panic.panic(Error.BadLogFileException);
+        position = lsn;
+    }
+
+    @Override
+    public long getPosition() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return position;
         } finally {
             lock.unlock();
         }
     }
 
     @Override
-    public void rewind() {
-        position = 4;
+    public long getAppendedLsn() {
+        return appendedLsn;
     }
 
+    /**
+     * 从最旧的分段开始删除，直到遇到结束位置超过 lsn（或者还没有落盘）的分段。剩下的分段仍然首尾相接
+     */
+    @Override
+    public int deleteBefore(long lsn) {
+        int deleted = 0;
+        lock.lock();
+        try {
+            long limit = Math.min(lsn, flushedLsn);  // 写满的分段在 flushedLsn 越过它之前已经落盘并关闭
+            while (segments.size() > 1) {
+                Map.Entry<Long, Segment> first = segments.firstEntry();
+                if (segments.higherKey(first.getKey()) > limit)
+                    break;
+                Segment seg = first.getValue();
+                if (readSegment == seg)
+                    closeReader();
+                segments.remove(first.getKey());
+                if (!seg.file.delete())
+                    Panic.panic(Error.FileCannotRWException);
+                deleted++;
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (deleted > 0)
+            syncDirectory();
+        return deleted;
+    }
+
+    /**
+     * 写完缓冲区中剩余的日志，停止刷盘线程后关闭文件
+     */
     @Override
     public void close() {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
+            closed = true;
+            flushRequested.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
             Panic.panic(e);
         }
+        closeReader();
+        for (Segment seg : segments.values()) {
+            if (seg.writer != null) {
+                try {
+                    seg.writer.close();
+                } catch (IOException e) {
+                    Panic.panic(e);
+                }
+                seg.writer = null;
+            }
+        }
     }
 }
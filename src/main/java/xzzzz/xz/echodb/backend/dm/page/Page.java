@@ -13,6 +13,32 @@ public interface Page {
 
     boolean isDirty();
 
+    /**
+     * 开始一次“先改内存、后写日志”的修改（DataItem.before），或者一次在页面锁外写日志的插入，修改结束前后台写回线程不会写回这个页面。
+     * 页面在这里就登记为脏页面，登记时的日志位置不晚于这次修改的日志
+     */
+    void startUpdate();
+
+    /**
+     * 结束修改（DataItem.after / unBefore），并把页面标记为脏页面
+     */
+    void endUpdate();
+
+    /**
+     * 是否有尚未结束的修改，需持有页面锁调用
+     */
+    boolean isUpdating();
+
+    /**
+     * 记录页面上一次修改的日志 LSN，只增不减。写回页面之前，到这个 LSN 为止的日志必须先落盘
+     */
+    void updateLsn(long lsn);
+
+    /**
+     * 页面上最后一次修改的日志 LSN，从文件读入之后还没有修改过时为 0
+     */
+    long getLsn();
+
     int getPageNumber();
 
     byte[] getData();
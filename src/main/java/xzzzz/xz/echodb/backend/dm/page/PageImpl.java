@@ -2,6 +2,7 @@ package xzzzz.xz.echodb.backend.dm.page;
 
 import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
 
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -41,8 +42,22 @@ public class PageImpl implements Page {
      * ✅ 避免频繁写磁盘（每次修改都立即写磁盘会很慢）
      * ✅ 利用内存做“写缓冲区”
      * ✅ 和“事务”、“日志”机制配合可以实现高性能又安全的数据管理
+     * <p>
+     * 页面变脏时会登记到 PageCache 的脏页表中，由后台写回线程按页号顺序批量写回
      */
-    private boolean dirty;
+    private volatile boolean dirty;
+
+    /**
+     * 正在进行中的修改数，由页面锁保护
+     * <p>
+     * DataItem 的修改是先改内存、再写 update 日志，修改期间页面上的数据还没有对应的日志，此时写回磁盘就违反了 WAL
+     */
+    private int updating;
+
+    /**
+     * 最后一次修改的日志 LSN，只在内存中，不写入页面
+     */
+    private final AtomicLong lsn = new AtomicLong();
 
     /**
      * 用于页面的锁
@@ -79,6 +94,8 @@ public class PageImpl implements Page {
     @Override
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if (dirty && pc != null)
+            pc.markDirty(this);
     }
 
     @Override
@@ -86,6 +103,43 @@ public class PageImpl implements Page {
         return this.dirty;
     }
 
+    @Override
+    public void startUpdate() {
+        lock.lock();
+        try {
+            updating++;
+            setDirty(true);  // 在写日志之前登记到脏页表，检查点不会漏掉这次修改
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void endUpdate() {
+        lock.lock();
+        try {
+            setDirty(true);
+            updating--;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isUpdating() {
+        return updating > 0;
+    }
+
+    @Override
+    public void updateLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);  // 同一页面上不同数据项的修改可能乱序记录
+    }
+
+    @Override
+    public long getLsn() {
+        return lsn.get();
+    }
+
     @Override
     public int getPageNumber() {
         return this.pageNumber;
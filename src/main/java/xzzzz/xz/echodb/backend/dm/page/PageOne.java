@@ -33,8 +33,8 @@ public class PageOne {
      * 设置"ValidCheck"为打开状态
      */
     public static void setVcOpen(Page pg) {
-        pg.setDirty(true);
         setVcOpen(pg.getData());
+        pg.setDirty(true);
     }
 
     /**
@@ -48,8 +48,8 @@ public class PageOne {
      * 设置"ValidCheck"为关闭状态
      */
     public static void setVcClose(Page pg) {
-        pg.setDirty(true);
         setVcClose(pg.getData());
+        pg.setDirty(true);
     }
 
     /**
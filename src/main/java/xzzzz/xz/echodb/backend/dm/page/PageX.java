@@ -1,9 +1,14 @@
 package xzzzz.xz.echodb.backend.dm.page;
 
 import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
-import xzzzz.xz.echodb.backend.utils.Parser;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
+import xzzzz.xz.echodb.backend.utils.Panic;
+import xzzzz.xz.echodb.commen.Error;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
 
 /**
  * 每个页面（page）在它的起始处（比如前两个字节）存了一个 2 字节的无符号整数，这个整数表示某种位置偏移，常见的是：空闲空间的起始位置 / 插入指针 / slot 表偏移等
@@ -16,22 +21,36 @@ import java.util.Arrays;
  * <p>
  * 对于普通页，基本上都是围绕着 FSO（Free Space Offset） 进行管理的
  * <p>
- * +----------------------+ ← 偏移 0
- * | Free Space Offset (2字节) | ← 通常为 2字节，值比如：120
- * +----------------------+
- * | Number of Records (2字节)|
- * +----------------------+
- * | Slot Directory        |
- * | ...                   |
- * +----------------------+
- * | Record Data Area      |
- * | ...                   |
- * +----------------------+
- * | 空闲空间              |
- * +----------------------+ ← 偏移 8192（页末）
- * 最前面的 Free Space Offset 就是 2 字节
- * 它告诉我们：“记录区目前写到哪里了”
- * 也可能是记录插入起点、slot表位置、表尾指针等
+ * 槽页（slotted page）格式：数据项从前往后追加，槽目录从页尾往前增长，数据项通过槽号间接寻址
+ * <p>
+ * +----------------------------+ ← 偏移 0
+ * | FSO (2字节，最高位为 1)      |
+ * +----------------------------+ ← 偏移 2
+ * | 旧格式遗留的数据项           |
+ * +----------------------------+ ← LegacyEnd
+ * | 数据项 ...                  |
+ * +----------------------------+ ← FSO
+ * | 空闲空间                    |
+ * +----------------------------+ ← PAGE_SIZE - 12 - 2 * SlotCount
+ * | Slot[SlotCount-1] ... Slot[0] |  每个槽 2 字节，记录数据项在页内的偏移，0 表示空槽，1 表示待插入的槽
+ * +----------------------------+ ← PAGE_SIZE - 12
+ * | PageLsn (8字节)             |
+ * +----------------------------+ ← PAGE_SIZE - 4
+ * | LegacyEnd (2字节)           |
+ * | SlotCount (2字节)           |
+ * +----------------------------+ ← 偏移 8192（页末）
+ * <p>
+ * uid 的低 16 位是数据项标识：最高位为 1 时低 15 位是槽号，否则是旧格式的页内偏移。
+ * 槽号在页面内永远不变，数据项在页内移动（压缩）时只需要修改槽目录，B+ 树中保存的 uid 不受影响。
+ * 压缩时无效数据项的槽被置为空槽且不再复用，指向它的旧 uid 之后读取到的是“不存在”，而不会是别的数据项。
+ * <p>
+ * 旧格式的页面（FSO 最高位为 0）没有槽目录，第一次向其中插入时原地迁移：把当前的 FSO 记为 LegacyEnd，在页尾建立空的槽目录。
+ * 迁移只依赖页面当前的 FSO，可以重复执行，因此不单独记日志：恢复例程重做槽插入时遇到旧格式页面，会先做同样的迁移。
+ * 旧数据项仍然按偏移寻址，[2, LegacyEnd) 区域的数据项永远不会被移动。
+ * <p>
+ * PageLsn 是页面上最后一次有日志的修改（插入、修改、页面映像）的日志结束位置，与日志一起在页面锁内更新。
+ * 恢复时跳过结束位置不超过 PageLsn 的日志：页面映像之前的插入和修改已经包含在映像中，它们引用的槽可能已经被压缩回收。
+ * 旧格式的页面没有 PageLsn，它们的日志总是重做（旧格式页面不会被压缩，重做是幂等的）。
  */
 public class PageX {
 
@@ -39,23 +58,80 @@ public class PageX {
 
     private static final short OF_DATA = 2;  // 默认已经写到第二个字节处了
 
-    public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
+    /**
+     * FSO 的最高位，标记槽页
+     */
+    private static final int SLOTTED = 0x8000;
+
+    private static final int OF_SLOT_COUNT = PageCache.PAGE_SIZE - 2;
+
+    private static final int OF_LEGACY_END = PageCache.PAGE_SIZE - 4;
+
+    private static final int OF_PAGE_LSN = OF_LEGACY_END - 8;
+
+    /**
+     * 槽目录的结束位置（槽目录从这里往前增长）
+     */
+    private static final int OF_SLOTS = OF_PAGE_LSN;
+
+    private static final int SLOT_SIZE = 2;
+
+    /**
+     * 空槽：数据项已经被压缩回收，槽号不再复用
+     */
+    private static final int SLOT_EMPTY = 0;
+
+    /**
+     * 待插入的槽：恢复时重做了后面的槽，这个槽的插入还没有重做（或属于要撤销的事务），之后可以按日志建立
+     */
+    private static final int SLOT_PENDING = 1;
+
+    /**
+     * uid 低 16 位的最高位，为 1 时表示槽号
+     */
+    public static final int SLOT_ID_FLAG = 0x8000;
 
     /**
-     * 初始化第X页，并在头部设置2字节的FSO
+     * 单个数据项的最大长度，空页面中插入一个数据项还需要一个槽
+     */
+    public static final int MAX_FREE_SPACE = OF_SLOTS - OF_DATA - SLOT_SIZE;
+
+    /**
+     * 初始化第X页：空的槽页
      * @return 第X页的8K字节数组
      */
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
         setFSO(raw, OF_DATA);
+        setLegacyEnd(raw, OF_DATA);
+        setSlotCount(raw, 0);
         return raw;
     }
 
+    private static int getU16(byte[] raw, int offset) {
+        return ByteCodec.getUnsignedShort(raw, offset);
+    }
+
+    private static void putU16(byte[] raw, int offset, int value) {
+        ByteCodec.putShort(raw, offset, (short) value);
+    }
+
+    /**
+     * 是否是槽页
+     */
+    public static boolean isSlotted(Page pg) {
+        return isSlotted(pg.getData());
+    }
+
+    private static boolean isSlotted(byte[] raw) {
+        return (getU16(raw, OF_FREE) & SLOTTED) != 0;
+    }
+
     /**
-     * 设置空闲空间偏移量
+     * 设置空闲空间偏移量，同时标记为槽页
      */
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    private static void setFSO(byte[] raw, int ofData) {
+        putU16(raw, OF_FREE, ofData | SLOTTED);
     }
 
     /**
@@ -69,39 +145,290 @@ public class PageX {
      * 获取空闲空间偏移量
      */
     private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, OF_FREE, OF_DATA));
+        return (short) (getU16(raw, OF_FREE) & ~SLOTTED);
+    }
+
+    /**
+     * 槽目录中的槽数
+     */
+    public static int getSlotCount(Page pg) {
+        return getU16(pg.getData(), OF_SLOT_COUNT);
+    }
+
+    private static void setSlotCount(byte[] raw, int count) {
+        putU16(raw, OF_SLOT_COUNT, count);
+    }
+
+    private static int getLegacyEnd(byte[] raw) {
+        return getU16(raw, OF_LEGACY_END);
+    }
+
+    private static void setLegacyEnd(byte[] raw, int end) {
+        putU16(raw, OF_LEGACY_END, end);
+    }
+
+    /**
+     * 页面上最后一次有日志的修改的日志结束位置，旧格式的页面返回 0
+     */
+    public static long getPageLsn(Page pg) {
+        byte[] raw = pg.getData();
+        return isSlotted(raw) ? ByteCodec.getLong(raw, OF_PAGE_LSN) : 0;
+    }
+
+    /**
+     * 记录一次有日志的修改，PageLsn 只增不减（同一页面上不同数据项的修改可能乱序记录）。旧格式的页面不记录
+     * <p>
+     * 需持有页面锁，或在恢复等单线程场景下调用
+     */
+    public static void setPageLsn(Page pg, long lsn) {
+        byte[] raw = pg.getData();
+        if (isSlotted(raw) && ByteCodec.getLong(raw, OF_PAGE_LSN) < lsn)
+            ByteCodec.putLong(raw, OF_PAGE_LSN, lsn);
+    }
+
+    /**
+     * 第 slot 个槽在页内的位置
+     */
+    private static int slotPos(int slot) {
+        return OF_SLOTS - SLOT_SIZE * (slot + 1);
+    }
+
+    private static int getSlot(byte[] raw, int slot) {
+        return getU16(raw, slotPos(slot));
+    }
+
+    private static void setSlot(byte[] raw, int slot, int offset) {
+        putU16(raw, slotPos(slot), offset);
+    }
+
+    /**
+     * 槽号转换为 uid 中的数据项标识
+     */
+    public static short slotId(int slot) {
+        return (short) (SLOT_ID_FLAG | slot);
     }
 
     /**
-     * 获取页面的空闲空间大小
+     * 把旧格式的页面原地迁移为槽页，已经是槽页或页尾放不下槽目录时不做修改
+     * <p>
+     * 需持有页面锁，或在恢复等单线程场景下调用
+     *
+     * @return 页面迁移后（或本来就）是否是槽页
+     */
+    public static boolean migrate(Page pg) {
+        byte[] raw = pg.getData();
+        if (isSlotted(raw))
+            return true;
+        short fso = getFSO(raw);
+        if (fso > OF_SLOTS)  // 页尾已经被旧数据项占用，这一页也已经满了
+            return false;
+        setLegacyEnd(raw, fso);
+        setSlotCount(raw, 0);
+        ByteCodec.putLong(raw, OF_PAGE_LSN, 0);
+        setFSO(raw, fso);
+        pg.setDirty(true);
+        return true;
+    }
+
+    /**
+     * 获取页面的空闲空间大小，即还能插入的最长数据项（已经扣除新槽的空间）
+     * <p>
+     * 旧格式的页面按迁移之后计算
      */
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int) getFSO(pg.getData());
+        byte[] raw = pg.getData();
+        int slots = isSlotted(raw) ? getU16(raw, OF_SLOT_COUNT) : 0;
+        int free = OF_SLOTS - SLOT_SIZE * slots - getFSO(raw) - SLOT_SIZE;
+        return Math.max(free, 0);
+    }
+
+    /**
+     * 将数据项标识解析为页内偏移
+     *
+     * @return 数据项的偏移，槽号无效时返回 -1
+     */
+    public static int locate(Page pg, short id) {
+        int value = Short.toUnsignedInt(id);
+        if ((value & SLOT_ID_FLAG) == 0)  // 旧格式的偏移
+            return value;
+        byte[] raw = pg.getData();
+        int slot = value & ~SLOT_ID_FLAG;
+        if (!isSlotted(raw) || slot >= getU16(raw, OF_SLOT_COUNT))
+            return -1;
+        int offset = getSlot(raw, slot);
+        return offset < OF_DATA ? -1 : offset;  // 空槽或待插入的槽
+    }
+
+    /**
+     * 从 raws[from] 开始，最多有多少个数据项可以依次插入页面，每个数据项另占一个新槽
+     * <p>
+     * 旧格式的页面按迁移之后计算
+     */
+    public static int fitCount(Page pg, byte[][] raws, int from) {
+        int free = getFreeSpace(pg);
+        int count = 0;
+        for (int i = from; i < raws.length; i++) {
+            int need = raws[i].length + (count == 0 ? 0 : SLOT_SIZE);  // getFreeSpace 已经扣除了第一个新槽
+            if (need > free)
+                break;
+            free -= need;
+            count++;
+        }
+        return count;
     }
 
     /**
-     * 将raw插入pg中，返回插入位置
-     * 其实就是把raw复制到页面当前的偏移位置后，并更新FSO
+     * 将raw插入pg中，返回数据项标识（槽号）
+     * 把raw追加到页面当前的偏移位置后，在槽目录末尾新增一个槽指向它，并更新FSO
+     * <p>
+     * 调用者需要先迁移页面，并确认空闲空间足够
      */
     public static short insert(Page pg, byte[] raw) {
-        pg.setDirty(true);
-        short offset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short) (offset + raw.length));
-        return offset;
+        byte[] data = pg.getData();
+        short offset = getFSO(data);
+        int slot = getU16(data, OF_SLOT_COUNT);
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        setSlot(data, slot, offset);
+        setSlotCount(data, slot + 1);
+        setFSO(data, offset + raw.length);
+        pg.setDirty(true);  // 修改完成后再标记脏页面，登记到脏页表时页面内容已经是新的
+        return slotId(slot);
     }
 
     /**
      * 将raw插入pg中的指定offset位置，并将pg的offset设置为较大的offset
      * <p>
-     * 用于在数据库崩溃后重新打开时，恢复例程插入数据使用
+     * 用于在数据库崩溃后重新打开时，恢复例程重做/撤销旧格式的插入日志使用。
+     * 页面已经迁移为槽页时，旧数据项必须留在不可移动的 [2, LegacyEnd) 区域内
      */
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
+        byte[] data = pg.getData();
+        System.arraycopy(raw, 0, data, offset, raw.length);
+        int end = offset + raw.length;
+        if (getFSO(data) < end) {
+            if (isSlotted(data))
+                setFSO(data, end);
+            else
+                putU16(data, OF_FREE, end);
+        }
+        if (isSlotted(data) && getLegacyEnd(data) < end)
+            setLegacyEnd(data, end);
+        pg.setDirty(true);
+    }
+
+    /**
+     * 按槽插入日志重做/撤销插入：槽已经存在时写到槽当前指向的位置（数据项可能已经被压缩移动过），
+     * 槽还不存在或待插入时写到日志记录的 offset，并建立这个槽
+     * <p>
+     * 空槽说明数据项已经被压缩回收，offset 处现在可能是移动过来的其它数据项，不做任何修改：
+     * 重做时页面映像之后的日志才会被应用，不会遇到空槽；撤销时空槽与无效的数据项一样表示不存在
+     * <p>
+     * 用于在数据库崩溃后重新打开时，恢复例程插入数据使用
+     */
+    public static void recoverSlotInsert(Page pg, byte[] raw, int slot, short offset) {
+        if (!migrate(pg))
+            Panic.panic(Error.BadPageException);
+        byte[] data = pg.getData();
+        int count = getU16(data, OF_SLOT_COUNT);
+        int current = slot < count ? getSlot(data, slot) : SLOT_PENDING;
+        if (current == SLOT_EMPTY)
+            return;
+        if (current != SLOT_PENDING) {
+            System.arraycopy(raw, 0, data, current, raw.length);
+        } else {
+            System.arraycopy(raw, 0, data, offset, raw.length);
+            if (count <= slot) {
+                for (int i = count; i < slot; i++) {  // 中间的槽属于尚未重做（或不需要重做）的插入，先置为待插入
+                    setSlot(data, i, SLOT_PENDING);
+                }
+                setSlotCount(data, slot + 1);
+            }
+            setSlot(data, slot, offset);
+            if (getFSO(data) < offset + raw.length)
+                setFSO(data, offset + raw.length);
+        }
+        pg.setDirty(true);
+    }
+
+    /**
+     * 数据项 [ValidFlag(1)][DataSize(2)][Data] 的总长度
+     */
+    private static int itemLength(byte[] raw, int offset) {
+        return 3 + ByteCodec.getUnsignedShort(raw, offset + 1);
+    }
+
+    /**
+     * 槽页中可以被压缩回收的字节数：有效位已被置为无效的数据项（旧格式区域中的数据项不能移动，不计算在内）
+     */
+    public static int getDeadBytes(Page pg) {
+        byte[] raw = pg.getData();
+        if (!isSlotted(raw))
+            return 0;
+        int legacyEnd = getLegacyEnd(raw);
+        int count = getU16(raw, OF_SLOT_COUNT);
+        int dead = 0;
+        for (int slot = 0; slot < count; slot++) {
+            int offset = getSlot(raw, slot);
+            if (offset >= legacyEnd && raw[offset] != 0)
+                dead += itemLength(raw, offset);
+        }
+        return dead;
+    }
+
+    /**
+     * 槽页中数据项区域（LegacyEnd 之后）已经使用的字节数
+     */
+    public static int getUsedBytes(Page pg) {
+        byte[] raw = pg.getData();
+        return isSlotted(raw) ? getFSO(raw) - getLegacyEnd(raw) : 0;
+    }
+
+    /**
+     * 生成压缩后的页面映像：无效数据项的槽置为空槽（槽号不再复用），有效数据项按原来的顺序紧凑地排在 LegacyEnd 之后，
+     * 腾出的空间清零。不修改 pg 本身，调用者记录映像日志之后再把映像写入页面
+     *
+     * @return 没有可以回收的空间时返回 null
+     */
+    public static byte[] compact(Page pg) {
+        byte[] raw = pg.getData();
+        if (getDeadBytes(pg) == 0)
+            return null;
+        int legacyEnd = getLegacyEnd(raw);
+        int count = getU16(raw, OF_SLOT_COUNT);
+
+        // 按偏移排序需要移动的槽
+        List<int[]> live = new ArrayList<>();
+        for (int slot = 0; slot < count; slot++) {
+            int offset = getSlot(raw, slot);
+            if (offset >= legacyEnd)
+                live.add(new int[]{offset, slot});
+        }
+        live.sort(Comparator.comparingInt(e -> e[0]));
+
+        byte[] image = raw.clone();
+        Arrays.fill(image, legacyEnd, slotPos(count - 1), (byte) 0);
+        int fso = legacyEnd;
+        for (int[] e : live) {
+            int offset = e[0], slot = e[1];
+            if (raw[offset] != 0) {  // 无效的数据项，回收
+                setSlot(image, slot, SLOT_EMPTY);
+                continue;
+            }
+            int length = itemLength(raw, offset);
+            System.arraycopy(raw, offset, image, fso, length);
+            setSlot(image, slot, fso);
+            fso += length;
+        }
+        setFSO(image, fso);
+        return image;
+    }
+
+    /**
+     * 用页面映像覆盖整个页面，用于压缩和恢复例程重做映像日志
+     */
+    public static void applyImage(Page pg, byte[] image) {
+        System.arraycopy(image, 0, pg.getData(), 0, PageCache.PAGE_SIZE);
         pg.setDirty(true);
-        short rawOffset = getFSO(pg.getData());
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        if (rawOffset < offset + raw.length)
-            setFSO(pg.getData(), (short) (offset + raw.length));
     }
 
     /**
@@ -110,7 +437,7 @@ public class PageX {
      * 用于在数据库崩溃后重新打开时，恢复例程修改数据使用
      */
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
-        pg.setDirty(true);
         System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        pg.setDirty(true);
     }
 }
@@ -0,0 +1,56 @@
+package xzzzz.xz.echodb.backend.dm.pageCache;
+
+/**
+ * 页面帧池
+ * <p>
+ * 页面被驱逐后，它的 8K 字节数组回到池中，下一次未命中时直接复用，稳态读取时不再分配新的页面数组。
+ * 池的容量与缓存的最大帧数（由 -mem 决定）相同，帧在第一次需要时才分配。
+ * <p>
+ * 复用的前提是：页面引用计数归零后，不再有任何地方持有它的字节数组（DataItem 会固定住所在的页面）。
+ */
+public class FramePool {
+
+    private final byte[][] frames;
+
+    /**
+     * 池中空闲帧的个数
+     */
+    private int size;
+
+    /**
+     * 累计新分配的帧数
+     */
+    private long allocated;
+
+    public FramePool(int capacity) {
+        this.frames = new byte[Math.max(capacity, 1)][];
+    }
+
+    /**
+     * 取出一个帧，池为空时新分配。复用的帧里还是上一个页面的内容，调用者需要整页覆盖
+     */
+    public synchronized byte[] acquire() {
+        if (size > 0) {
+            byte[] frame = frames[--size];
+            frames[size] = null;
+            return frame;
+        }
+        allocated++;
+        return new byte[PageCache.PAGE_SIZE];
+    }
+
+    /**
+     * 归还一个帧，池已满时丢弃
+     */
+    public synchronized void recycle(byte[] frame) {
+        if (size < frames.length)
+            frames[size++] = frame;
+    }
+
+    /**
+     * 累计新分配的帧数
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+}
@@ -0,0 +1,109 @@
+package xzzzz.xz.echodb.backend.dm.pageCache;
+
+import xzzzz.xz.echodb.backend.utils.Panic;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * 以内存映射方式读取 .db 文件
+ * <p>
+ * 文件按 SEGMENT_SIZE（64MB）分段映射，每段只映射到当前文件末尾，不会因为映射而把文件撑大（页数是按文件长度计算的）。
+ * 页面未命中时直接从映射中拷贝，省去一次 read 系统调用；映射页由操作系统的页缓存管理驻留。
+ * <p>
+ * 写回仍然走 FileChannel：主流操作系统上文件映射和 read/write 共享同一份页缓存，写入立即对映射可见，落盘也仍由 fc.force 负责。
+ * 文件增长时（newPage）重新映射最后一段，截断时重新映射全部分段，避免访问文件末尾之外的映射。
+ */
+public class MappedPages {
+
+    /**
+     * 每个映射段的大小，必须是页面大小的整数倍
+     */
+    static final long SEGMENT_SIZE = 64L << 20;
+
+    private final FileChannel fc;
+
+    /**
+     * 各段的映射，整体替换，读取时不加锁
+     */
+    private volatile MappedByteBuffer[] segments = new MappedByteBuffer[0];
+
+    MappedPages(FileChannel fc, long length) {
+        this.fc = fc;
+        remap(length);
+    }
+
+    /**
+     * 从映射中读出 offset 处的一页到 dst
+     *
+     * @return 页面不在映射范围内时返回 false
+     */
+    boolean read(long offset, byte[] dst) {
+        MappedByteBuffer[] segs = segments;
+        int idx = (int) (offset / SEGMENT_SIZE);
+        if (idx >= segs.length)
+            return false;
+        MappedByteBuffer seg = segs[idx];
+        int pos = (int) (offset % SEGMENT_SIZE);
+        if (pos + dst.length > seg.capacity())
+            return false;
+        seg.get(pos, dst);  // 绝对位置读取，不修改 position，多个线程可以同时读
+        return true;
+    }
+
+    /**
+     * 文件增长后，按当前文件长度重新映射最后一个不完整的段以及新增的段
+     * <p>
+     * 并发的 newPage 可能先后调用，使用文件的实际长度而不是调用者的页号，映射只会变大
+     */
+    synchronized void grow() {
+        long length;
+        try {
+            length = fc.size();
+        } catch (IOException e) {
+            Panic.panic(e);
+            return;
+        }
+        MappedByteBuffer[] segs = segments;
+        int count = segmentCount(length);
+        int from = segs.length;
+        if (from > 0 && segs[from - 1].capacity() < SEGMENT_SIZE)
+            from--;
+        if (from == count)
+            return;
+        MappedByteBuffer[] next = Arrays.copyOf(segs, count);
+        for (int i = from; i < count; i++) {
+            next[i] = map(i, length);
+        }
+        segments = next;
+    }
+
+    /**
+     * 按当前文件长度重新映射全部分段
+     */
+    synchronized void remap(long length) {
+        int count = segmentCount(length);
+        MappedByteBuffer[] next = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            next[i] = map(i, length);
+        }
+        segments = next;
+    }
+
+    private MappedByteBuffer map(int idx, long length) {
+        long start = idx * SEGMENT_SIZE;
+        long size = Math.min(SEGMENT_SIZE, length - start);
+        try {
+            return fc.map(FileChannel.MapMode.READ_ONLY, start, size);
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        }
+    }
+
+    private static int segmentCount(long length) {
+        return (int) ((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+    }
+}
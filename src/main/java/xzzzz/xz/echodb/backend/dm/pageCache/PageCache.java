@@ -5,6 +5,10 @@ import xzzzz.xz.echodb.backend.utils.FileInfo;
 import xzzzz.xz.echodb.backend.utils.FileUtil;
 
 import java.io.File;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 /**
  * 定义了页面缓存的接口，包括新建页面、获取页面、释放页面缓存、关闭缓存、根据最大页号截断缓存、获取所有页面数量以及刷新页面等方法
@@ -18,6 +22,20 @@ public interface PageCache {
      */
     int newPage(byte[] initData);
 
+    /**
+     * 在文件末尾直接写入 pages 的前 count 个完整页面并落盘，不经过缓存和日志
+     *
+     * @return 第一个页面的页号，其余页面的页号依次递增
+     */
+    int appendPages(byte[][] pages, int count);
+
+    /**
+     * 新建 count 个页号连续的页面，内容都是 initData
+     *
+     * @return 第一个页面的页号，其余页面的页号依次递增
+     */
+    int newPages(byte[] initData, int count);
+
     /**
      * 根据页码获取页面
      */
@@ -48,6 +66,73 @@ public interface PageCache {
      */
     void flushPage(Page pg);
 
+    /**
+     * 提示即将读取 [pgno, pgno + count) 的页面，由后台线程异步预读，不在缓存中的页面以连续的大块读取装入缓存
+     */
+    void prefetch(int pgno, int count);
+
+    /**
+     * 同步地把 [pgno, pgno + count) 中不在缓存里的页面装入缓存（不固定），用于启动预热
+     */
+    void preload(int pgno, int count);
+
+    /**
+     * 页面当前被引用的次数（包括调用者自己持有的引用）
+     */
+    int getPinCount(int pgno);
+
+    /**
+     * 设置页面全部被固定、无法装入新页面时的处理：handler 释放了一些页面引用时返回 true，之后重新尝试驱逐
+     */
+    void setPressureHandler(BooleanSupplier handler);
+
+    /**
+     * 设置写回页面前让日志落盘的方法：参数为页面的 LSN，返回时到这个 LSN 为止的日志已经落盘
+     */
+    void setLogFlusher(LongConsumer flusher);
+
+    /**
+     * 设置后台脏页写回的间隔（毫秒）和每批最多写回的页数，下一轮生效
+     */
+    void setWriteBack(long interval, int batchSize);
+
+    /**
+     * 设置读取日志当前追加位置的方法：页面变脏时记录这个位置，作为页面上第一个未写回修改的日志位置的下界（recLsn）
+     */
+    void setLogPosition(LongSupplier position);
+
+    /**
+     * 写回 recLsn 不超过 lsn 的脏页面，然后 fsync（没有页面需要写回时也 fsync，让之前新建页面的写入落盘）
+     *
+     * @return 写回的页数
+     */
+    int flushUpTo(long lsn);
+
+    /**
+     * 脏页表的快照：页号 -> recLsn，不包括不记录日志的第一页
+     */
+    Map<Integer, Long> dirtyPageTable();
+
+    /**
+     * 当前驻留在缓存中的页号，升序
+     */
+    int[] residentPages();
+
+    /**
+     * 登记脏页面，由后台写回线程写回。已经登记的页面保留原来的 recLsn
+     */
+    void markDirty(Page pg);
+
+    /**
+     * 页面缓存命中次数
+     */
+    long getHitCount();
+
+    /**
+     * 页面缓存未命中（从磁盘读取）次数
+     */
+    long getMissCount();
+
     /**
      * 参考大部分数据库的设计，将默认数据页大小定为 8K。如果想要提升向数据库写入大量数据情况下的性能的话，也可以适当增大这个值
      */
@@ -71,19 +156,30 @@ public interface PageCache {
      * 静态工厂方法模式返回实现类
      */
     static PageCacheImpl create(String path, long memory) {
-        return access(path, memory, FileUtil.Mode.CREATE);
+        return create(path, memory, false);
+    }
+
+    /**
+     * @param mmap 是否以内存映射方式读取页面，每次打开数据库时单独选择
+     */
+    static PageCacheImpl create(String path, long memory, boolean mmap) {
+        return access(path, memory, FileUtil.Mode.CREATE, mmap);
     }
 
     /**
      * 用于后续启动时打开已存在的数据库文件
      */
     static PageCacheImpl open(String path, long memory) {
-        return access(path, memory, FileUtil.Mode.OPEN);
+        return open(path, memory, false);
+    }
+
+    static PageCacheImpl open(String path, long memory, boolean mmap) {
+        return access(path, memory, FileUtil.Mode.OPEN, mmap);
     }
 
-    private static PageCacheImpl access(String path, long memory, FileUtil.Mode mode) {
+    private static PageCacheImpl access(String path, long memory, FileUtil.Mode mode, boolean mmap) {
         File f = new File(path + PageCacheImpl.DB_SUFFIX);
         FileInfo fi = FileUtil.checkFileAndBuildInfo(f, mode);
-        return new PageCacheImpl((int) memory / PAGE_SIZE, fi.getRaf(), fi.getFc());
+        return new PageCacheImpl((int) (memory / PAGE_SIZE), fi.getRaf(), fi.getFc(), mmap);
     }
 }
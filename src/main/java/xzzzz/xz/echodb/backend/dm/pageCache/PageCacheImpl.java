@@ -1,6 +1,7 @@
 package xzzzz.xz.echodb.backend.dm.pageCache;
 
 import xzzzz.xz.echodb.backend.common.AbstractCache;
+import xzzzz.xz.echodb.backend.common.TwoQueuePolicy;
 import xzzzz.xz.echodb.backend.dm.page.Page;
 import xzzzz.xz.echodb.backend.dm.page.PageImpl;
 import xzzzz.xz.echodb.backend.utils.Panic;
@@ -10,12 +11,27 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.function.LongSupplier;
 
 /**
- * 基于引用计数策略的缓存框架
+ * 页面缓冲池
+ * <p>
+ * 在引用计数的基础上加入 2Q 置换：页面被释放后仍然驻留在内存中，再次访问时直接命中；
+ * 只有当缓存帧数达到 -mem 指定的上限时，才会驱逐一个未被引用的冷页面（脏页面驱逐前先写回磁盘）。
+ * <p>
+ * 脏页面登记在按页号排序的脏页表中，由后台的 PageWriter 批量写回，每批只 fsync 一次；
+ * 前台的插入、修改只需要等待日志落盘。驱逐时的写回也不再 fsync，崩溃后由日志重做。
  */
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
@@ -25,17 +41,83 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     private RandomAccessFile file;
 
+    /**
+     * 页面读写都使用带位置参数的 read/write，不修改通道的当前位置，不同页面的 I/O 可以并行，不需要文件锁
+     */
     private FileChannel fc;
 
-    private Lock fileLock;
+    /**
+     * 内存映射模式下的文件映射，为 null 时未命中的页面通过 fc.read 读取
+     */
+    private final MappedPages mapped;
+
+    /**
+     * 页面帧池，被驱逐页面的字节数组在下一次未命中时复用
+     */
+    private final FramePool frames;
+
+    /**
+     * 页面预读
+     */
+    private final Readahead readahead;
+
+    /**
+     * 预读时一次读取多个连续页面的缓冲区，只由预读线程使用
+     */
+    private ByteBuffer readaheadBuf;
 
     /**
      * 当前这个数据库文件中一共已经有多少页
      */
     private AtomicInteger pageNumbers;
 
+    /**
+     * 脏页表：等待写回的页号 -> recLsn，按页号升序排列，写回时尽量顺序写
+     * <p>
+     * recLsn 是页面从干净变脏时日志的追加位置，页面上第一个没有写回的修改的日志不会早于它，检查点据此决定恢复从哪里开始重做。
+     * 修改页面的一方在写日志之前登记（DataItem.before、插入时的 startUpdate），写回线程在页面有进行中的修改时保留原来的 recLsn
+     */
+    private final ConcurrentSkipListMap<Integer, Long> dirtyPages;
+
+    /**
+     * 后台脏页写回线程，测试中可以先停掉它，再直接调用 flushDirty
+     */
+    final PageWriter writer;
+
+    /**
+     * 所有页面都被固定时调用，让上层缓存释放对页面的引用
+     */
+    private volatile BooleanSupplier pressureHandler;
+
+    /**
+     * 写回页面前让日志落盘，未设置时（例如恢复期间）不等待
+     */
+    private volatile LongConsumer logFlusher;
+
+    /**
+     * 日志当前的追加位置，未设置时 recLsn 记为 0
+     */
+    private volatile LongSupplier logPosition;
+
+    /**
+     * 聚集写一次最多合并的页数
+     */
+    private static final int MAX_RUN = 64;
+
+    /**
+     * 聚集写需要设置通道的当前位置，其它页面读写都是带位置参数的，不受影响
+     */
+    private final Lock positionLock = new ReentrantLock();
+
     public PageCacheImpl(int maxResource, RandomAccessFile file, FileChannel fc) {
-        super(maxResource);
+        this(maxResource, file, fc, false);
+    }
+
+    /**
+     * @param mmap 是否以内存映射方式读取页面
+     */
+    public PageCacheImpl(int maxResource, RandomAccessFile file, FileChannel fc, boolean mmap) {
+        super(maxResource, () -> new TwoQueuePolicy(maxResource / 16 + 1));  // 抗扫描：全表扫描不会冲掉点查询的热页面
 
         if (maxResource < MEM_MIN_LIM)  // 最大缓存资源数<内存最小限制
             Panic.panic(Error.MemTooSmallException);
@@ -49,8 +131,13 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
         this.file = file;
         this.fc = fc;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int) length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int) (length / PAGE_SIZE));
+        this.frames = new FramePool(maxResource);
+        this.readahead = new Readahead(this, maxResource);
+        this.mapped = mmap ? new MappedPages(fc, length) : null;
+        this.dirtyPages = new ConcurrentSkipListMap<>();
+        this.writer = new PageWriter(this);
+        writer.start();
     }
 
     /**
@@ -61,56 +148,407 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         int pgno = (int) key;
         long offset = pageOffset(pgno);  // 根据页码计算偏移量
 
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);  // 分配一个一页大小的buffer
-        fileLock.lock();
+        readahead.onMiss(pgno);
+        byte[] frame = frames.acquire();  // 从帧池中取一个一页大小的帧
+        if (mapped == null || !mapped.read(offset, frame)) {  // 内存映射模式下直接从映射中拷贝
+            try {
+                readPage(offset, frame);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        return new PageImpl(pgno, frame, this);
+    }
+
+    /**
+     * 从文件的 offset 位置读满一页到 frame
+     */
+    private void readPage(long offset, byte[] frame) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(frame);
+        while (buf.hasRemaining()) {
+            int n = fc.read(buf, offset + buf.position());
+            if (n < 0) break;
+        }
+        Arrays.fill(frame, buf.position(), PAGE_SIZE, (byte) 0);  // 读到文件末尾时，复用帧中剩余的旧内容清零
+    }
+
+    /**
+     * 预读 [start, start + count) 中不在缓存里的页面，由预读线程调用
+     * <p>
+     * 先把这些页面登记为装载中（期间其它线程的 getPage 会等待预读完成），再对登记到的页面范围发起一次连续读取，
+     * 最后以引用计数 0 放入缓存。登记在读取之前，因此读到的一定是页面的最新内容。
+     */
+    void loadRange(int start, int count) {
+        boolean[] reserved = new boolean[count];
+        int first = -1, last = -1;
+        for (int i = 0; i < count; i++) {
+            if (reservePrefetch(start + i)) {
+                reserved[i] = true;
+                if (first < 0) first = i;
+                last = i;
+            }
+        }
+        if (first < 0)
+            return;
+
+        int done = first;
         try {
-            fc.position(offset);  // 从文件通道位置读取数据至buffer
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            int span = last - first + 1;
+            if (mapped == null)
+                readSpan(pageOffset(start + first), span);
+            for (; done <= last; done++) {
+                if (!reserved[done])
+                    continue;
+                int pgno = start + done;
+                byte[] frame = frames.acquire();
+                if (mapped == null)
+                    readaheadBuf.get((done - first) * PAGE_SIZE, frame);
+                else if (!mapped.read(pageOffset(pgno), frame))  // 内存映射模式下逐页从映射拷贝，映射范围外的页面单独读取
+                    readPage(pageOffset(pgno), frame);
+                completePrefetch(pgno, new PageImpl(pgno, frame, this));
+            }
+        } catch (Exception e) {
+            for (; done <= last; done++) {  // 预读失败，让等待的线程自己回源
+                if (reserved[done])
+                    completePrefetch(start + done, null);
+            }
+        }
+    }
+
+    /**
+     * 从 offset 开始连续读取 pages 个页面到 readaheadBuf，文件末尾之后的部分清零
+     */
+    private void readSpan(long offset, int pages) throws IOException {
+        int len = pages * PAGE_SIZE;
+        if (readaheadBuf == null || readaheadBuf.capacity() < len)
+            readaheadBuf = ByteBuffer.allocate(Math.max(len, readahead.getMaxWindow() * PAGE_SIZE));
+        readaheadBuf.clear().limit(len);
+        while (readaheadBuf.hasRemaining()) {
+            int n = fc.read(readaheadBuf, offset + readaheadBuf.position());
+            if (n < 0) break;
         }
-        fileLock.unlock();
-        return new PageImpl(pgno, buf.array(), this);
+        Arrays.fill(readaheadBuf.array(), readaheadBuf.position(), len, (byte) 0);
+    }
+
+    /**
+     * 提示即将顺序读取 [pgno, pgno + count) 的页面，后台异步预读
+     */
+    @Override
+    public void prefetch(int pgno, int count) {
+        readahead.submit(pgno, count);
+    }
+
+    @Override
+    public void preload(int pgno, int count) {
+        int end = Math.min(pgno + count - 1, getTotalPageNumber());
+        int step = readahead.getMaxWindow();
+        for (int start = Math.max(pgno, 1); start <= end; start += step) {
+            loadRange(start, Math.min(step, end - start + 1));
+        }
+    }
+
+    @Override
+    public int getPinCount(int pgno) {
+        return referenceCount(pgno);
+    }
+
+    @Override
+    public void setPressureHandler(BooleanSupplier handler) {
+        this.pressureHandler = handler;
+    }
+
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {
+        this.logFlusher = flusher;
+    }
+
+    @Override
+    public void setWriteBack(long interval, int batchSize) {
+        writer.setInterval(interval);
+        writer.setBatchSize(batchSize);
+    }
+
+    @Override
+    public void setLogPosition(LongSupplier position) {
+        this.logPosition = position;
+    }
+
+    /**
+     * WAL：等待到 lsn 为止的日志落盘，之后才能写回修改到这个 LSN 的页面
+     */
+    private void flushLog(long lsn) {
+        LongConsumer flusher = logFlusher;
+        if (flusher != null && lsn > 0)
+            flusher.accept(lsn);
     }
 
     /**
-     * 在驱逐页面时将脏页面写回磁盘，保证持久化
+     * 缓存中的 DataItem 即使没有被使用也固定着所在的页面，所有页面都被固定时先让它们驱逐一部分
+     */
+    @Override
+    protected boolean relieve() {
+        BooleanSupplier handler = pressureHandler;
+        return handler != null && handler.getAsBoolean();
+    }
+
+    /**
+     * 帧池累计新分配的帧数，与未命中次数对比可以看出帧的复用情况
+     */
+    public long getAllocatedFrames() {
+        return frames.getAllocated();
+    }
+
+    @Override
+    public int[] residentPages() {
+        return residentKeys().stream().mapToInt(Long::intValue).sorted().toArray();
+    }
+
+    /**
+     * 在驱逐页面时将脏页面写回磁盘（不 fsync，由后台写回线程的下一批或关闭时统一落盘）
+     * <p>
+     * 在分段锁之外调用，等待日志落盘和写回不会阻塞其它页面的命中；写回完成之前，对这个页面的 getPage 会等待，不会读到旧的页面映像。
+     * 被驱逐的页面引用计数为 0，没有进行中的修改，也不会和后台写回线程同时写同一个页面
      */
     @Override
     protected void releaseForCache(Page pg) {
         if (pg.isDirty()) {
-            flush(pg);
+            flushLog(pg.getLsn());
+            write(pg);
             pg.setDirty(false);
         }
+        dirtyPages.remove(pg.getPageNumber());
+        frames.recycle(pg.getData());  // 引用计数为 0，没有人再持有这个帧
     }
 
     @Override
     public int newPage(byte[] initData) {
         int pgno = pageNumbers.incrementAndGet();  // 新建页面时自增
         Page pg = new PageImpl(pgno, initData, null);
-        flush(pg);  // 新建的页面需要立刻写回
+        write(pg);  // 新建的页面写入文件以占住位置，崩溃后由日志重做页面内容
+        if (mapped != null)
+            mapped.grow();
         return pgno;
     }
 
     /**
-     * 将某个 Page 的数据从内存写回文件的操作，确保数据被同步保存到磁盘中，保证持久化
+     * 在文件末尾追加 count 个完整的页面：页号连续，用一次聚集写写入并 fsync，页面不进入缓存
+     */
+    @Override
+    public int appendPages(byte[][] pages, int count) {
+        int first = pageNumbers.getAndAdd(count) + 1;
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            bufs[i] = ByteBuffer.wrap(pages[i]);
+        }
+        writeRun(first, bufs);
+        force();
+        if (mapped != null)
+            mapped.grow();
+        return first;
+    }
+
+    /**
+     * 一次分配 count 个页号连续的新页面，内容都是 initData，用一次聚集写占住位置。
+     * 与 newPage 一样不 fsync，崩溃后由日志重做页面内容，日志中没有出现过的页面会被截断
+     */
+    @Override
+    public int newPages(byte[] initData, int count) {
+        int first = pageNumbers.getAndAdd(count) + 1;
+        ByteBuffer[] bufs = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            bufs[i] = ByteBuffer.wrap(initData);
+        }
+        writeRun(first, bufs);
+        if (mapped != null)
+            mapped.grow();
+        return first;
+    }
+
+    /**
+     * 从页面 first 开始，把 bufs 依次写入文件
+     */
+    private void writeRun(int first, ByteBuffer[] bufs) {
+        long remaining = (long) bufs.length * PAGE_SIZE;
+        positionLock.lock();
+        try {
+            fc.position(pageOffset(first));
+            while (remaining > 0) {
+                remaining -= fc.write(bufs);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            positionLock.unlock();
+        }
+    }
+
+    /**
+     * 标记脏页面，等待后台写回线程写回
+     */
+    @Override
+    public void markDirty(Page pg) {
+        int pgno = pg.getPageNumber();
+        if (dirtyPages.containsKey(pgno))  // 每次修改都会调用，已经登记的页面不读取日志位置
+            return;
+        LongSupplier position = logPosition;
+        dirtyPages.putIfAbsent(pgno, position == null ? 0 : position.getAsLong());
+    }
+
+    @Override
+    public int flushUpTo(long lsn) {
+        int written = flushDirty(Integer.MAX_VALUE, lsn);
+        if (written == 0)
+            force();
+        return written;
+    }
+
+    @Override
+    public Map<Integer, Long> dirtyPageTable() {
+        Map<Integer, Long> table = new TreeMap<>();
+        for (Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {  // 写回线程同时在删除，不能用按 size() 构造的 TreeMap(SortedMap)
+            if (e.getKey() != 1)
+                table.put(e.getKey(), e.getValue());
+        }
+        return table;
+    }
+
+    /**
+     * 按页号顺序写回至多 max 个脏页面，写完后统一 fsync 一次
+     * <p>
+     * 写回前先通过 getIfPresent 固定住页面，防止写回期间被驱逐；正在被驱逐的页面由驱逐的线程写回，等它写完再继续，
+     * 保证之后的 fsync 包括这次写回。
+     * 页面在页面锁的保护下写回，有进行中修改（还没有写日志）的页面留到下一轮。
+     * 页号连续的脏页面（例如批量插入时新分配的页面）合并成一次聚集写（write(ByteBuffer[])），最多 MAX_RUN 页一组。
+     * <p>
+     * 第一页只由 flushPage 和 close 写回：关闭时第一页的校验码必须在其它页面落盘之后才能落盘。
+     *
+     * @return 实际写回的页数
+     */
+    int flushDirty(int max) {
+        return flushDirty(max, Long.MAX_VALUE);
+    }
+
+    /**
+     * 与 flushDirty(max) 相同，但只写回 recLsn 不超过 upTo 的脏页面
+     */
+    private int flushDirty(int max, long upTo) {
+        List<Page> run = new ArrayList<>(MAX_RUN);  // 当前这组连续页面，都已固定并加锁
+        int written = 0;
+        for (Map.Entry<Integer, Long> e : dirtyPages.entrySet()) {
+            if (written + run.size() >= max)
+                break;
+            int pgno = e.getKey();
+            long recLsn = e.getValue();
+            if (pgno == 1 || recLsn > upTo)
+                continue;
+            if (!dirtyPages.remove(pgno, recLsn))  // 刚被驱逐或被其它线程写回
+                continue;
+            Page pg = getIfPresent(pgno);
+            if (pg == null) {
+                awaitPending(pgno);
+                continue;
+            }
+            if (!lockForWrite(pg, recLsn)) {
+                super.release(pgno);
+                continue;
+            }
+            if (!run.isEmpty() && run.get(run.size() - 1).getPageNumber() + 1 != pgno)
+                written += writeRun(run);
+            run.add(pg);
+            if (run.size() == MAX_RUN)
+                written += writeRun(run);
+        }
+        written += writeRun(run);
+        if (written > 0)
+            force();
+        return written;
+    }
+
+    /**
+     * 锁住一个需要写回的脏页面并清除脏标志
+     * <p>
+     * 写回线程按页号升序同时持有一组页面锁，而修改页面的线程同一时刻只持有一个页面锁，不会死锁
+     *
+     * @return 页面不需要写回时解锁并返回 false
+     */
+    private boolean lockForWrite(Page pg, long recLsn) {
+        pg.lock();
+        if (pg.isUpdating()) {  // 修改的日志还没写，下一轮再写回，保留原来的 recLsn
+            dirtyPages.merge(pg.getPageNumber(), recLsn, Math::min);
+            pg.unlock();
+            return false;
+        }
+        if (!pg.isDirty()) {
+            pg.unlock();
+            return false;
+        }
+        pg.setDirty(false);
+        return true;
+    }
+
+    /**
+     * 把一组页号连续、已加锁的页面用一次聚集写写回，然后解锁并释放
+     *
+     * @return 写回的页数
+     */
+    private int writeRun(List<Page> run) {
+        if (run.isEmpty())
+            return 0;
+        ByteBuffer[] bufs = new ByteBuffer[run.size()];
+        long lsn = 0;
+        for (int i = 0; i < bufs.length; i++) {
+            bufs[i] = ByteBuffer.wrap(run.get(i).getData());
+            lsn = Math.max(lsn, run.get(i).getLsn());
+        }
+        flushLog(lsn);  // 一组页面只等待一次
+        long remaining = (long) bufs.length * PAGE_SIZE;
+        positionLock.lock();  // 聚集写没有带位置参数的版本，使用通道的当前位置
+        try {
+            fc.position(pageOffset(run.get(0).getPageNumber()));
+            while (remaining > 0) {
+                remaining -= fc.write(bufs);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        } finally {
+            positionLock.unlock();
+        }
+        for (Page pg : run) {
+            pg.unlock();
+            super.release(pg.getPageNumber());
+        }
+        int n = run.size();
+        run.clear();
+        return n;
+    }
+
+    /**
+     * 将某个 Page 的数据从内存写回文件，不保证落盘
      * Page 在内存中修改了之后，需要在合适的时机刷回磁盘
-     * 写回操作使用锁来保证写入的原子性和线程安全性
+     * 同一个页面的写回由页面锁或缓存分段锁串行化，不同页面的写回互不影响
      */
-    private void flush(Page pg) {
+    private void write(Page pg) {
         int pgno = pg.getPageNumber();
         long offset = pageOffset(pgno);
 
-        fileLock.lock();  // 加锁，防止多个线程同时对文件写入，确保线程安全
         try {
             ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
+            while (buf.hasRemaining()) {
+                fc.write(buf, offset + buf.position());
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将已写入文件的数据同步到磁盘
+     */
+    private void force() {
+        try {
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
-        } finally {
-            fileLock.unlock();
         }
     }
 
@@ -123,12 +561,17 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public Page getPage(int pgno) throws Exception {
+        readahead.onAccess(pgno);
         return get(pgno);
     }
 
     @Override
     public void close() {
-        super.close();
+        readahead.close();
+        writer.close();
+        flushDirty(Integer.MAX_VALUE);  // 先让其它页面落盘
+        super.close();  // 再写回剩下的第一页（关闭状态的校验码）
+        force();
         try {
             fc.close();
             file.close();
@@ -150,6 +593,8 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         } catch (IOException e) {
             Panic.panic(e);
         }
+        if (mapped != null)
+            mapped.remap(size);
         pageNumbers.set(maxPgno);  // 截断后，最大的有效页号是 maxPgno，下一次新建页面时就会往后分配
     }
 
@@ -160,6 +605,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     @Override
     public void flushPage(Page pg) {
-        flush(pg);
+        pg.lock();
+        try {
+            pg.setDirty(false);
+            flushLog(pg.getLsn());
+            write(pg);
+        } finally {
+            pg.unlock();
+        }
+        force();
     }
 }
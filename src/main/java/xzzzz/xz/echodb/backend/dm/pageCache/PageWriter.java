@@ -0,0 +1,87 @@
+package xzzzz.xz.echodb.backend.dm.pageCache;
+
+import xzzzz.xz.echodb.backend.utils.Panic;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 后台脏页写回线程
+ * <p>
+ * 前台事务修改页面后只负责写日志，页面本身由这个线程每隔一段时间从脏页表中按页号顺序取出一批写回，
+ * 页号连续的脏页面合并成一次聚集写，整批写完后只调用一次 fsync。日志总是先于页面修改落盘（WAL），所以页面写回可以任意推迟，崩溃后由恢复例程重做。
+ * <p>
+ * 写回间隔和每批页数属于这个页面缓存，由 DataManagerOptions 设置，修改后下一轮生效。
+ */
+public class PageWriter implements Runnable {
+
+    /**
+     * 默认写回间隔（毫秒）
+     */
+    public static final long DEFAULT_INTERVAL = 200;
+
+    /**
+     * 默认每批最多写回的页数
+     */
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    private volatile long interval = DEFAULT_INTERVAL;
+
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    private final PageCacheImpl pc;
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    PageWriter(PageCacheImpl pc) {
+        this.pc = pc;
+        this.thread = new Thread(this, "page-writer");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            int written = pc.flushDirty(batchSize);
+            if (written < batchSize)  // 一批没写满说明脏页已经写完，等待下一轮；否则立即继续
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(interval));
+        }
+    }
+
+    /**
+     * 停止写回线程，并等待正在进行的一批写完
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 设置写回间隔（毫秒）
+     */
+    void setInterval(long millis) {
+        if (millis <= 0)
+            throw new IllegalArgumentException("flush interval must be positive");
+        interval = millis;
+    }
+
+    /**
+     * 设置每批最多写回的页数
+     */
+    void setBatchSize(int pages) {
+        if (pages <= 0)
+            throw new IllegalArgumentException("flush batch size must be positive");
+        batchSize = pages;
+    }
+}
@@ -0,0 +1,138 @@
+package xzzzz.xz.echodb.backend.dm.pageCache;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 页面预读
+ * <p>
+ * 1. 顺序检测：连续 3 次未命中的页号依次递增时（如打开数据库时逐页扫描、顺序分配的叶子节点），认为是顺序访问，在后台从下一页开始预读一个窗口；
+ * 访问到窗口的中间页时再预读下一个窗口，让磁盘读取和上层处理重叠。窗口从 MIN_WINDOW 开始，每次翻倍，直到 maxWindow。
+ * 2. 显式提示：上层知道接下来要读哪些页面时（范围查询拿到一批 uid），直接提交预读。
+ * <p>
+ * 预读任务由一个后台线程串行执行，每个任务对连续的页面只发起一次大块读取，读到的页面以引用计数 0 放入缓存。
+ */
+public class Readahead {
+
+    private static final int MIN_WINDOW = 8;
+
+    private static final int MAX_WINDOW = 64;
+
+    private final PageCacheImpl pc;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 单个预读任务最多读取的页数，不超过缓存容量的 1/4，避免预读把正在使用的页面挤出去
+     */
+    private final int maxWindow;
+
+    private int window = MIN_WINDOW;
+
+    private int lastMiss = -1;
+
+    /**
+     * 连续顺序未命中的次数
+     */
+    private int run;
+
+    /**
+     * 已经提交预读的最大页号
+     */
+    private int scheduledUpTo;
+
+    /**
+     * 访问到这个页号时预读下一个窗口
+     */
+    private volatile int trigger = -1;
+
+    Readahead(PageCacheImpl pc, int maxResource) {
+        this.pc = pc;
+        this.maxWindow = Math.max(1, Math.min(MAX_WINDOW, maxResource / 4));
+        this.executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, "page-readahead");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * 每次访问页面时调用，只有访问到触发页时才加锁
+     */
+    void onAccess(int pgno) {
+        if (pgno != trigger)
+            return;
+        synchronized (this) {
+            if (pgno != trigger)
+                return;
+            trigger = -1;
+            schedule(scheduledUpTo + 1);
+        }
+    }
+
+    /**
+     * 页面未命中时调用，检测顺序访问
+     */
+    synchronized void onMiss(int pgno) {
+        if (pgno == lastMiss + 1 || pgno == scheduledUpTo + 1) {
+            run++;
+        } else {
+            run = 0;
+            window = MIN_WINDOW;
+        }
+        lastMiss = pgno;
+        if (run >= 2 && pgno >= scheduledUpTo)
+            schedule(pgno + 1);
+    }
+
+    /**
+     * 从 start 开始预读一个窗口，窗口翻倍
+     */
+    private void schedule(int start) {
+        int count = Math.min(window, maxWindow);
+        if (start > pc.getTotalPageNumber())
+            return;
+        submit(start, count);
+        scheduledUpTo = start + count - 1;
+        trigger = start + count / 2;
+        window = Math.min(window * 2, maxWindow);
+    }
+
+    /**
+     * 提交预读 [pgno, pgno + count) 的任务，超过单个任务上限时拆分
+     */
+    void submit(int pgno, int count) {
+        int end = Math.min(pgno + count - 1, pc.getTotalPageNumber());
+        for (int start = Math.max(pgno, 1); start <= end; start += maxWindow) {
+            int s = start, n = Math.min(maxWindow, end - start + 1);
+            try {
+                executor.execute(() -> pc.loadRange(s, n));
+            } catch (Exception e) {  // 已关闭，忽略提示
+                return;
+            }
+        }
+    }
+
+    /**
+     * 单个预读任务最多读取的页数
+     */
+    int getMaxWindow() {
+        return maxWindow;
+    }
+
+    /**
+     * 丢弃还没开始的预读任务，并等待正在执行的任务结束
+     * <p>
+     * 不能中断预读线程：线程阻塞在 FileChannel 读取时被中断，会导致整个通道被关闭
+     */
+    void close() {
+        executor.getQueue().clear();
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
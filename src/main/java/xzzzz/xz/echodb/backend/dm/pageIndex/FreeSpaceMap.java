@@ -0,0 +1,70 @@
+package xzzzz.xz.echodb.backend.dm.pageIndex;
+
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.utils.FileUtil;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * 持久化的空闲空间表
+ * <p>
+ * 打开数据库时原本要读取每一页来计算空闲空间、填充 PageIndex，打开时间与数据库大小成正比，还会把缓存冲刷一遍。
+ * 现在正常关闭时把 PageIndex 中每一页的空闲空间写入 .fsm 文件，每页 2 字节：
+ * [PageNumber(4字节)][FreeSpace(2字节)] * PageNumber，下标从第 1 页开始（第一页恒为 0）。
+ * <p>
+ * 只有第一页的校验通过（上次正常关闭）时才读取这个文件；崩溃恢复之后，或者文件缺失、页数不符时，仍然逐页扫描重建。
+ * 写文件采用先写临时文件再重命名的方式，文件要么是旧的要么是完整的新的。
+ */
+public class FreeSpaceMap {
+
+    public static final String FSM_SUFFIX = ".fsm";
+
+    public static final String FSM_TMP_SUFFIX = ".fsm_tmp";
+
+    /**
+     * 把各段 PageIndex 中各页面的空闲空间写入 .fsm 文件
+     */
+    public static void save(String path, SegmentMap segments, int pageNumber) {
+        int[] spaces = segments.freeSpaces(pageNumber);
+        ByteBuffer buf = ByteBuffer.allocate(4 + pageNumber * 2);
+        buf.putInt(pageNumber);
+        for (int pgno = 1; pgno <= pageNumber; pgno++) {
+            buf.putShort((short) spaces[pgno]);
+        }
+        FileUtil.replaceAtomically(path, FSM_SUFFIX, FSM_TMP_SUFFIX, buf.array(), buf.position());
+    }
+
+    /**
+     * 从 .fsm 文件填充各页面所属段的 PageIndex（第一页除外）
+     *
+     * @return 文件可用并已填充时返回 true；返回 false 时 PageIndex 未被修改，调用者需要逐页重建
+     */
+    public static boolean load(String path, SegmentMap segments, int pageNumber) {
+        new File(path + FSM_TMP_SUFFIX).delete();
+        File f = new File(path + FSM_SUFFIX);
+        if (!f.exists())
+            return false;
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        } catch (IOException e) {
+            return false;
+        }
+        if (buf.remaining() < 4 || buf.getInt() != pageNumber || buf.remaining() != pageNumber * 2)
+            return false;
+
+        int[] spaces = new int[pageNumber + 1];
+        for (int pgno = 1; pgno <= pageNumber; pgno++) {
+            spaces[pgno] = Short.toUnsignedInt(buf.getShort());
+            if (spaces[pgno] > PageCache.PAGE_SIZE)
+                return false;
+        }
+        for (int pgno = 2; pgno <= pageNumber; pgno++) {
+            segments.indexOf(pgno).add(pgno, spaces[pgno]);
+        }
+        return true;
+    }
+}
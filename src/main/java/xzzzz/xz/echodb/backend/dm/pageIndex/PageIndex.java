@@ -2,10 +2,8 @@ package xzzzz.xz.echodb.backend.dm.pageIndex;
 
 import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
 
 /**
  * 这个页面索引的设计用于提高在数据库中进行插入操作时的效率。它缓存了每一页的空闲空间信息，以便在进行插入操作时能够快速找到合适的页面，而无需遍历磁盘或者缓存中的所有页面。
@@ -18,6 +16,13 @@ import java.util.concurrent.locks.ReentrantLock;
  * 被选择的页面会从 PageIndex 中移除，这意味着同一个页面不允许并发写入。在上层模块使用完页面后，需要将其重新插入 PageIndex，以便其他插入操作能够继续使用。
  * <p>
  * 总的来说，页面索引的设计旨在提高数据库的插入操作效率，通过缓存页面的空闲空间信息，避免了频繁地访问磁盘或者缓存中的页面，从而加速了插入操作的执行。
+ * <p>
+ * 并发：索引按线程分成若干条带，每个条带有自己的一组区间，区间是无锁的 ConcurrentLinkedDeque。
+ * add 把页面放回当前线程所在条带的区间头部，select 先从当前线程的条带中找，找不到再依次从其它条带“偷”一个页面。
+ * 这样不同连接的插入落在不同的页面上、互不竞争同一把锁，同一个连接连续插入时也总是拿回自己刚用过的（还在缓存中的）页面。
+ * <p>
+ * 每个页面当前有效的 PageInfo 另外登记在 current 中，select 和 take 通过从 current 中移除它来获得页面的独占使用权。
+ * take 按页号取走页面（后台压缩）后，区间里留下的旧 PageInfo 成为过期项，select 取到时直接丢弃。
  */
 public class PageIndex {
 
@@ -28,55 +33,92 @@ public class PageIndex {
 
     private final static int THRESHOLD = PageCache.PAGE_SIZE / INTERVALS_NO;
 
-    private Lock lock;
+    /**
+     * 条带数，取不小于处理器数两倍的 2 的幂
+     */
+    private final static int STRIPES = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+
+    /**
+     * stripes[条带][区间]
+     */
+    private final ConcurrentLinkedDeque<PageInfo>[][] stripes;
 
-    private List<PageInfo>[] lists;
+    /**
+     * 页号 -> 当前在索引中的 PageInfo
+     */
+    private final ConcurrentHashMap<Integer, PageInfo> current = new ConcurrentHashMap<>();
 
+    @SuppressWarnings("unchecked")
     public PageIndex() {
-        this.lock = new ReentrantLock();
-        this.lists = new List[INTERVALS_NO + 1];
-        for (int i = 0; i < INTERVALS_NO + 1; i++) {
-            lists[i] = new ArrayList<>();
+        this.stripes = (ConcurrentLinkedDeque<PageInfo>[][]) new ConcurrentLinkedDeque<?>[STRIPES][INTERVALS_NO + 1];
+        for (ConcurrentLinkedDeque<PageInfo>[] lists : stripes) {
+            for (int i = 0; i < INTERVALS_NO + 1; i++) {
+                lists[i] = new ConcurrentLinkedDeque<>();
+            }
         }
     }
 
+    /**
+     * 当前线程所在的条带
+     */
+    private static int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+    }
+
     /**
      * 根据给定的页面编号和空闲空间大小添加一个 PageInfo 对象
      * 同一个页面是不允许并发写的，在上层模块使用完这个页面之后，需要重新将其插入到 PageIndex
      */
     public void add(int pgno, int freeSpace) {
-        lock.lock();
-        try {
-            int number = freeSpace / THRESHOLD;  // 计算空闲空间大小对应的区间编号
-            lists[number].add(new PageInfo(pgno, freeSpace));
-        } finally {
-            lock.unlock();
-        }
+        int number = freeSpace / THRESHOLD;  // 计算空闲空间大小对应的区间编号
+        PageInfo pi = new PageInfo(pgno, freeSpace);
+        current.put(pgno, pi);
+        stripes[stripe()][number].addFirst(pi);
     }
 
     /**
      * 根据给定的空间大小计算所处的编号位置，选择一个 PageInfo 对象，其空闲空间>=给定的空间大小。如果没有找到合适的 PageInfo，返回 null。
      */
     public PageInfo select(int spaceSize) {
-        lock.lock();  // 获取锁，确保线程安全
-        try {
-            int number = spaceSize / THRESHOLD;  // 计算需要的空间大小对应的区间编号
-            /*
-                1、假如需要存储的字节大小为5168，此时计算出来的区间号是25，但是25*204=5100显然是不满足条件的
-                2、此时向上取整找到26，而26*204=5304，是满足插入条件的
-             */
-            if (number < INTERVALS_NO) number++;  // 向上取整
-            while (number <= INTERVALS_NO) {  // 从计算出的区间编号开始，向上寻找合适的 PageInfo
-                if (lists[number].isEmpty()) {
-                    number++;
-                    continue;
+        int number = spaceSize / THRESHOLD;  // 计算需要的空间大小对应的区间编号
+        /*
+            1、假如需要存储的字节大小为5168，此时计算出来的区间号是25，但是25*204=5100显然是不满足条件的
+            2、此时向上取整找到26，而26*204=5304，是满足插入条件的
+         */
+        if (number < INTERVALS_NO) number++;  // 向上取整
+        int home = stripe();
+        for (int i = 0; i < STRIPES; i++) {  // 先找自己的条带，再依次找其它条带
+            ConcurrentLinkedDeque<PageInfo>[] lists = stripes[(home + i) & (STRIPES - 1)];
+            for (int n = number; n <= INTERVALS_NO; n++) {  // 从计算出的区间编号开始，向上寻找合适的 PageInfo
+                PageInfo pi;
+                while ((pi = lists[n].pollFirst()) != null) {
+                    if (current.remove(pi.pgno, pi))  // 过期项（页面已经被 take 取走）直接丢弃
+                        return pi;
                 }
-                return lists[number].remove(0);  // 如果当前区间有 PageInfo，返回第一个 PageInfo，并从列表中移除
             }
-            return null;
-        } finally {
-            lock.unlock();
         }
+        return null;
     }
 
+    /**
+     * 按页号取走一个页面，取走之后 select 不会再选中它，用完后需要重新 add
+     *
+     * @return 页面不在索引中（正在被插入使用）时返回 null
+     */
+    public PageInfo take(int pgno) {
+        return current.remove(pgno);
+    }
+
+    /**
+     * 把各页面当前登记的空闲空间填入 spaces，下标为页号，超出 spaces 范围的页面忽略；不在索引中的页面不填
+     * <p>
+     * 只在没有插入进行时调用（关闭时），否则正在被使用的页面不在索引中
+     */
+    public void freeSpaces(int[] spaces) {
+        for (PageInfo pi : current.values()) {
+            if (pi.pgno < spaces.length)
+                spaces[pi.pgno] = pi.freeSpace;
+        }
+    }
 }
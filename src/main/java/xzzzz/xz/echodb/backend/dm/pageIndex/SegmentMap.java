@@ -0,0 +1,278 @@
+package xzzzz.xz.echodb.backend.dm.pageIndex;
+
+import xzzzz.xz.echodb.backend.dm.page.PageX;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.utils.FileUtil;
+import xzzzz.xz.echodb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * 按段分配页面
+ * <p>
+ * 原来所有表的记录、索引节点和元数据共用一个 PageIndex，新页面逐页追加，不同表交替插入时它们的页面在文件中交错排列，
+ * 一张表的全表扫描或者一棵 B+ 树的范围扫描要跳着读，页面缓存的顺序预读也无从发挥。
+ * <p>
+ * 现在每张表的记录、每棵 B+ 树的节点各自属于一个段，段用一个 long 标识（表用自己的 uid，B+ 树用 bootUid），
+ * 元数据等其它数据项属于共享段 SHARED，仍然逐页分配。每个段有自己的 PageIndex，插入只从本段的页面中选页；
+ * 本段没有合适的页面时一次分配一个区（extent）：页号连续的若干页，全部登记到本段的 PageIndex。
+ * 区的大小从 EXTENT_PAGES 开始，随段的增长翻倍，最多 MAX_EXTENT_PAGES 页。同一个段的页面因此成片地连续存放。
+ * <p>
+ * 区的归属记录在 .ext 文件中，每分配一个区追加一条 [Segment(8)][FirstPage(4)][PageCount(4)]，不单独 fsync。
+ * 这个文件只影响新数据放在哪里，不影响正确性：崩溃时丢失的记录所对应的页面归入共享段；
+ * 恢复时被截断的页面从区中剪掉，并立即重写整个文件，之后重新分配到这些页号的区不会与旧记录重叠。
+ * <p>
+ * 一个页面只会登记在它所属段的 PageIndex 中，按页号找回 PageIndex 时用 indexOf。
+ */
+public class SegmentMap {
+
+    /**
+     * 共享段
+     */
+    public static final long SHARED = 0;
+
+    /**
+     * 一个段第一个区的页数
+     */
+    public static final int EXTENT_PAGES = 8;
+
+    /**
+     * 区的最大页数
+     */
+    public static final int MAX_EXTENT_PAGES = 64;
+
+    public static final String EXT_SUFFIX = ".ext";
+
+    public static final String EXT_TMP_SUFFIX = ".ext_tmp";
+
+    /**
+     * 一条区记录的字节数
+     */
+    private static final int RECORD_SIZE = 16;
+
+    /**
+     * 页号连续的一组页面
+     */
+    private static class Extent {
+        final long segment;
+        final int first;
+        final int count;
+
+        Extent(long segment, int first, int count) {
+            this.segment = segment;
+            this.first = first;
+            this.count = count;
+        }
+    }
+
+    /**
+     * 一个段：自己的 PageIndex，以及已经分配的页数
+     */
+    private static class Segment {
+        final PageIndex index = new PageIndex();
+        int pages;
+    }
+
+    private final String path;
+
+    private final Segment shared = new Segment();
+
+    private final ConcurrentHashMap<Long, Segment> segments = new ConcurrentHashMap<>();
+
+    /**
+     * 第一页页号 -> 区
+     */
+    private final ConcurrentSkipListMap<Integer, Extent> extents = new ConcurrentSkipListMap<>();
+
+    /**
+     * 以追加方式打开的 .ext 文件
+     */
+    private FileChannel fc;
+
+    /**
+     * @param path 无后缀的数据库文件路径
+     */
+    public SegmentMap(String path) {
+        this.path = path;
+    }
+
+    private Segment segment(long segment) {
+        return segment == SHARED ? shared : segments.computeIfAbsent(segment, k -> new Segment());
+    }
+
+    /**
+     * 段的 PageIndex
+     */
+    public PageIndex index(long segment) {
+        return segment(segment).index;
+    }
+
+    /**
+     * 页面所属的段，不属于任何区的页面属于共享段
+     */
+    public long ownerOf(int pgno) {
+        Map.Entry<Integer, Extent> e = extents.floorEntry(pgno);
+        if (e == null || pgno >= e.getKey() + e.getValue().count)
+            return SHARED;
+        return e.getValue().segment;
+    }
+
+    /**
+     * 页面所属段的 PageIndex
+     */
+    public PageIndex indexOf(int pgno) {
+        return index(ownerOf(pgno));
+    }
+
+    /**
+     * 为段分配一个新的区，区中的页面全部作为空页登记到段的 PageIndex。
+     * <p>
+     * 同一个段的多个插入可能同时发现没有空闲页面，各自分配一个区，多出来的区留给之后的插入
+     */
+    public void grow(long segment, PageCache pc) {
+        Segment seg = segment(segment);
+        int count;
+        synchronized (seg) {
+            count = Math.min(MAX_EXTENT_PAGES, Math.max(EXTENT_PAGES, seg.pages));
+            seg.pages += count;
+        }
+        int first = pc.newPages(PageX.initRaw(), count);
+        addExtent(segment, first, count);
+        for (int i = 0; i < count; i++) {
+            seg.index.add(first + i, PageX.MAX_FREE_SPACE);
+        }
+    }
+
+    /**
+     * 把已经写入文件的一组页面登记为段的区（例如批量装载追加的页面），页面由调用者登记到段的 PageIndex
+     */
+    public void register(long segment, int first, int count) {
+        if (segment == SHARED)
+            return;
+        Segment seg = segment(segment);
+        synchronized (seg) {
+            seg.pages += count;
+        }
+        addExtent(segment, first, count);
+    }
+
+    private void addExtent(long segment, int first, int count) {
+        extents.put(first, new Extent(segment, first, count));
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_SIZE);
+        buf.putLong(segment).putInt(first).putInt(count).flip();
+        synchronized (this) {
+            try {
+                if (fc == null)
+                    fc = FileChannel.open(new File(path + EXT_SUFFIX).toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                while (buf.hasRemaining()) {
+                    fc.write(buf);
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    /**
+     * 创建数据库时删除残留的 .ext 文件
+     */
+    public void create() {
+        new File(path + EXT_SUFFIX).delete();
+        new File(path + EXT_TMP_SUFFIX).delete();
+    }
+
+    /**
+     * 打开数据库时（崩溃恢复之后）读取 .ext 文件。
+     * 超出文件末尾的区被剪短或丢弃、末尾不完整的记录被丢弃时，重写整个文件
+     *
+     * @param pageNumber 恢复之后的总页数
+     */
+    public void load(int pageNumber) {
+        new File(path + EXT_TMP_SUFFIX).delete();
+        File f = new File(path + EXT_SUFFIX);
+        if (!f.exists())
+            return;
+        ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(f.toPath()));
+        } catch (IOException e) {
+            Panic.panic(e);
+            return;
+        }
+        boolean dirty = buf.remaining() % RECORD_SIZE != 0;
+        while (buf.remaining() >= RECORD_SIZE) {
+            long segment = buf.getLong();
+            int first = buf.getInt();
+            int count = Math.min(buf.getInt(), pageNumber - first + 1);
+            if (segment == SHARED || first <= 1 || count <= 0) {
+                dirty = true;
+                continue;
+            }
+            if (count != buf.getInt(buf.position() - 4))
+                dirty = true;
+            extents.put(first, new Extent(segment, first, count));
+            segment(segment).pages += count;
+        }
+        if (dirty)
+            rewrite();
+    }
+
+    /**
+     * 用内存中的区重写 .ext 文件
+     */
+    private synchronized void rewrite() {
+        ByteBuffer buf = ByteBuffer.allocate(extents.size() * RECORD_SIZE);
+        for (Extent e : extents.values()) {
+            buf.putLong(e.segment).putInt(e.first).putInt(e.count);
+        }
+        FileUtil.replaceAtomically(path, EXT_SUFFIX, EXT_TMP_SUFFIX, buf.array(), buf.position());
+    }
+
+    /**
+     * 所有段中各页面当前登记的空闲空间，下标为页号；不在索引中的页面为 0。只在没有插入进行时调用
+     */
+    public int[] freeSpaces(int pageNumber) {
+        int[] spaces = new int[pageNumber + 1];
+        shared.index.freeSpaces(spaces);
+        for (Segment seg : segments.values()) {
+            seg.index.freeSpaces(spaces);
+        }
+        return spaces;
+    }
+
+    /**
+     * 段的区数
+     */
+    public int extentCount(long segment) {
+        int n = 0;
+        for (Extent e : extents.values()) {
+            if (e.segment == segment)
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * 把追加的记录刷到磁盘并关闭文件
+     */
+    public synchronized void close() {
+        if (fc == null)
+            return;
+        try {
+            fc.force(false);
+            fc.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        fc = null;
+    }
+}
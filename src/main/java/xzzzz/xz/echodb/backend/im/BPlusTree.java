@@ -54,9 +54,16 @@ public class BPlusTree {
 
     public Lock bootLock;
 
+    /**
+     * 批量构建时节点的默认填充率
+     */
+    public static final double DEFAULT_FILL_FACTOR = 0.9;
+
     /**
      * 创建一个空的根节点的字节表示，并返回这棵树的入口句柄（根节点的uid的uid：bootUid）
      * <p>
+     * 最初的根节点和入口放在共享段；之后分裂、批量构建产生的节点都放在以 bootUid 为标识的段中，同一棵树的节点连续存放
+     * <p>
      * 如果以后想访问树的根节点
      * 就要先拿这个 long UID
      * 去数据文件里找这条 8 字节的记录（里面存的是 rootUid）
@@ -109,7 +116,7 @@ public class BPlusTree {
         bootLock.lock();
         try {
             byte[] rootRaw = Node.newRootRaw(left, right, rightKey);
-            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, rootRaw);
+            long newRootUid = dm.insert(TransactionManagerImpl.SUPER_XID, bootUid, rootRaw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
             System.arraycopy(Parser.long2Byte(newRootUid), 0, diRaw.raw, diRaw.start, 8);
@@ -161,7 +168,8 @@ public class BPlusTree {
      */
     public List<Long> searchRange(long leftKey, long rightKey) throws Exception {
         long rootUid = getRootUid();
-        long leafUid = searchLeaf(rootUid, leftKey);  // 找到第一个比leftKey大的叶子节点uid
+        // 分裂时与分隔 key 相等的重复 key 可能留在左边的节点，从第一个可能含有 leftKey 的叶子开始，沿兄弟节点向右扫描
+        long leafUid = searchLeaf(rootUid, leftKey == Long.MIN_VALUE ? leftKey : leftKey - 1);
         List<Long> uids = new ArrayList<>();
         while (true) {
             Node leaf = Node.loadNode(this, leafUid);
@@ -252,6 +260,96 @@ public class BPlusTree {
             updateRootUid(rootUid, res.newNode, res.newKey);
     }
 
+    /**
+     * 空树的批量构建：由按 (key, uid) 降序排列的数据自底向上逐层构建，不经过逐个插入和分裂
+     * <p>
+     * 每层从右向左构建，写入一个节点时它右边的兄弟节点已经写入，兄弟指针一次写对；每个节点装 fillFactor 比例的 key，最左边的节点装剩余的部分。
+     * 内部节点中子节点 i 的 key 是子节点 i+1 的最小 key，每层最右边的节点以 Long.MAX_VALUE 结尾，与逐个插入形成的树结构相同。
+     * 全部节点写入之后才替换根节点，中途崩溃只会留下没有被引用的节点。
+     *
+     * @param fillFactor 节点的填充率，取值 (0, 1]，每个节点最多装 2 * BALANCE_NUMBER - 1 个 key，留出插入的空间
+     * @return 树不是空树（或构建期间有其它插入）时返回 false，树不变
+     */
+    public boolean bulkBuild(ExternalSort sorted, double fillFactor) throws Exception {
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("fill factor must be in (0, 1]");
+        long rootUid = getRootUid();
+        if (!isEmptyTree(rootUid))
+            return false;
+        int perNode = Math.max(2, Math.min(Node.BALANCE_NUMBER * 2 - 1, (int) (Node.BALANCE_NUMBER * 2 * fillFactor)));
+
+        // 叶子层，level 中按从右到左的顺序记录每个节点的 (uid, 最小 key)
+        List<long[]> level = new ArrayList<>();
+        long[] keys = new long[perNode];
+        long[] sons = new long[perNode];
+        int n = 0;
+        long sibling = 0;
+        try (ExternalSort.Cursor c = sorted.cursor()) {
+            while (c.next()) {
+                int i = perNode - 1 - n;  // 降序读入，从节点末尾往前填
+                keys[i] = c.key();
+                sons[i] = c.uid();
+                if (++n == perNode) {
+                    sibling = writeNode(true, sons, keys, 0, n, sibling);
+                    level.add(new long[]{sibling, keys[0]});
+                    n = 0;
+                }
+            }
+        }
+        if (n > 0) {
+            int from = perNode - n;
+            sibling = writeNode(true, sons, keys, from, n, sibling);
+            level.add(new long[]{sibling, keys[from]});
+        }
+        if (level.isEmpty())
+            return true;
+
+        // 内部节点层
+        while (level.size() > 1) {
+            List<long[]> upper = new ArrayList<>();
+            sibling = 0;
+            for (int i = 0; i < level.size(); i += perNode) {
+                int end = Math.min(level.size(), i + perNode);
+                int m = end - i;
+                for (int t = 0; t < m; t++) {  // 第 t 个子节点是 level[end - 1 - t]
+                    int j = end - 1 - t;
+                    sons[t] = level.get(j)[0];
+                    keys[t] = j == 0 ? Long.MAX_VALUE : level.get(j - 1)[1];  // 右边相邻子节点的最小 key
+                }
+                sibling = writeNode(false, sons, keys, 0, m, sibling);
+                upper.add(new long[]{sibling, level.get(end - 1)[1]});
+            }
+            level = upper;
+        }
+
+        bootLock.lock();
+        try {
+            SubArray sa = bootDataItem.data();
+            if (Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start, sa.start + 8)) != rootUid || !isEmptyTree(rootUid))
+                return false;
+            bootDataItem.before();
+            System.arraycopy(Parser.long2Byte(level.get(0)[0]), 0, sa.raw, sa.start, 8);
+            bootDataItem.after(TransactionManagerImpl.SUPER_XID);
+        } finally {
+            bootLock.unlock();
+        }
+        return true;
+    }
+
+    private boolean isEmptyTree(long rootUid) throws Exception {
+        Node root = Node.loadNode(this, rootUid);
+        try {
+            return root.isEmptyLeaf();
+        } finally {
+            root.release();
+        }
+    }
+
+    private long writeNode(boolean isLeaf, long[] sons, long[] keys, int from, int n, long sibling) throws Exception {
+        byte[] raw = Node.newNodeRaw(isLeaf, Arrays.copyOfRange(sons, from, from + n), Arrays.copyOfRange(keys, from, from + n), n, sibling);
+        return dm.insert(TransactionManagerImpl.SUPER_XID, bootUid, raw);
+    }
+
     /**
      * 在使用完 bootDataItem 后，也应当及时调用 release() 方法，释放掉 DataItem 的缓存（由 DM 缓存 DataItem） 进而会释放包含的页面对象的缓存
      */
@@ -0,0 +1,245 @@
+package xzzzz.xz.echodb.backend.im;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * (key, uid) 对的外部排序，用于批量装载时构建索引
+ * <p>
+ * 先在内存中攒一段（runSize 对），排好序后写入临时文件成为一个有序段；全部加入后对各个有序段做多路归并。
+ * 数据量不超过一段时不写文件，直接在内存中排序。按 (key, uid) 排序，可以选择降序。
+ * <p>
+ * 排序结果可以多次读取（每次 cursor() 从头开始），临时文件在 close() 时删除。
+ */
+public class ExternalSort implements Closeable {
+
+    /**
+     * 默认每段的对数（每对 16 字节，即 16MB）
+     */
+    public static final int DEFAULT_RUN_SIZE = 1 << 20;
+
+    private final boolean descending;
+
+    private final long[] keys;
+
+    private final long[] uids;
+
+    private int size;
+
+    private final List<File> runs = new ArrayList<>();
+
+    private boolean sealed;
+
+    public ExternalSort(boolean descending) {
+        this(DEFAULT_RUN_SIZE, descending);
+    }
+
+    public ExternalSort(int runSize, boolean descending) {
+        this.descending = descending;
+        this.keys = new long[runSize];
+        this.uids = new long[runSize];
+    }
+
+    public void add(long key, long uid) throws IOException {
+        if (sealed)
+            throw new IllegalStateException("sort already finished");
+        if (size == keys.length)
+            spill();
+        keys[size] = key;
+        uids[size] = uid;
+        size++;
+    }
+
+    /**
+     * 把内存中的一段排序后写入临时文件
+     */
+    private void spill() throws IOException {
+        sort(0, size - 1);
+        File f = Files.createTempFile("echodb-sort", ".run").toFile();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f), 1 << 16))) {
+            for (int i = 0; i < size; i++) {
+                out.writeLong(keys[i]);
+                out.writeLong(uids[i]);
+            }
+        }
+        runs.add(f);
+        size = 0;
+    }
+
+    /**
+     * 从头读取排序结果，之后不能再 add
+     */
+    public Cursor cursor() throws IOException {
+        if (!sealed) {
+            sealed = true;
+            if (runs.isEmpty())
+                sort(0, size - 1);
+            else if (size > 0)
+                spill();
+        }
+        if (runs.isEmpty())
+            return new MemoryCursor();
+        return new MergeCursor();
+    }
+
+    /**
+     * 删除临时文件
+     */
+    @Override
+    public void close() {
+        for (File f : runs) {
+            f.delete();
+        }
+        runs.clear();
+    }
+
+    private int compare(long k1, long u1, long k2, long u2) {
+        int c = k1 != k2 ? Long.compare(k1, k2) : Long.compare(u1, u2);
+        return descending ? -c : c;
+    }
+
+    /**
+     * 对两个平行数组做快速排序，uid 互不相同，没有相等的元素
+     */
+    private void sort(int lo, int hi) {
+        while (hi - lo > 16) {
+            int p = lo + ThreadLocalRandom.current().nextInt(hi - lo + 1);
+            long pk = keys[p], pu = uids[p];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (compare(keys[i], uids[i], pk, pu) < 0) i++;
+                while (compare(keys[j], uids[j], pk, pu) > 0) j--;
+                if (i <= j) {
+                    swap(i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (j - lo < hi - i) {  // 先递归较短的一边，栈深度不超过 log n
+                sort(lo, j);
+                lo = i;
+            } else {
+                sort(i, hi);
+                hi = j;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {  // 短区间插入排序
+            for (int j = i; j > lo && compare(keys[j - 1], uids[j - 1], keys[j], uids[j]) > 0; j--) {
+                swap(j - 1, j);
+            }
+        }
+    }
+
+    private void swap(int i, int j) {
+        long k = keys[i];
+        keys[i] = keys[j];
+        keys[j] = k;
+        long u = uids[i];
+        uids[i] = uids[j];
+        uids[j] = u;
+    }
+
+    /**
+     * 按顺序读取排序结果：next() 返回 true 后 key()、uid() 为当前的一对
+     */
+    public interface Cursor extends Closeable {
+        boolean next() throws IOException;
+
+        long key();
+
+        long uid();
+
+        @Override
+        void close();
+    }
+
+    private class MemoryCursor implements Cursor {
+        private int pos = -1;
+
+        @Override
+        public boolean next() {
+            return ++pos < size;
+        }
+
+        @Override
+        public long key() {
+            return keys[pos];
+        }
+
+        @Override
+        public long uid() {
+            return uids[pos];
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static class RunReader {
+        final DataInputStream in;
+        long remaining;
+        long key, uid;
+
+        RunReader(File f) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 1 << 16));
+            this.remaining = f.length() / 16;
+        }
+
+        boolean advance() throws IOException {
+            if (remaining == 0)
+                return false;
+            key = in.readLong();
+            uid = in.readLong();
+            remaining--;
+            return true;
+        }
+    }
+
+    private class MergeCursor implements Cursor {
+        private final PriorityQueue<RunReader> heap = new PriorityQueue<>((a, b) -> compare(a.key, a.uid, b.key, b.uid));
+        private final List<RunReader> readers = new ArrayList<>();
+        private RunReader current;
+
+        MergeCursor() throws IOException {
+            for (File f : runs) {
+                RunReader r = new RunReader(f);
+                readers.add(r);
+                if (r.advance())
+                    heap.add(r);
+            }
+        }
+
+        @Override
+        public boolean next() throws IOException {
+            if (current != null && current.advance())
+                heap.add(current);
+            current = heap.poll();
+            return current != null;
+        }
+
+        @Override
+        public long key() {
+            return current.key;
+        }
+
+        @Override
+        public long uid() {
+            return current.uid;
+        }
+
+        @Override
+        public void close() {
+            for (RunReader r : readers) {
+                try {
+                    r.in.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
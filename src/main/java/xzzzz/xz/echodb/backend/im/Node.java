@@ -3,16 +3,17 @@ package xzzzz.xz.echodb.backend.im;
 import xzzzz.xz.echodb.backend.common.SubArray;
 import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
 import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
-import xzzzz.xz.echodb.backend.utils.Parser;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 /**
  * Node结构如下：
  * [LeafFlag][KeyNumber][SiblingUid]
  * [Son0][Key0][Son1][Key1]...[SonN][KeyN]
+ * <p>
+ * 字段都通过 ByteCodec 在节点的原始数据上原地读写，查找过程不分配内存
  */
 public class Node {
     static final int IS_LEAF_OFFSET = 0;
@@ -41,39 +42,35 @@ public class Node {
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.short2Byte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, 2);
+        ByteCodec.putShort(raw, NO_KEYS_OFFSET, (short) noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return (int) Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + 2));
+        return ByteCodec.getShort(raw, NO_KEYS_OFFSET);
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.long2Byte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, 8);
+        ByteCodec.putLong(raw, SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + 8));
+        return ByteCodec.getLong(raw, SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        System.arraycopy(Parser.long2Byte(uid), 0, raw.raw, offset, 8);
+        ByteCodec.putLong(raw, NODE_HEADER_SIZE + kth * (8 * 2), uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return ByteCodec.getLong(raw, NODE_HEADER_SIZE + kth * (8 * 2));
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        System.arraycopy(Parser.long2Byte(key), 0, raw.raw, offset, 8);
+        ByteCodec.putLong(raw, NODE_HEADER_SIZE + kth * (8 * 2) + 8, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + kth * (8 * 2) + 8;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return ByteCodec.getLong(raw, NODE_HEADER_SIZE + kth * (8 * 2) + 8);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
@@ -83,10 +80,8 @@ public class Node {
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; i--) {
-            raw.raw[i] = raw.raw[i - (8 * 2)];
-        }
+        int end = raw.start + NODE_SIZE;
+        System.arraycopy(raw.raw, begin - (8 * 2), raw.raw, begin, end - begin);  // 区间重叠时 arraycopy 按先拷贝到临时区的语义处理
     }
 
     static byte[] newRootRaw(long left, long right, long key) {
@@ -137,6 +132,35 @@ public class Node {
         }
     }
 
+    /**
+     * 是否是没有任何 key 的叶子节点（空树的根节点）
+     */
+    public boolean isEmptyLeaf() {
+        dataItem.rLock();
+        try {
+            return getRawIfLeaf(raw) && getRawNoKeys(raw) == 0;
+        } finally {
+            dataItem.rUnLock();
+        }
+    }
+
+    /**
+     * 由一组有序的 [Son][Key] 构建节点，批量装载时使用
+     */
+    static byte[] newNodeRaw(boolean isLeaf, long[] sons, long[] keys, int noKeys, long sibling) {
+        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+
+        setRawIsLeaf(raw, isLeaf);
+        setRawNoKeys(raw, noKeys);
+        setRawSibling(raw, sibling);
+        for (int i = 0; i < noKeys; i++) {
+            setRawKthSon(raw, sons[i], i);
+            setRawKthKey(raw, keys[i], i);
+        }
+
+        return raw.raw;
+    }
+
     class SearchNextRes {
         long uid;
         long siblingUid;
@@ -285,7 +309,7 @@ public class Node {
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         setRawSibling(nodeRaw, getRawSibling(raw));
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
-        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManagerImpl.SUPER_XID, tree.bootUid, nodeRaw.raw);
         setRawNoKeys(raw, BALANCE_NUMBER);
         setRawSibling(raw, son);
 
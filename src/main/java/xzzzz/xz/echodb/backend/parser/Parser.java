@@ -43,6 +43,7 @@ public class Parser {
                 case "delete" -> stat = parseDelete(tokenizer);
                 case "update" -> stat = parseUpdate(tokenizer);
                 case "show" -> stat = parseShow(tokenizer);
+                case "copy" -> stat = parseCopy(tokenizer);
                 default -> throw Error.InvalidCommandException;
             }
         } catch (Exception e) {
@@ -413,11 +414,13 @@ public class Parser {
     /**
      * Insert SQL:
      * <p>
-     * insert into <table name> values <value list>
+     * insert into <table name> values <value list> [, <value list> ...]
      * <p>
      * eg:
      * <p>
      * insert into student values 5 "XZ" 22
+     * <p>
+     * insert into student values 5 "XZ" 22, 6 "ZX" 23
      */
     private static Insert parseInsert(Tokenizer tokenizer) throws Exception {
         Insert insert = new Insert();
@@ -435,16 +438,23 @@ public class Parser {
         if (!"values".equals(tokenizer.peek()))
             throw Error.InvalidCommandException;
 
+        List<String[]> rows = new ArrayList<>();
         List<String> values = new ArrayList<>();
         while (true) {
             tokenizer.pop();
             String value = tokenizer.peek();
-            if ("".equals(value))
-                break;
-            else
+            boolean end = "".equals(value) && !tokenizer.isQuoted();  // 空字符串 '' 是一个值，不是语句结束
+            if (end || ",".equals(value) && !tokenizer.isQuoted()) {  // 不带引号的逗号分隔多行
+                if (values.isEmpty())
+                    throw Error.InvalidCommandException;
+                rows.add(values.toArray(new String[0]));
+                values.clear();
+                if (end)
+                    break;
+            } else
                 values.add(value);
         }
-        insert.values = values.toArray(new String[0]);
+        insert.values = rows.toArray(new String[0][]);
         return insert;
     }
 
@@ -518,6 +528,36 @@ public class Parser {
         return update;
     }
 
+    /**
+     * Copy SQL:
+     * <p>
+     * copy <table name> from <file name>
+     * <p>
+     * eg:
+     * <p>
+     * copy student from "/data/student.csv"
+     */
+    private static Copy parseCopy(Tokenizer tokenizer) throws Exception {
+        Copy copy = new Copy();
+
+        String tableName = tokenizer.peek();
+        if (!isName(tableName))
+            throw Error.InvalidCommandException;
+        copy.tableName = tableName;
+        tokenizer.pop();
+
+        if (!"from".equals(tokenizer.peek()))
+            throw Error.InvalidCommandException;
+        tokenizer.pop();
+
+        String fileName = tokenizer.peek();
+        if ("".equals(fileName))
+            throw Error.InvalidCommandException;
+        copy.fileName = fileName;
+        tokenizer.pop();
+        return copy;
+    }
+
     /**
      * Show SQL:
      * <p>
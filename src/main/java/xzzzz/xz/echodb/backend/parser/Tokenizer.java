@@ -24,6 +24,11 @@ public class Tokenizer {
      */
     private String currentToken;
 
+    /**
+     * 当前token是否是引号包围的字符串，用来区分字符串 ',' 与分隔符 ,
+     */
+    private boolean quoted;
+
     /**
      * 当前token是否需要刷新
      */
@@ -147,6 +152,7 @@ public class Tokenizer {
      * 获取下一个元状态。元状态可以是一个符号、引号包围的字符串或者一个由字母、数字或下划线组成的标记
      */
     private String nextMetaState() throws Exception {
+        quoted = false;
         while (true) {
             Byte b = peekByte();
             if (b == null)
@@ -160,6 +166,7 @@ public class Tokenizer {
             popByte();
             return new String(new byte[]{b});  // 如果这个字节是一个符号，返回这个符号
         } else if (b == '"' || b == '\'') {
+            quoted = true;
             return nextQuoteState();  // 如果这个字节是一个引号，返回引号内的字符串
         } else if (isAlphaBeta(b) || isDigit(b))
             return nextTokenState();  // 如果这个字节是一个字母或数字，返回由字母、数字或下划线组成的字符串
@@ -200,6 +207,13 @@ public class Tokenizer {
         return currentToken;
     }
 
+    /**
+     * 当前token（上一次 peek() 返回的）是否是引号包围的字符串
+     */
+    public boolean isQuoted() {
+        return quoted;
+    }
+
     /**
      * 当前token需要刷新，这样下一次调用peek()时会生成新的token
      */
@@ -0,0 +1,8 @@
+package xzzzz.xz.echodb.backend.parser.statement;
+
+public class Copy {
+
+    public String tableName;
+
+    public String fileName;
+}
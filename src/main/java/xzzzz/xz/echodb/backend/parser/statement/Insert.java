@@ -4,5 +4,8 @@ public class Insert {
 
     public String tableName;
 
-    public String[] values;
+    /**
+     * 每行的值，values[i] 为第 i 行
+     */
+    public String[][] values;
 }
@@ -87,6 +87,8 @@ public class Executor {
                 res = tbm.delete(xid, (Delete) stat);
             else if (stat instanceof Update)
                 res = tbm.update(xid, (Update) stat);
+            else if (stat instanceof Copy)
+                res = tbm.copy(xid, (Copy) stat);
             return res;
         } catch (Exception e1) {
             e = e1;
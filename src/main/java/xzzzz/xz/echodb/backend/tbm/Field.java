@@ -2,6 +2,7 @@ package xzzzz.xz.echodb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
 import xzzzz.xz.echodb.backend.im.BPlusTree;
+import xzzzz.xz.echodb.backend.im.ExternalSort;
 import xzzzz.xz.echodb.backend.parser.statement.SingleExpression;
 import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
 import xzzzz.xz.echodb.backend.utils.Panic;
@@ -98,7 +99,7 @@ public class Field {
         this.index = Parser.parseLong(Arrays.copyOfRange(raw, position, position + 8));
         if (index != 0) {
             try {
-                bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+                bt = BPlusTree.load(index, tb.tbm.dm);
             } catch (Exception e) {
                 Panic.panic(e);
             }
@@ -112,7 +113,7 @@ public class Field {
     public static Field loadField(Table tb, long uid) {
         byte[] raw = null;
         try {
-            raw = ((TableManagerImpl) tb.tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);
+            raw = tb.tbm.vm.read(TransactionManagerImpl.SUPER_XID, uid);
         } catch (Exception e) {
             Panic.panic(e);
         }
@@ -136,7 +137,7 @@ public class Field {
         byte[] typeRaw = Parser.string2Byte(fieldType);
         byte[] indexRaw = Parser.long2Byte(index);
         // 插入成功后，会返回一个唯一的uid，将这个uid设置为当前Field对象的uid
-        this.uid = ((TableManagerImpl) tb.tbm).vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
+        this.uid = tb.tbm.vm.insert(xid, Bytes.concat(nameRaw, typeRaw, indexRaw));
     }
 
     /**
@@ -146,8 +147,8 @@ public class Field {
         typeCheck(fieldType);
         Field f = new Field(tb, fieldName, fieldType, 0);
         if (indexed) {
-            long index = BPlusTree.create(((TableManagerImpl) tb.tbm).dm);
-            BPlusTree bt = BPlusTree.load(index, ((TableManagerImpl) tb.tbm).dm);
+            long index = BPlusTree.create(tb.tbm.dm);
+            BPlusTree bt = BPlusTree.load(index, tb.tbm.dm);
             f.index = index;
             f.bt = bt;
         }
@@ -182,6 +183,35 @@ public class Field {
         bt.insert(uKey, uid);
     }
 
+    /**
+     * 批量插入索引：按 key 排序后依次插入，相邻的插入落在 B+ 树的同一条路径上
+     */
+    public void insert(List<Object> vals, List<Long> uids) throws Exception {
+        long[][] pairs = new long[vals.size()][];
+        for (int i = 0; i < pairs.length; i++) {
+            pairs[i] = new long[]{value2Key(vals.get(i)), uids.get(i)};
+        }
+        Arrays.sort(pairs, (a, b) -> Long.compare(a[0], b[0]));
+        for (long[] pair : pairs) {
+            bt.insert(pair[0], pair[1]);
+        }
+    }
+
+    /**
+     * 批量装载索引：空索引由排序结果自底向上构建，否则按排序结果的顺序逐个插入
+     *
+     * @param sorted 按 (key, uid) 降序排列
+     */
+    public void insert(ExternalSort sorted) throws Exception {
+        if (bt.bulkBuild(sorted, tb.tbm.fillFactor))
+            return;
+        try (ExternalSort.Cursor c = sorted.cursor()) {
+            while (c.next()) {
+                bt.insert(c.key(), c.uid());
+            }
+        }
+    }
+
     /**
      * 在 B+树中搜索 leftKey - rightKey 范围内的所有子节点uid
      */
@@ -203,12 +233,23 @@ public class Field {
 
     /**
      * 根据字段类型把val转化为相应类型的字节数组
+     * <p>
+     * 过长的字符串先切块存到行外（见 Overflow），这里只返回指针；已经在行外的值（Ref）直接沿用原来的块
+     *
+     * @param segment 行外的块插入到这个段，与记录放在一起
      */
-    public byte[] value2Raw(Object val) {
+    public byte[] value2Raw(long xid, long segment, Object val) throws Exception {
         return switch (fieldType) {
             case "int32" -> Parser.int2Byte((int) val);
             case "int64" -> Parser.long2Byte((long) val);
-            case "string" -> Parser.string2Byte((String) val);
+            case "string" -> {
+                if (val instanceof Overflow.Ref ref)
+                    yield Overflow.ref2Raw(ref);
+                byte[] bytes = ((String) val).getBytes();
+                if (Overflow.needOverflow(bytes))
+                    yield Overflow.ref2Raw(Overflow.write(tb.tbm.vm, xid, segment, bytes));
+                yield Parser.string2Byte((String) val);
+            }
             default -> null;
         };
     }
@@ -233,14 +274,46 @@ public class Field {
                 res.shift = 8;
             }
             case "string" -> {
-                ParseStringRes r = Parser.parseString(raw);
-                res.v = r.str;
-                res.shift = r.next;
+                if (Overflow.isRef(raw)) {  // 行外的值只解析出指针，用到时才读取
+                    res.v = Overflow.parseRef(raw);
+                    res.shift = Overflow.REF_SIZE;
+                } else {
+                    ParseStringRes r = Parser.parseString(raw);
+                    res.v = r.str;
+                    res.shift = r.next;
+                }
             }
         }
         return res;
     }
 
+    /**
+     * 把 parseValue 得到的值还原为完整的值，行外的字符串在这里读取
+     */
+    public Object loadValue(long xid, Object val) throws Exception {
+        if (val instanceof Overflow.Ref ref)
+            return Overflow.read(tb.tbm.vm, xid, ref);
+        return val;
+    }
+
+    /**
+     * 删除值在行外占用的块，行内的值什么也不做
+     */
+    public void deleteValue(long xid, Object val) throws Exception {
+        if (val instanceof Overflow.Ref ref)
+            Overflow.delete(tb.tbm.vm, xid, ref);
+    }
+
+    /**
+     * 把值的字符串形式追加到 sb 中，行外的字符串逐块解码追加，不在内存中拼出完整的值
+     */
+    public void appendValue(long xid, Object val, StringBuilder sb) throws Exception {
+        if (val instanceof Overflow.Ref ref)
+            Overflow.append(tb.tbm.vm, xid, ref, sb);
+        else
+            sb.append(printValue(val));
+    }
+
     /**
      * 根据字段类型把val转化为字符串
      */
@@ -0,0 +1,220 @@
+package xzzzz.xz.echodb.backend.tbm;
+
+import xzzzz.xz.echodb.backend.dm.page.PageX;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
+import xzzzz.xz.echodb.backend.vm.VersionManager;
+import xzzzz.xz.echodb.commen.Error;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+
+/**
+ * 大字段的行外存储
+ * <p>
+ * 字节数超过 INLINE_LIMIT 的 string 值不再放在记录里，而是切成若干块，每块作为一个 Entry 单独插入，块之间用 uid 串成链：
+ * [NextUid(8)][Bytes]，最后一块的 NextUid 为 0。每块接近一整页，相当于一条溢出页链。
+ * <p>
+ * 记录中的字段值换成一个指针：[-1(4)][Length(4)][FirstUid(8)]。
+ * 内联字符串的长度前缀总是非负的，-1 用来区分两种格式，已有的数据不受影响。
+ * <p>
+ * 解析记录时只得到一个 Ref，不读取任何块；只有字段被投影输出、或者需要计算索引 key 时才沿链逐块读取。
+ * 块和记录一样是 Entry，由同一个事务插入、同一个事务删除，可见性跟随记录，删除后由 Vacuum 回收。
+ */
+public class Overflow {
+
+    /**
+     * 超过这个字节数的字符串存到行外
+     */
+    public static final int INLINE_LIMIT = 2048;
+
+    /**
+     * 行内指针的标记，代替字符串长度
+     */
+    private static final int MARKER = -1;
+
+    /**
+     * 行内指针的长度：[Marker(4)][Length(4)][FirstUid(8)]
+     */
+    static final int REF_SIZE = 16;
+
+    /**
+     * 每块的数据字节数。
+     * <p>
+     * 块的 DataItem 由 [ValidFlag(1)][DataSize(2)] + [XMIN(8)][XMAX(8)] + [NextUid(8)][Bytes] 组成；
+     * 再留出 PageIndex 一个区间的余量，PageIndex 向上取整后仍然选中一张空页
+     */
+    static final int CHUNK_SIZE = PageX.MAX_FREE_SPACE - PageCache.PAGE_SIZE / 40 - 3 - 16 - 8;
+
+    /**
+     * 行外字段的指针
+     */
+    public static class Ref {
+        /**
+         * 字符串的字节数
+         */
+        final int length;
+
+        /**
+         * 第一块的 uid
+         */
+        final long firstUid;
+
+        Ref(int length, long firstUid) {
+            this.length = length;
+            this.firstUid = firstUid;
+        }
+    }
+
+    /**
+     * 字节数组是否需要存到行外
+     */
+    static boolean needOverflow(byte[] bytes) {
+        return bytes.length > INLINE_LIMIT;
+    }
+
+    /**
+     * 判断 raw 开头的字段值是否是行外指针
+     */
+    static boolean isRef(byte[] raw) {
+        return ByteCodec.getInt(raw, 0) == MARKER;
+    }
+
+    static Ref parseRef(byte[] raw) {
+        return new Ref(ByteCodec.getInt(raw, 4), ByteCodec.getLong(raw, 8));
+    }
+
+    static byte[] ref2Raw(Ref ref) {
+        byte[] raw = new byte[REF_SIZE];
+        ByteCodec.putInt(raw, 0, MARKER);
+        ByteCodec.putInt(raw, 4, ref.length);
+        ByteCodec.putLong(raw, 8, ref.firstUid);
+        return raw;
+    }
+
+    /**
+     * 把字节数组切块插入，返回指向第一块的指针
+     * <p>
+     * 从最后一块开始插入，每块插入时下一块的 uid 已经确定，块插入后不再修改
+     *
+     * @param segment 块所在的段，即记录所在的表的段
+     */
+    static Ref write(VersionManager vm, long xid, long segment, byte[] bytes) throws Exception {
+        int chunks = (bytes.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        long next = 0;
+        for (int i = chunks - 1; i >= 0; i--) {
+            int from = i * CHUNK_SIZE;
+            int to = Math.min(bytes.length, from + CHUNK_SIZE);
+            byte[] chunk = new byte[8 + to - from];
+            ByteCodec.putLong(chunk, 0, next);
+            System.arraycopy(bytes, from, chunk, 8, to - from);
+            next = vm.insert(xid, segment, chunk);
+        }
+        return new Ref(bytes.length, next);
+    }
+
+    /**
+     * 删除一条链上的所有块
+     */
+    static void delete(VersionManager vm, long xid, Ref ref) throws Exception {
+        long uid = ref.firstUid;
+        while (uid != 0) {
+            byte[] chunk = vm.read(xid, uid);
+            if (chunk == null)
+                throw Error.NullEntryException;
+            vm.delete(xid, uid);
+            uid = ByteCodec.getLong(chunk, 0);
+        }
+    }
+
+    /**
+     * 以流的方式读取行外字段，每次只持有一块
+     */
+    static InputStream open(VersionManager vm, long xid, Ref ref) {
+        return new ChunkInputStream(vm, xid, ref.firstUid);
+    }
+
+    /**
+     * 读出完整的字符串
+     */
+    static String read(VersionManager vm, long xid, Ref ref) throws Exception {
+        StringBuilder sb = new StringBuilder(ref.length);
+        append(vm, xid, ref, sb);
+        return sb.toString();
+    }
+
+    /**
+     * 把字符串逐块解码追加到 sb 中，不拼出完整的字节数组
+     */
+    static void append(VersionManager vm, long xid, Ref ref, StringBuilder sb) throws Exception {
+        try (Reader reader = new InputStreamReader(open(vm, xid, ref), Charset.defaultCharset())) {
+            char[] buf = new char[4096];
+            int n;
+            while ((n = reader.read(buf)) != -1) {
+                sb.append(buf, 0, n);
+            }
+        } catch (IOException e) {
+            if (e.getCause() instanceof Exception cause)
+                throw cause;
+            throw e;
+        }
+    }
+
+    private static class ChunkInputStream extends InputStream {
+        private final VersionManager vm;
+        private final long xid;
+        private long nextUid;
+        private byte[] chunk;
+        private int pos;
+
+        ChunkInputStream(VersionManager vm, long xid, long firstUid) {
+            this.vm = vm;
+            this.xid = xid;
+            this.nextUid = firstUid;
+        }
+
+        /**
+         * 当前块读完时读取下一块
+         *
+         * @return 链已经读完时返回 false
+         */
+        private boolean fill() throws IOException {
+            while (chunk == null || pos == chunk.length) {
+                if (nextUid == 0)
+                    return false;
+                try {
+                    chunk = vm.read(xid, nextUid);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+                if (chunk == null)
+                    throw new IOException(Error.NullEntryException);
+                nextUid = ByteCodec.getLong(chunk, 0);
+                pos = 8;
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill())
+                return -1;
+            return chunk[pos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0)
+                return 0;
+            if (!fill())
+                return -1;
+            int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package xzzzz.xz.echodb.backend.tbm;
 
 import com.google.common.primitives.Bytes;
+import xzzzz.xz.echodb.backend.dm.BulkLoad;
+import xzzzz.xz.echodb.backend.im.ExternalSort;
 import xzzzz.xz.echodb.backend.parser.statement.*;
 import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
 import xzzzz.xz.echodb.backend.utils.Panic;
@@ -8,6 +10,9 @@ import xzzzz.xz.echodb.backend.utils.ParseStringRes;
 import xzzzz.xz.echodb.backend.utils.Parser;
 import xzzzz.xz.echodb.commen.Error;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
 import java.util.*;
 
 /**
@@ -27,9 +32,9 @@ import java.util.*;
 public class Table {
 
     /**
-     * 表管理器，用于管理数据库表
+     * 表管理器，用于管理数据库表。表和字段直接使用它的 vm、dm 读写 Entry 和索引
      */
-    TableManager tbm;
+    TableManagerImpl tbm;
 
     /**
      * 表的唯一标识符
@@ -56,12 +61,12 @@ public class Table {
      */
     List<Field> fields = new ArrayList<>();
 
-    public Table(TableManager tbm, long uid) {
+    public Table(TableManagerImpl tbm, long uid) {
         this.tbm = tbm;
         this.uid = uid;
     }
 
-    public Table(TableManager tbm, String tableName, long nextUid) {
+    public Table(TableManagerImpl tbm, String tableName, long nextUid) {
         this.tbm = tbm;
         this.name = tableName;
         this.nextUid = nextUid;
@@ -90,10 +95,10 @@ public class Table {
     /**
      * 根据表uid从持久化存储中读取对应的 entry 的 [Data] 部分，并解析为Table对象
      */
-    public static Table loadTable(TableManager tbm, long uid) {
+    public static Table loadTable(TableManagerImpl tbm, long uid) {
         byte[] raw = null;
         try {
-            raw = ((TableManagerImpl) tbm).vm.read(TransactionManagerImpl.SUPER_XID, uid);  // 使用表管理器的版本管理器从数据库中读取指定uid的 entry 的 [Data] 部分
+            raw = tbm.vm.read(TransactionManagerImpl.SUPER_XID, uid);  // 使用表管理器的版本管理器从数据库中读取指定uid的 entry 的 [Data] 部分
         } catch (Exception e) {
             Panic.panic(e);
         }
@@ -112,7 +117,7 @@ public class Table {
         for (Field f : fields) {
             fieldRaw = Bytes.concat(fieldRaw, Parser.long2Byte(f.uid));
         }
-        uid = ((TableManagerImpl) tbm).vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
+        uid = tbm.vm.insert(xid, Bytes.concat(nameRaw, nextRaw, fieldRaw));
         return this;
     }
 
@@ -121,7 +126,7 @@ public class Table {
      * <p>
      * 创建一个新的Table对象并持久化到存储中
      */
-    public static Table createTable(TableManager tbm, long nextUid, long xid, Create create) throws Exception {
+    public static Table createTable(TableManagerImpl tbm, long nextUid, long xid, Create create) throws Exception {
         Table tb = new Table(tbm, create.tableName, nextUid);
         for (int i = 0; i < create.fieldName.length; i++) {
             String fieldName = create.fieldName[i];
@@ -229,6 +234,8 @@ public class Table {
             List<Long> tmp = f.search(l1, r1);
             uids.addAll(tmp);
         }
+        if (uids.size() > 1)
+            tbm.dm.prefetch(uids);  // 调用者接下来会逐个读取这些记录，提前预读它们所在的页面
         return uids;
     }
 
@@ -239,14 +246,28 @@ public class Table {
      */
     public int delete(long xid, Delete delete) throws Exception {
         List<Long> uids = parseWhere(delete.where);
+        boolean hasString = fields.stream().anyMatch(f -> "string".equals(f.fieldType));
         int count = 0;
-        for (Long uid : uids) {
-            if (((TableManagerImpl) tbm).vm.delete(xid, uid))
+        for (long rowUid : uids) {
+            byte[] raw = hasString ? tbm.vm.read(xid, rowUid) : null;  // 记录中可能有行外的值，删除前先取出指针
+            if (tbm.vm.delete(xid, rowUid)) {
                 count++;
+                if (raw != null)
+                    deleteOverflow(xid, parseEntry(raw));
+            }
         }
         return count;
     }
 
+    /**
+     * 删除记录中所有行外的值占用的块
+     */
+    private void deleteOverflow(long xid, Map<String, Object> entry) throws Exception {
+        for (Field f : fields) {
+            f.deleteValue(xid, entry.get(f.fieldName));
+        }
+    }
+
     /**
      * 将一段原始的字节数组 raw 按照字段定义 fields 的顺序逐个解析，并返回一个 Map<字段名, 字段值> 的键值对结构
      * <p>
@@ -266,10 +287,10 @@ public class Table {
     /**
      * 按字段名顺序依次把字段值转化为字节数组并拼接起来
      */
-    private byte[] entry2Raw(Map<String, Object> entry) {
+    private byte[] entry2Raw(long xid, Map<String, Object> entry) throws Exception {
         byte[] raw = new byte[0];
         for (Field f : fields) {
-            raw = Bytes.concat(raw, f.value2Raw(entry.get(f.fieldName)));
+            raw = Bytes.concat(raw, f.value2Raw(xid, uid, entry.get(f.fieldName)));
         }
         return raw;
     }
@@ -295,57 +316,82 @@ public class Table {
 
         Object value = f.string2Value(update.value);  // 更新后的值
         int count = 0;
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);  // 读取 entry 的 [Data] 部分
+        for (long rowUid : uids) {
+            byte[] raw = tbm.vm.read(xid, rowUid);  // 读取 entry 的 [Data] 部分
             if (raw == null) continue;
-            ((TableManagerImpl) tbm).vm.delete(xid, uid);  // 先删除记录
+            tbm.vm.delete(xid, rowUid);  // 先删除记录
             Map<String, Object> entry = parseEntry(raw);  // Map<字段名, 字段值> 的键值对结构
-            entry.put(f.fieldName, value);  // 更新值
-            raw = entry2Raw(entry);  // 重新转为字节数组
-            long uuid = ((TableManagerImpl) tbm).vm.insert(xid, raw);  // 插入完成更新
+            f.deleteValue(xid, entry.put(f.fieldName, value));  // 更新值，被替换的行外值的块一并删除；其它行外的值由新记录沿用
+            raw = entry2Raw(xid, entry);  // 重新转为字节数组
+            long uuid = tbm.vm.insert(xid, uid, raw);  // 插入完成更新，记录放在这张表的段中（uid 是表自己的 uid，不是行的）
             count++;
 
             for (Field fd : fields) {
                 if (fd.isIndexed())
-                    fd.insert(entry.get(fd.fieldName), uuid);  // 将索引字段的值转化为key，与uid一起作为新节点往 B+ 树根节点递归插入
+                    fd.insert(fd.loadValue(xid, entry.get(fd.fieldName)), uuid);  // 将索引字段的值转化为key，与uid一起作为新节点往 B+ 树根节点递归插入
             }
         }
         return count;
     }
 
     /**
-     * 将 Map<字段名, 字段值> 的键值对结构的字段值按照字段名的顺序以字符串形式输出
+     * 将 Map<字段名, 字段值> 的键值对结构中被投影的字段值按照字段名的顺序以字符串形式追加到 sb 中
      * <p>
      * [val1, val2, ...]
+     * <p>
+     * 只有被投影的行外字段才会被读取
      */
-    private String printEntry(Map<String, Object> entry) {
-        StringBuilder sb = new StringBuilder("[");
-        for (int i = 0; i < fields.size(); i++) {
-            Field f = fields.get(i);
-            sb.append(f.printValue(entry.get(f.fieldName)));
-            if (i == fields.size() - 1)
+    private void printEntry(long xid, Map<String, Object> entry, List<Field> projection, StringBuilder sb) throws Exception {
+        sb.append("[");
+        for (int i = 0; i < projection.size(); i++) {
+            Field f = projection.get(i);
+            f.appendValue(xid, entry.get(f.fieldName), sb);
+            if (i == projection.size() - 1)
                 sb.append("]");
             else
                 sb.append(", ");
         }
-        return sb.toString();
+    }
+
+    /**
+     * 把 select 的字段名列表解析为字段，* 表示全部字段
+     */
+    private List<Field> projection(String[] names) throws Exception {
+        if (names.length == 1 && "*".equals(names[0]))
+            return fields;
+        List<Field> projection = new ArrayList<>();
+        for (String name : names) {
+            Field f = null;
+            for (Field fd : fields) {
+                if (fd.fieldName.equals(name)) {
+                    f = fd;
+                    break;
+                }
+            }
+            if (f == null)
+                throw Error.FieldNotFoundException;
+            projection.add(f);
+        }
+        return projection;
     }
 
     /**
      * Select
      * <p>
-     * 将满足where条件的raw的字段值全部组合成字符串
+     * 将满足where条件的raw中被投影的字段值组合成字符串
      * <p>
      * 此处 entry 的 [Data] 部分（raw）里面按字段名顺序存储字段值
      */
     public String read(long xid, Select select) throws Exception {
+        List<Field> projection = projection(select.field);
         List<Long> uids = parseWhere(select.where);
         StringBuilder sb = new StringBuilder();
-        for (Long uid : uids) {
-            byte[] raw = ((TableManagerImpl) tbm).vm.read(xid, uid);
+        for (long rowUid : uids) {
+            byte[] raw = tbm.vm.read(xid, rowUid);
             if (raw == null) continue;
             Map<String, Object> entry = parseEntry(raw);
-            sb.append(printEntry(entry)).append("\n");
+            printEntry(xid, entry, projection, sb);
+            sb.append("\n");
         }
         return sb.toString();
     }
@@ -367,18 +413,123 @@ public class Table {
     /**
      * Insert
      * <p>
-     * 插入
+     * 插入，多行时整批交给 VM 插入，索引也按字段批量插入
      * <p>
      * 此处 entry 的 [Data] 部分（raw）里面按字段名顺序存储字段值
      */
     public void insert(long xid, Insert insert) throws Exception {
-        Map<String, Object> entry = string2Entry(insert.values);
-        byte[] raw = entry2Raw(entry);
-        long uid = ((TableManagerImpl) tbm).vm.insert(xid, raw);
+        if (insert.values.length == 1) {
+            Map<String, Object> entry = string2Entry(insert.values[0]);
+            byte[] raw = entry2Raw(xid, entry);
+            long rowUid = tbm.vm.insert(xid, uid, raw);
+            for (Field f : fields) {
+                if (f.isIndexed())
+                    f.insert(entry.get(f.fieldName), rowUid);  // 将索引字段的值转化为key，与uid一起作为新节点往 B+ 树根节点递归插入
+            }
+            return;
+        }
+
+        List<Map<String, Object>> entries = new ArrayList<>(insert.values.length);
+        List<byte[]> raws = new ArrayList<>(insert.values.length);
+        for (String[] values : insert.values) {
+            Map<String, Object> entry = string2Entry(values);
+            entries.add(entry);
+            raws.add(entry2Raw(xid, entry));
+        }
+        List<Long> uids = tbm.vm.insertBatch(xid, uid, raws);
+        for (Field f : fields) {
+            if (f.isIndexed()) {
+                List<Object> vals = new ArrayList<>(entries.size());
+                for (Map<String, Object> entry : entries) {
+                    vals.add(entry.get(f.fieldName));
+                }
+                f.insert(vals, uids);
+            }
+        }
+    }
+
+    /**
+     * Copy
+     * <p>
+     * 从 CSV 文件批量装载：每行一条记录，字段值按字段顺序以逗号分隔，去掉两端的空白和引号
+     * <p>
+     * 记录通过 VM 的批量装载直接写成完整的页面，不逐条写日志；每个索引字段的 (key, uid) 先做外部排序，
+     * 索引为空时自底向上构建 B+ 树，否则按排序后的顺序逐个插入
+     *
+     * @return 装载的记录数
+     */
+    public int copy(long xid, Copy copy) throws Exception {
+        File file = new File(copy.fileName);
+        if (!file.isFile())
+            throw Error.FileNotExistsException;
+
+        List<Field> indexed = new ArrayList<>();
         for (Field f : fields) {
             if (f.isIndexed())
-                f.insert(entry.get(f.fieldName), uid);  // 将索引字段的值转化为key，与uid一起作为新节点往 B+ 树根节点递归插入
+                indexed.add(f);
+        }
+        ExternalSort[] sorts = new ExternalSort[indexed.size()];
+        try {
+            for (int i = 0; i < sorts.length; i++) {
+                sorts[i] = new ExternalSort(true);
+            }
+            BulkLoad bl = tbm.vm.bulkLoad(xid, uid);
+            ArrayDeque<long[]> pending = new ArrayDeque<>();  // 还没有拿到 uid 的记录的各索引 key，按追加顺序
+            int count = 0;
+            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isBlank())
+                        continue;
+                    Map<String, Object> entry = string2Entry(splitCsv(line));
+                    long[] keys = new long[indexed.size()];
+                    for (int i = 0; i < keys.length; i++) {
+                        Field f = indexed.get(i);
+                        keys[i] = f.value2Key(entry.get(f.fieldName));
+                    }
+                    pending.addLast(keys);
+                    addKeys(sorts, pending, bl.append(entry2Raw(xid, entry)));
+                    count++;
+                }
+            }
+            addKeys(sorts, pending, bl.finish());
+
+            for (int i = 0; i < sorts.length; i++) {
+                indexed.get(i).insert(sorts[i]);
+            }
+            return count;
+        } finally {
+            for (ExternalSort sort : sorts) {
+                if (sort != null)
+                    sort.close();
+            }
+        }
+    }
+
+    /**
+     * 把刚写入的记录的 uid 与等待中的索引 key 配对，加入各索引字段的排序
+     */
+    private static void addKeys(ExternalSort[] sorts, ArrayDeque<long[]> pending, long[] uids) throws Exception {
+        for (long uid : uids) {
+            long[] keys = pending.pollFirst();
+            for (int i = 0; i < sorts.length; i++) {
+                sorts[i].add(keys[i], uid);
+            }
+        }
+    }
+
+    /**
+     * 按逗号拆分一行 CSV，去掉每个值两端的空白和引号
+     */
+    private static String[] splitCsv(String line) {
+        String[] values = line.split(",", -1);
+        for (int i = 0; i < values.length; i++) {
+            String v = values[i].trim();
+            if (v.length() >= 2 && (v.charAt(0) == '"' || v.charAt(0) == '\'') && v.charAt(v.length() - 1) == v.charAt(0))
+                v = v.substring(1, v.length() - 1);
+            values[i] = v;
         }
+        return values;
     }
 
     @Override
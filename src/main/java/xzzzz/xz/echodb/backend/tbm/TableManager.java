@@ -1,6 +1,7 @@
 package xzzzz.xz.echodb.backend.tbm;
 
 import xzzzz.xz.echodb.backend.dm.DataManager;
+import xzzzz.xz.echodb.backend.im.BPlusTree;
 import xzzzz.xz.echodb.backend.parser.statement.*;
 import xzzzz.xz.echodb.backend.utils.Parser;
 import xzzzz.xz.echodb.backend.vm.VersionManager;
@@ -58,14 +59,35 @@ public interface TableManager {
      */
     byte[] delete(long xid, Delete delete) throws Exception;
 
+    /**
+     * Copy
+     * <p>
+     * 从 CSV 文件批量装载
+     */
+    byte[] copy(long xid, Copy copy) throws Exception;
+
     static TableManager create(String path, VersionManager vm, DataManager dm) {
+        return create(path, vm, dm, BPlusTree.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @param fillFactor 批量装载空索引时 B+ 树节点的填充率，取值 (0, 1]
+     */
+    static TableManager create(String path, VersionManager vm, DataManager dm, double fillFactor) {
         Booter booter = Booter.create(path);
         booter.update(Parser.long2Byte(0));
-        return new TableManagerImpl(vm, dm, booter);
+        return new TableManagerImpl(vm, dm, booter, fillFactor);
     }
 
     static TableManager open(String path, VersionManager vm, DataManager dm) {
+        return open(path, vm, dm, BPlusTree.DEFAULT_FILL_FACTOR);
+    }
+
+    /**
+     * @param fillFactor 批量装载空索引时 B+ 树节点的填充率，取值 (0, 1]
+     */
+    static TableManager open(String path, VersionManager vm, DataManager dm, double fillFactor) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        return new TableManagerImpl(vm, dm, booter, fillFactor);
     }
 }
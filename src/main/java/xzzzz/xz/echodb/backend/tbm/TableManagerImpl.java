@@ -37,6 +37,11 @@ public class TableManagerImpl implements TableManager {
      */
     DataManager dm;
 
+    /**
+     * 批量装载空索引时 B+ 树节点的填充率
+     */
+    final double fillFactor;
+
     /**
      * 启动信息管理器，用于管理数据库启动信息
      */
@@ -57,9 +62,12 @@ public class TableManagerImpl implements TableManager {
      */
     private Lock lock;
 
-    public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
+    public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter, double fillFactor) {
+        if (!(fillFactor > 0 && fillFactor <= 1))
+            throw new IllegalArgumentException("fill factor must be in (0, 1]");
         this.vm = vm;
         this.dm = dm;
+        this.fillFactor = fillFactor;
         this.booter = booter;
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
@@ -151,6 +159,7 @@ public class TableManagerImpl implements TableManager {
                 xidTableCache.put(xid, new ArrayList<>());
             }
             xidTableCache.get(xid).add(tb);  // 将新创建的表添加到当前事务的表列表中
+            dm.trackLog(xid);  // 索引的根节点以 SUPER_XID 写入，随事务一起落盘
             return ("create " + create.tableName).getBytes();
         } finally {
             lock.unlock();
@@ -165,6 +174,7 @@ public class TableManagerImpl implements TableManager {
         if (tb == null)
             throw Error.TableNotFoundException;
         tb.insert(xid, insert);
+        dm.trackLog(xid);  // 索引的插入以 SUPER_XID 记录日志，提交时也要落盘
         return "insert".getBytes();
     }
 
@@ -186,6 +196,7 @@ public class TableManagerImpl implements TableManager {
         if (tb == null)
             throw Error.TableNotFoundException;
         int count = tb.update(xid, update);
+        dm.trackLog(xid);
         return ("update " + count).getBytes();
     }
 
@@ -199,4 +210,16 @@ public class TableManagerImpl implements TableManager {
         int count = tb.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
+
+    @Override
+    public byte[] copy(long xid, Copy copy) throws Exception {
+        lock.lock();
+        Table tb = tableCache.get(copy.tableName);
+        lock.unlock();
+        if (tb == null)
+            throw Error.TableNotFoundException;
+        int count = tb.copy(xid, copy);
+        dm.trackLog(xid);
+        return ("copy " + count).getBytes();
+    }
 }
@@ -0,0 +1,73 @@
+package xzzzz.xz.echodb.backend.utils;
+
+import xzzzz.xz.echodb.backend.common.SubArray;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * 在字节数组中原地读写定长整数，不拷贝、不分配
+ * <p>
+ * Parser 的 parseLong 等方法需要先 Arrays.copyOfRange 出一个小数组再包装成 ByteBuffer，long2Byte 等方法也会新建数组，
+ * 页面结构（节点的 key、Entry 的 XMIN/XMAX、页头、槽目录、日志头）每读写一个字段就要分配一两次。
+ * 这里用 VarHandle 把字节数组看作 short/int/long 数组直接访问，偏移量不要求对齐，字节序与 Parser 一致（大端序），
+ * 两者读写的格式完全相同，可以混用。
+ * <p>
+ * 带 SubArray 参数的方法中偏移量相对于 SubArray 的 start。
+ */
+public class ByteCodec {
+
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    public static short getShort(byte[] buf, int offset) {
+        return (short) SHORT.get(buf, offset);
+    }
+
+    /**
+     * 把两个字节作为无符号数读取，用于页内偏移、长度等不会是负数的字段
+     */
+    public static int getUnsignedShort(byte[] buf, int offset) {
+        return Short.toUnsignedInt(getShort(buf, offset));
+    }
+
+    public static void putShort(byte[] buf, int offset, short val) {
+        SHORT.set(buf, offset, val);
+    }
+
+    public static int getInt(byte[] buf, int offset) {
+        return (int) INT.get(buf, offset);
+    }
+
+    public static void putInt(byte[] buf, int offset, int val) {
+        INT.set(buf, offset, val);
+    }
+
+    public static long getLong(byte[] buf, int offset) {
+        return (long) LONG.get(buf, offset);
+    }
+
+    public static void putLong(byte[] buf, int offset, long val) {
+        LONG.set(buf, offset, val);
+    }
+
+    public static short getShort(SubArray sa, int offset) {
+        return getShort(sa.raw, sa.start + offset);
+    }
+
+    public static void putShort(SubArray sa, int offset, short val) {
+        putShort(sa.raw, sa.start + offset, val);
+    }
+
+    public static long getLong(SubArray sa, int offset) {
+        return getLong(sa.raw, sa.start + offset);
+    }
+
+    public static void putLong(SubArray sa, int offset, long val) {
+        putLong(sa.raw, sa.start + offset, val);
+    }
+}
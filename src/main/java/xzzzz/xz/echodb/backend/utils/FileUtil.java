@@ -4,8 +4,13 @@ import xzzzz.xz.echodb.commen.Error;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 
 public class FileUtil {
 
@@ -46,4 +51,34 @@ public class FileUtil {
         }
         return new FileInfo(fc, raf);
     }
+
+    /**
+     * 原子地替换文件内容：先写入 path + tmpSuffix，刷到磁盘后再重命名为 path + suffix
+     */
+    public static void replaceAtomically(String path, String suffix, String tmpSuffix, byte[] data, int length) {
+        File tmp = new File(path + tmpSuffix);
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write(data, 0, length);
+            out.getFD().sync();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+
+        try {
+            Files.move(tmp.toPath(), new File(path + suffix).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 把 f 所在目录的目录项落盘，新建、删除或重命名文件之后调用（不支持时忽略）
+     */
+    public static void syncDirectory(File f) {
+        File dir = f.getAbsoluteFile().getParentFile();
+        try (FileChannel fc = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            fc.force(true);
+        } catch (IOException ignored) {
+        }
+    }
 }
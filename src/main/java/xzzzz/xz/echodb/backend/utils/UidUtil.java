@@ -6,10 +6,12 @@ public class UidUtil {
      * 将 pgno、offset 转化为 uid
      * |------ 高 32 位 pgno ------|-- 中间 16 位（保留） --|-- 低 16 位 offset --|
      * |      页号（Page Number）  |        保留字段        |     页内偏移量       |
+     * <p>
+     * 槽页中低 16 位是最高位为 1 的槽号，见 PageX
      */
     public static long parseToUid(int pgno, short offset) {
         long u0 = pgno;  // 左移 32 位 → 放到高位
-        long u1 = offset;
+        long u1 = offset & 0xFFFFL;  // 槽号的最高位为 1，作为 short 是负数，不能符号扩展到页号中
         return u0 << 32 | u1;
     }
 
@@ -1,11 +1,8 @@
 package xzzzz.xz.echodb.backend.vm;
 
-import com.google.common.primitives.Bytes;
 import xzzzz.xz.echodb.backend.common.SubArray;
 import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
-import xzzzz.xz.echodb.backend.utils.Parser;
-
-import java.util.Arrays;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
 
 /**
  * VM向上层抽象出 Entry 结构
@@ -68,9 +65,10 @@ public class Entry {
      * 生成记录格式数据
      */
     public static byte[] wrapEntryRaw(long xid, byte[] data) {
-        byte[] xmin = Parser.long2Byte(xid);
-        byte[] xmax = new byte[8];  // 创建一个空的8字节数组，等待版本修改或删除时才修改
-        return Bytes.concat(xmin, xmax, data);
+        byte[] raw = new byte[OF_DATA + data.length];  // XMAX 为 0，等待版本修改或删除时才修改
+        ByteCodec.putLong(raw, OF_XMIN, xid);
+        System.arraycopy(data, 0, raw, OF_DATA, data.length);
+        return raw;
     }
 
     /**
@@ -91,8 +89,7 @@ public class Entry {
     public long getXmin() {
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMIN, sa.start + OF_XMAX));
+            return ByteCodec.getLong(dataItem.data(), OF_XMIN);
         } finally {
             dataItem.rUnLock();
         }
@@ -101,8 +98,7 @@ public class Entry {
     public long getXmax() {
         dataItem.rLock();
         try {
-            SubArray sa = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(sa.raw, sa.start + OF_XMAX, sa.start + OF_DATA));
+            return ByteCodec.getLong(dataItem.data(), OF_XMAX);
         } finally {
             dataItem.rUnLock();
         }
@@ -114,8 +110,7 @@ public class Entry {
     public void setXmax(long xid) {
         dataItem.before();
         try {
-            SubArray sa = dataItem.data();
-            System.arraycopy(Parser.long2Byte(xid), 0, sa.raw, sa.start + OF_XMAX, 8);
+            ByteCodec.putLong(dataItem.data(), OF_XMAX, xid);
         } finally {
             dataItem.after(xid);  // 生成一个修改日志
         }
@@ -2,7 +2,9 @@ package xzzzz.xz.echodb.backend.vm;
 
 import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -35,6 +37,11 @@ public class Transaction {
      */
     public boolean autoAborted;
 
+    /**
+     * 事务设置了 XMAX 的版本，提交后交给 Vacuum 回收
+     */
+    public List<Long> deleted = new ArrayList<>();
+
     /**
      * 创建新事务
      */
@@ -0,0 +1,106 @@
+package xzzzz.xz.echodb.backend.vm;
+
+import xzzzz.xz.echodb.backend.dm.DataManager;
+import xzzzz.xz.echodb.backend.utils.Panic;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.LongSupplier;
+
+/**
+ * 回收已删除的版本
+ * <p>
+ * 事务 T 提交时，它设置了 XMAX 的版本连同一个水位线 horizon（提交时已经开始过的最大 xid）一起进入回收队列。
+ * 之后开始的事务都能看到 T 已提交、且 T 不在它们的快照中，因此看不到这些版本；
+ * 当所有活跃事务的 xid 都大于 horizon 时，提交时还在运行的事务也都结束了，这些版本对任何事务都不可见，
+ * 由这个线程交给 DM 回收（置为无效，空间由页面压缩回收）。B+ 树中残留的 uid 之后读取到 null，与不可见的版本一样被跳过。
+ * <p>
+ * 回收队列只在内存中，关闭或崩溃时尚未回收的版本会一直留在页面中（与原来一样只是占用空间）。
+ */
+public class Vacuum implements Runnable {
+
+    /**
+     * 检查回收队列的间隔（毫秒）
+     */
+    private static final long INTERVAL = 500;
+
+    private static class Batch {
+        final long horizon;
+        final List<Long> uids;
+
+        Batch(long horizon, List<Long> uids) {
+            this.horizon = horizon;
+            this.uids = uids;
+        }
+    }
+
+    private final DataManager dm;
+
+    /**
+     * 当前最小的活跃事务 xid，没有活跃事务时为 Long.MAX_VALUE
+     */
+    private final LongSupplier minActive;
+
+    /**
+     * 按提交顺序排列，horizon 单调不减
+     */
+    private final ArrayDeque<Batch> queue = new ArrayDeque<>();
+
+    private final Thread thread;
+
+    private volatile boolean closed;
+
+    Vacuum(DataManager dm, LongSupplier minActive) {
+        this.dm = dm;
+        this.minActive = minActive;
+        this.thread = new Thread(this, "version-vacuum");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 登记一个已提交事务删除的版本
+     */
+    synchronized void add(long horizon, List<Long> uids) {
+        queue.addLast(new Batch(horizon, uids));
+    }
+
+    private synchronized Batch poll(long min) {
+        Batch b = queue.peekFirst();
+        if (b == null || b.horizon >= min)
+            return null;
+        return queue.pollFirst();
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(INTERVAL));
+            Batch b;
+            while (!closed && (b = poll(minActive.getAsLong())) != null) {
+                for (long uid : b.uids) {
+                    try {
+                        dm.free(uid);
+                    } catch (Exception e) {
+                        Panic.panic(e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止回收线程，并等待正在回收的一批结束
+     */
+    void close() {
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+}
@@ -1,8 +1,12 @@
 package xzzzz.xz.echodb.backend.vm;
 
+import xzzzz.xz.echodb.backend.dm.BulkLoad;
 import xzzzz.xz.echodb.backend.dm.DataManager;
+import xzzzz.xz.echodb.backend.dm.pageIndex.SegmentMap;
 import xzzzz.xz.echodb.backend.tm.TransactionManager;
 
+import java.util.List;
+
 public interface VersionManager {
 
     /**
@@ -11,9 +15,40 @@ public interface VersionManager {
     byte[] read(long xid, long uid) throws Exception;
 
     /**
-     * 将数据包裹成 Entry，然后交给 DM 插入即可
+     * 插入到共享段
+     */
+    default long insert(long xid, byte[] data) throws Exception {
+        return insert(xid, SegmentMap.SHARED, data);
+    }
+
+    /**
+     * 将数据包裹成 Entry，然后交给 DM 插入到 segment 段即可
+     */
+    long insert(long xid, long segment, byte[] data) throws Exception;
+
+    /**
+     * 批量插入到共享段
+     */
+    default List<Long> insertBatch(long xid, List<byte[]> datas) throws Exception {
+        return insertBatch(xid, SegmentMap.SHARED, datas);
+    }
+
+    /**
+     * 批量插入，将每个数据包裹成 Entry 后交给 DM 批量插入到 segment 段，按顺序返回 uid
+     */
+    List<Long> insertBatch(long xid, long segment, List<byte[]> datas) throws Exception;
+
+    /**
+     * 开始一次装载到共享段的批量装载
      */
-    long insert(long xid, byte[] data) throws Exception;
+    default BulkLoad bulkLoad(long xid) throws Exception {
+        return bulkLoad(xid, SegmentMap.SHARED);
+    }
+
+    /**
+     * 开始一次批量装载，追加的数据先包裹成 Entry 再交给 DM 的批量装载，写入的页面归 segment 段所有
+     */
+    BulkLoad bulkLoad(long xid, long segment) throws Exception;
 
     /**
      * 设置 Xmax 删除一个数据项
@@ -36,6 +71,11 @@ public interface VersionManager {
      */
     void abort(long xid);
 
+    /**
+     * 停止后台回收已删除版本的线程，需在关闭 DM 之前调用
+     */
+    void close();
+
     static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
         return new VersionManagerImpl(tm, dm);
     }
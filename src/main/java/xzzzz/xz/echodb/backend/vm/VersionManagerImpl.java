@@ -1,13 +1,17 @@
 package xzzzz.xz.echodb.backend.vm;
 
 import xzzzz.xz.echodb.backend.common.AbstractCache;
+import xzzzz.xz.echodb.backend.common.ClockPolicy;
+import xzzzz.xz.echodb.backend.dm.BulkLoad;
 import xzzzz.xz.echodb.backend.dm.DataManager;
 import xzzzz.xz.echodb.backend.tm.TransactionManager;
 import xzzzz.xz.echodb.backend.tm.TransactionManagerImpl;
 import xzzzz.xz.echodb.backend.utils.Panic;
 import xzzzz.xz.echodb.commen.Error;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -27,6 +31,9 @@ import java.util.concurrent.locks.ReentrantLock;
  * 然后事务只会读取对自己“可见”的版本：
  * 没被其他事务插入/删除的版本
  * 没被自己之后的事务改动的版本
+ * <p>
+ * Entry 缓存与 DM 的 DataItem 缓存共享同一个内存预算，引用归零后由 CLOCK 置换；
+ * 缓存中的 Entry 持有 DataItem 的引用，Entry 被驱逐后 DataItem 才能被驱逐。
  */
 public class VersionManagerImpl extends AbstractCache<Entry> implements VersionManager {
 
@@ -43,14 +50,47 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     LockTable lt;
 
+    /**
+     * 已经开始过的最大 xid，由 lock 保护
+     */
+    private long lastBegun;
+
+    /**
+     * 回收已删除的版本
+     */
+    private final Vacuum vacuum;
+
+    /**
+     * 一个缓存的 Entry 的估算字节数：Entry 对象，以及缓存映射表和置换策略中的记录。数据在 DataItem 中，由 DM 记账
+     */
+    private static final int ENTRY_WEIGHT = 96;
+
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
+        super(dm.getMemoryBudget(), () -> new ClockPolicy(1024));
         this.tm = tm;
         this.dm = dm;
         this.activeTransaction = new HashMap<>();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
+        this.vacuum = new Vacuum(dm, this::minActiveXid);
+    }
+
+    /**
+     * 最小的活跃用户事务 xid，没有活跃事务时为 Long.MAX_VALUE
+     */
+    private long minActiveXid() {
+        lock.lock();
+        try {
+            long min = Long.MAX_VALUE;
+            for (long xid : activeTransaction.keySet()) {
+                if (xid != TransactionManagerImpl.SUPER_XID && xid < min)
+                    min = xid;
+            }
+            return min;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
@@ -84,7 +124,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     @Override
-    public long insert(long xid, byte[] data) throws Exception {
+    public long insert(long xid, long segment, byte[] data) throws Exception {
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         lock.unlock();
@@ -93,7 +133,46 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             throw t.err;
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
-        return dm.insert(xid, raw);
+        return dm.insert(xid, segment, raw);
+    }
+
+    @Override
+    public List<Long> insertBatch(long xid, long segment, List<byte[]> datas) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if (t.err != null)
+            throw t.err;
+
+        List<byte[]> raws = new ArrayList<>(datas.size());
+        for (byte[] data : datas) {
+            raws.add(Entry.wrapEntryRaw(xid, data));
+        }
+        return dm.insertBatch(xid, segment, raws);
+    }
+
+    @Override
+    public BulkLoad bulkLoad(long xid, long segment) throws Exception {
+        lock.lock();
+        Transaction t = activeTransaction.get(xid);
+        lock.unlock();
+
+        if (t.err != null)
+            throw t.err;
+
+        BulkLoad bl = dm.bulkLoad(xid, segment);
+        return new BulkLoad() {
+            @Override
+            public long[] append(byte[] data) throws Exception {
+                return bl.append(Entry.wrapEntryRaw(xid, data));
+            }
+
+            @Override
+            public long[] finish() throws Exception {
+                return bl.finish();
+            }
+        };
     }
 
     @Override
@@ -169,6 +248,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             }
 
             entry.setXmax(xid);
+            t.deleted.add(uid);
             return true;
         } finally {
             entry.release();
@@ -180,6 +260,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         lock.lock();
         try {
             long xid = tm.begin();
+            lastBegun = Math.max(lastBegun, xid);
             Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
             activeTransaction.put(xid, t);  // 将新的事务对象添加到活动事务的映射中
             return xid;
@@ -204,12 +285,17 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             Panic.panic(e);
         }
 
+        dm.flushLog(xid);  // 事务写的日志落盘之后才能标记为已提交，同时提交的事务共用一次 fsync
+
         lock.lock();
         activeTransaction.remove(xid);
+        long horizon = lastBegun;
         lock.unlock();
 
         lt.remove(xid);
         tm.commit(xid);
+        if (!t.deleted.isEmpty())  // 提交之后删除才生效，此时还在运行的事务（xid <= horizon）结束后即可回收
+            vacuum.add(horizon, t.deleted);
     }
 
     @Override
@@ -227,6 +313,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         if (t.autoAborted) return;  // 如果事务已经被自动中止，那么直接返回，不做任何处理
         lt.remove(xid);
         tm.abort(xid);
+        dm.forgetLog(xid);
+    }
+
+    /**
+     * 释放缓存的 Entry 对 DataItem 的引用，需要在 DM 关闭之前调用
+     */
+    @Override
+    public void close() {
+        vacuum.close();
+        super.close();
     }
 
     @Override
@@ -242,6 +338,11 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
         entry.remove();
     }
 
+    @Override
+    protected long weigh(Entry entry) {
+        return ENTRY_WEIGHT;
+    }
+
     /**
      * 在使用完 Entry 后，也应当及时调用 releaseEntry() 方法，释放掉 Entry 的缓存（由 VM 缓存 Entry）
      * 进而会由 DataItem 的引用释放掉 DataItem 的缓存（由 DM 缓存 DataItem）
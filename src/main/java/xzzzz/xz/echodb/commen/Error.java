@@ -19,6 +19,9 @@ public class Error {
     public static Exception PageIsNullException = new RuntimeException("Page is null!");
     public static Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static Exception BadPageException = new RuntimeException("Bad page format!");
+    public static Exception InvalidUidException = new RuntimeException("Invalid uid!");
+    public static Exception BadCheckpointException = new RuntimeException("Bad checkpoint file!");
 
     // VM
     public static Exception DeadlockException = new RuntimeException("Deadlock!");
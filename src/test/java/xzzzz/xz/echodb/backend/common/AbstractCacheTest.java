@@ -0,0 +1,242 @@
+package xzzzz.xz.echodb.backend.common;
+
+import org.junit.Test;
+import xzzzz.xz.echodb.commen.Error;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AbstractCacheTest {
+
+    /**
+     * 缓存的资源就是 key 本身，记录回源和写回次数
+     */
+    static class CountingCache extends AbstractCache<Long> {
+        final AtomicInteger loads = new AtomicInteger();
+        final AtomicInteger evicts = new AtomicInteger();
+        volatile CountDownLatch gate;
+        volatile Exception failure;
+        volatile CountDownLatch writeGate;  // 不为 null 时写回等待它，模拟慢的磁盘写
+        volatile Long writing;
+
+        CountingCache(int maxResource, boolean replacing) {
+            super(maxResource, replacing ? () -> new ClockPolicy(4) : null);
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            loads.incrementAndGet();
+            if (gate != null)
+                gate.await();
+            if (failure != null)
+                throw failure;
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            evicts.incrementAndGet();
+            writing = obj;
+            CountDownLatch g = writeGate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentMissLoadsOnce() throws Exception {
+        CountingCache cache = new CountingCache(100, false);
+        cache.gate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        Future<?>[] fs = new Future<?>[8];
+        for (int i = 0; i < fs.length; i++) {
+            fs[i] = pool.submit(() -> {
+                assertEquals(Long.valueOf(7), cache.get(7));
+                return null;
+            });
+        }
+        Thread.sleep(50);  // 让所有线程都等在同一个装载上
+        cache.gate.countDown();
+        for (Future<?> f : fs) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+
+        assertEquals(1, cache.loads.get());
+        for (int i = 0; i < fs.length; i++) {
+            cache.release(7);
+        }
+        assertEquals(1, cache.evicts.get());  // 引用全部归零后才驱逐
+    }
+
+    @Test
+    public void testWaitersSeeSameException() throws Exception {
+        CountingCache cache = new CountingCache(100, false);
+        cache.gate = new CountDownLatch(1);
+        cache.failure = Error.NullEntryException;
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        Future<?>[] fs = new Future<?>[4];
+        for (int i = 0; i < fs.length; i++) {
+            fs[i] = pool.submit(() -> {
+                try {
+                    cache.get(3);
+                    fail();
+                } catch (Exception e) {
+                    assertSame(Error.NullEntryException, e);
+                }
+                return null;
+            });
+        }
+        Thread.sleep(50);
+        cache.gate.countDown();
+        for (Future<?> f : fs) {
+            f.get(5, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testEvictAcrossSegments() throws Exception {
+        CountingCache cache = new CountingCache(10, true);
+        for (long k = 0; k < 10; k++) {
+            cache.get(k);
+            cache.release(k);
+        }
+        assertEquals(0, cache.evicts.get());  // 引用归零后仍驻留
+
+        // 缓存已满，继续装入时驱逐未被引用的资源（不一定在同一个分段）
+        for (long k = 100; k < 200; k++) {
+            cache.get(k);
+            cache.release(k);
+        }
+        assertEquals(100, cache.evicts.get());
+
+        // 全部被引用时缓存满
+        for (long k = 200; k < 210; k++) {
+            cache.get(k);
+        }
+        try {
+            cache.get(300);
+            fail();
+        } catch (Exception e) {
+            assertSame(Error.CacheFullException, e);
+        }
+    }
+
+    @Test
+    public void testWriteBackOutsideSegmentLock() throws Exception {
+        CountingCache cache = new CountingCache(10, true);
+        for (long k = 0; k < 10; k++) {
+            cache.get(k);
+            cache.release(k);
+        }
+        cache.writeGate = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(3);
+        Future<?> evicting = pool.submit(() -> cache.get(100));
+        while (cache.writing == null) {
+            Thread.sleep(1);
+        }
+        long victim = cache.writing;
+
+        // 写回进行中，其它资源（包括同一分段的）的命中不等待写回
+        Future<?> hits = pool.submit(() -> {
+            for (long k = 0; k < 10; k++) {
+                if (k != victim) {
+                    cache.get(k);
+                    cache.release(k);
+                }
+            }
+            return null;
+        });
+        hits.get(5, TimeUnit.SECONDS);
+
+        // 被驱逐的资源等写回完成之后才重新装载
+        int loads = cache.loads.get();
+        Future<?> reload = pool.submit(() -> cache.get(victim));
+        Thread.sleep(50);
+        assertFalse(reload.isDone());
+        assertEquals(loads, cache.loads.get());
+        cache.writeGate.countDown();
+        evicting.get(5, TimeUnit.SECONDS);
+        reload.get(5, TimeUnit.SECONDS);
+        assertEquals(loads + 2, cache.loads.get());  // 驱逐完成后装入 100，以及重新装载被驱逐的资源
+        pool.shutdown();
+    }
+
+    /**
+     * 上层缓存的每个资源引用下层缓存中 key 相同的资源，两者共享一个内存预算，每个资源 100 字节
+     */
+    static class LayeredCache extends AbstractCache<Long> {
+        final LayeredCache lower;
+
+        LayeredCache(MemoryBudget budget, LayeredCache lower) {
+            super(budget, () -> new ClockPolicy(4));
+            this.lower = lower;
+        }
+
+        @Override
+        protected Long getForCache(long key) throws Exception {
+            if (lower != null)
+                lower.get(key);
+            return key;
+        }
+
+        @Override
+        protected void releaseForCache(Long obj) {
+            if (lower != null)
+                lower.release(obj);
+        }
+
+        @Override
+        protected long weigh(Long obj) {
+            return 100;
+        }
+    }
+
+    @Test
+    public void testSharedBudget() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1000);
+        LayeredCache lower = new LayeredCache(budget, null);
+        LayeredCache upper = new LayeredCache(budget, lower);
+
+        // 被引用的资源不能驱逐，预算暂时超出而不是拒绝装入
+        for (long k = 0; k < 8; k++) {
+            upper.get(k);
+        }
+        assertEquals(1600, budget.getUsed());
+
+        // 引用释放后，继续装入时上层先驱逐、释放对下层的引用，总量回到预算以内
+        for (long k = 0; k < 8; k++) {
+            upper.release(k);
+        }
+        for (long k = 100; k < 200; k++) {
+            upper.get(k);
+            upper.release(k);
+        }
+        assertTrue(budget.getUsed() <= 1000);
+        assertEquals(1700, budget.getPeak());  // 下一个资源的下层部分装入时达到峰值
+
+        // 按 key 驱逐：上层的资源先被驱逐，下层的资源随之可以驱逐
+        upper.get(500);
+        upper.release(500);
+        assertEquals(2, budget.purge(k -> k == 500));
+        upper.close();
+        lower.close();
+        assertEquals(0, budget.getUsed());
+    }
+}
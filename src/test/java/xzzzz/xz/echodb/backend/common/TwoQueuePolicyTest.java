@@ -0,0 +1,78 @@
+package xzzzz.xz.echodb.backend.common;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TwoQueuePolicyTest {
+
+    /**
+     * 用一个集合模拟容量为 capacity 的缓存，只驱逐未被引用的资源（这里所有资源都未被引用）
+     */
+    static class SimCache {
+        final int capacity;
+        final ReplacePolicy policy;
+        final Set<Long> resident = new HashSet<>();
+        int misses;
+
+        SimCache(int capacity, ReplacePolicy policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+        }
+
+        void get(long key) {
+            if (resident.contains(key)) {
+                policy.access(key);
+                return;
+            }
+            misses++;
+            if (resident.size() == capacity) {
+                Long victim = policy.victim(k -> true);
+                resident.remove(victim);
+                policy.remove(victim);
+            }
+            resident.add(key);
+            policy.admit(key);
+        }
+    }
+
+    @Test
+    public void testScanKeepsHotSet() {
+        SimCache cache = new SimCache(64, new TwoQueuePolicy(64));
+        // 热数据被反复访问（重用距离在缓存 + A1out 的范围内），经过 A1out 进入 Am
+        for (int round = 0; round < 20; round++) {
+            for (long k = 1; k <= 8; k++) {
+                cache.get(k);
+            }
+            for (long k = 100 + round * 20; k < 120 + round * 20; k++) {
+                cache.get(k);
+            }
+        }
+
+        // 一次大范围扫描
+        for (long k = 1000; k < 2000; k++) {
+            cache.get(k);
+        }
+
+        int before = cache.misses;
+        for (long k = 1; k <= 8; k++) {
+            cache.get(k);
+        }
+        assertEquals(before, cache.misses);  // 热数据仍然全部命中
+    }
+
+    @Test
+    public void testVictimSkipsPinned() {
+        TwoQueuePolicy policy = new TwoQueuePolicy(4);
+        for (long k = 1; k <= 4; k++) {
+            policy.admit(k);
+        }
+        Long victim = policy.victim(k -> k == 3);
+        assertEquals(Long.valueOf(3), victim);
+        assertTrue(policy.victim(k -> false) == null);
+    }
+}
@@ -0,0 +1,160 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.logger.LoggerImpl;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.MEM;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.crash;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.data;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.quiet;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.read;
+
+public class CheckpointTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+
+    private File dir;
+
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-ckpt").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        RecoverTest.delete(dir);
+    }
+
+    /**
+     * 按编号排列的日志分段
+     */
+    private List<File> segments() {
+        String prefix = new File(path).getName() + LoggerImpl.LOG_SUFFIX + ".";
+        List<File> files = new ArrayList<>();
+        for (File f : dir.listFiles()) {
+            if (f.isFile() && f.getName().startsWith(prefix))
+                files.add(f);
+        }
+        files.sort(null);
+        return files;
+    }
+
+    /**
+     * 分段头中的 BaseLsn
+     */
+    private static long baseLsn(File segment) throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "r")) {
+            raf.seek(8);
+            return raf.readLong();
+        }
+    }
+
+    /**
+     * 写入、检查点、继续写入、不做检查点直接崩溃：恢复从检查点开始，已提交的数据完整，活跃事务的数据全部撤销，
+     * 检查点删除的只是完全位于 undoLsn 之前的分段
+     */
+    @Test
+    public void testRecoverFromCheckpoint() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm, quiet().logSegmentSize(SEGMENT_SIZE));
+        long xid = tm.begin();
+        List<Long> before = new ArrayList<>();
+        long active = 0;
+        List<Long> undone = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            before.add(dm.insert(xid, data(i, 100)));
+            if (i == 100) {
+                active = tm.begin();  // 跨越检查点的活跃事务，撤销需要它在检查点之前、若干分段之前写的日志
+                undone.add(dm.insert(active, data(300, 100)));
+            }
+        }
+        tm.commit(xid);
+
+        dm.flushLog();
+        int segmentsBefore = segments().size();
+        Checkpoint.Record r = dm.checkpoint.take(true);
+        List<File> kept = segments();
+        assertTrue(kept.size() < segmentsBefore);
+        assertTrue(r.undoLsn < r.redoLsn);
+        assertTrue(baseLsn(kept.get(0)) <= r.undoLsn);  // undoLsn 所在的分段还在
+        assertTrue(kept.size() == 1 || baseLsn(kept.get(1)) > r.undoLsn);  // 它之前的分段都已经删除
+
+        xid = tm.begin();
+        List<Long> after = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            after.add(dm.insert(xid, data(1000 + i, 100)));
+            undone.add(dm.insert(active, data(2000 + i, 100)));
+        }
+        tm.commit(xid);
+        dm.free(before.get(0));  // 检查点之后的修改只在日志中
+
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        DataManager recovered = DataManager.open(copy, MEM, tm);
+        assertNull(read(recovered, before.get(0)));
+        for (int i = 1; i < 200; i++) {
+            assertArrayEquals(data(i, 100), read(recovered, before.get(i)));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(data(1000 + i, 100), read(recovered, after.get(i)));
+        }
+        for (long uid : undone) {
+            assertNull(read(recovered, uid));
+        }
+        recovered.close();
+        tm.close();
+    }
+
+    /**
+     * 检查点之后没有活跃事务时，undoLsn 就是 redoLsn，之前写满的分段全部删除
+     */
+    @Test
+    public void testCheckpointDeletesSegments() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm, quiet().logSegmentSize(SEGMENT_SIZE));
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            uids.add(dm.insert(xid, data(i, 100)));
+        }
+        tm.commit(xid);
+
+        Checkpoint.Record r = dm.checkpoint.take(true);
+        assertTrue(r.activeTransactions.isEmpty());
+        assertTrue(r.dirtyPages.isEmpty());
+        List<File> kept = segments();
+        assertEquals(1, kept.size());
+        assertTrue(baseLsn(kept.get(0)) <= r.undoLsn);
+
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        DataManager recovered = DataManager.open(copy, MEM, tm);
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(data(i, 100), read(recovered, uids.get(i)));
+        }
+        recovered.close();
+        tm.close();
+    }
+}
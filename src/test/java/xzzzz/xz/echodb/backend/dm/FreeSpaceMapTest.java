@@ -0,0 +1,186 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCacheImpl;
+import xzzzz.xz.echodb.backend.dm.pageIndex.FreeSpaceMap;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.MEM;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.crash;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.data;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.quiet;
+
+public class FreeSpaceMapTest {
+
+    private File dir;
+
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-fsm").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        RecoverTest.delete(dir);
+    }
+
+    /**
+     * 新建数据库，写入长短不一的记录后正常关闭，各页的空闲空间各不相同
+     */
+    private void populate() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        for (int i = 0; i < 300; i++) {
+            dm.insert(xid, data(i, 200 + i * 37 % 1500));
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+    }
+
+    private static int pageNumber(String path) {
+        return (int) (new File(path + PageCacheImpl.DB_SUFFIX).length() / PageCache.PAGE_SIZE);
+    }
+
+    /**
+     * 把 path 处已经关闭的数据库复制到一个新目录，不带 .fsm，返回副本的路径
+     */
+    private String copyWithoutMap(String path) throws Exception {
+        File copy = new File(dir, "copy" + System.nanoTime());
+        copy.mkdir();
+        File src = new File(path);
+        for (File f : src.getParentFile().listFiles()) {
+            if (f.isFile() && f.getName().startsWith(src.getName() + ".") && !f.getName().endsWith(FreeSpaceMap.FSM_SUFFIX))
+                Files.copy(f.toPath(), new File(copy, f.getName()).toPath());
+        }
+        return new File(copy, src.getName()).getPath();
+    }
+
+    /**
+     * 打开数据库后 PageIndex 中各页面的空闲空间，下标为页号
+     */
+    private static int[] openSpaces(String path) {
+        TransactionManager tm = TransactionManager.open(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.open(path, MEM, tm, false, quiet());
+        int[] spaces = dm.segments.freeSpaces(dm.pc.getTotalPageNumber());
+        dm.close();
+        tm.close();
+        return spaces;
+    }
+
+    /**
+     * 逐页扫描得到的空闲空间
+     */
+    private int[] scannedSpaces(String path) throws Exception {
+        return openSpaces(copyWithoutMap(path));
+    }
+
+    private static int[] readMap(String path) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(new File(path + FreeSpaceMap.FSM_SUFFIX).toPath()));
+        int[] spaces = new int[buf.getInt() + 1];
+        for (int pgno = 1; pgno < spaces.length; pgno++) {
+            spaces[pgno] = Short.toUnsignedInt(buf.getShort());
+        }
+        assertEquals(0, buf.remaining());
+        return spaces;
+    }
+
+    private void writeMap(int count, int[] spaces, int extra) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(4 + (spaces.length - 1 + extra) * 2);
+        buf.putInt(count);
+        for (int pgno = 1; pgno < spaces.length; pgno++) {
+            buf.putShort((short) spaces[pgno]);
+        }
+        Files.write(new File(path + FreeSpaceMap.FSM_SUFFIX).toPath(), buf.array());
+    }
+
+    /**
+     * 每页都登记为 100 字节空闲的空闲空间表：用上了它的话，打开后的 PageIndex 与扫描结果明显不同
+     */
+    private static int[] fake(int pageNumber) {
+        int[] spaces = new int[pageNumber + 1];
+        Arrays.fill(spaces, 2, spaces.length, 100);
+        return spaces;
+    }
+
+    /**
+     * 正常关闭后写入的空闲空间表与逐页扫描一致；完好的表在下次正常打开时直接使用，不再扫描
+     */
+    @Test
+    public void testCleanOpenUsesMap() throws Exception {
+        populate();
+        int n = pageNumber(path);
+        int[] scanned = scannedSpaces(path);
+        assertArrayEquals(scanned, readMap(path));
+
+        writeMap(n, fake(n), 0);
+        assertArrayEquals(fake(n), openSpaces(path));
+    }
+
+    /**
+     * 长度不符、页数不符、空闲空间超过一页或者头部不完整的表整体放弃，逐页重建，关闭时重新写入
+     */
+    @Test
+    public void testCorruptMapRebuilt() throws Exception {
+        populate();
+        int n = pageNumber(path);
+        int[] scanned = scannedSpaces(path);
+        int[] tooLarge = fake(n);
+        tooLarge[n] = PageCache.PAGE_SIZE + 1;
+
+        for (int variant = 0; variant < 4; variant++) {
+            switch (variant) {
+                case 0 -> writeMap(n, fake(n), 1);  // 多出一项
+                case 1 -> writeMap(n + 1, fake(n), 1);  // 长度自洽但页数不符
+                case 2 -> writeMap(n, tooLarge, 0);
+                default -> Files.write(new File(path + FreeSpaceMap.FSM_SUFFIX).toPath(), new byte[]{0, 0});
+            }
+            assertArrayEquals("variant " + variant, scanned, openSpaces(path));
+            assertArrayEquals(scanned, readMap(path));  // 关闭时重新写入
+        }
+    }
+
+    /**
+     * 崩溃后留下的是更早一次正常关闭时写的表，页数虽然相同，内容已经过期：恢复之后逐页重建，正常关闭时重新写入
+     */
+    @Test
+    public void testUncleanShutdownRebuilds() throws Exception {
+        populate();
+        int n = pageNumber(path);
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, false, quiet());
+        long xid = tm.begin();
+        for (int i = 0; i < 10; i++) {
+            dm.insert(xid, data(i, 50));
+        }
+        tm.commit(xid);
+        String copy = crash(dm, dir, path);
+        String reference = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        int[] stale = readMap(copy);
+        assertEquals(n, pageNumber(copy));  // 页数相同，只靠页数发现不了
+        new File(reference + FreeSpaceMap.FSM_SUFFIX).delete();
+        int[] scanned = openSpaces(reference);
+        assertFalse(Arrays.equals(stale, scanned));
+
+        assertArrayEquals(scanned, openSpaces(copy));
+        assertArrayEquals(scanned, readMap(copy));
+    }
+}
@@ -0,0 +1,67 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 逐条插入与批量插入的吞吐对比
+ * <p>
+ * 两种方式各自在新建的数据库中插入相同数量、相同大小的数据项，批量插入每批 batch 条。
+ * 不是单元测试，手动运行：InsertBatchBench [数据项数] [数据项字节数] [每批条数]
+ */
+public class InsertBatchBench {
+
+    public static void main(String[] args) throws Exception {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+        int size = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+        int batch = args.length > 2 ? Integer.parseInt(args[2]) : 500;
+
+        byte[] data = new byte[size];
+        Arrays.fill(data, (byte) 7);
+        System.out.printf("rows=%d, size=%d B, batch=%d%n", rows, size, batch);
+
+        double single = run(rows, data, 1);
+        System.out.printf("insert      %10.0f rows/s%n", single);
+        double batched = run(rows, data, batch);
+        System.out.printf("insertBatch %10.0f rows/s  x%.2f%n", batched, batched / single);
+    }
+
+    private static double run(int rows, byte[] data, int batch) throws Exception {
+        File dir = Files.createTempDirectory("echodb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 64L << 20, tm);
+        long xid = tm.begin();
+
+        long start = System.nanoTime();
+        if (batch == 1) {
+            for (int i = 0; i < rows; i++) {
+                dm.insert(xid, data);
+            }
+        } else {
+            List<byte[]> datas = new ArrayList<>(batch);
+            for (int i = 0; i < rows; i += batch) {
+                datas.clear();
+                for (int j = i; j < Math.min(rows, i + batch); j++) {
+                    datas.add(data);
+                }
+                dm.insertBatch(xid, datas);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+        return rows / seconds;
+    }
+}
@@ -0,0 +1,463 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.common.SubArray;
+import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
+import xzzzz.xz.echodb.backend.dm.logger.LoggerImpl;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCacheImpl;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+import xzzzz.xz.echodb.backend.utils.UidUtil;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RecoverTest {
+
+    static final long MEM = 1 << 20;
+
+    private File dir;
+
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-recover").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        delete(dir);
+    }
+
+    static void delete(File dir) {
+        for (File f : dir.listFiles()) {
+            if (f.isDirectory())
+                delete(f);
+            else
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * 没有后台写回、检查点和压缩的 DM：测试自己决定哪些页面在“崩溃”时已经落盘
+     */
+    static DataManagerOptions quiet() {
+        return new DataManagerOptions().flushInterval(3_600_000).compactRate(0)
+                .checkpointInterval(0).checkpointLogBytes(0);
+    }
+
+    /**
+     * 模拟崩溃：日志落盘后把数据库的所有文件复制到 dir 下的新目录，返回副本的路径。
+     * 没有后台写回时，副本就是此刻断电后磁盘上的状态
+     */
+    static String crash(DataManager dm, File dir, String path) throws Exception {
+        dm.flushLog();
+        File copy = new File(dir, "crash" + System.nanoTime());
+        copy.mkdir();
+        String name = new File(path).getName();
+        for (File f : dir.listFiles()) {
+            if (f.isFile() && f.getName().startsWith(name + "."))
+                Files.copy(f.toPath(), new File(copy, f.getName()).toPath());
+        }
+        return new File(copy, name).getPath();
+    }
+
+    /**
+     * 截掉最后一个日志分段末尾的 bytes 个字节，模拟写了一半的日志
+     */
+    static void tearLog(String path, int bytes) throws Exception {
+        File f = new File(path);
+        String prefix = f.getName() + LoggerImpl.LOG_SUFFIX + ".";
+        File last = null;
+        for (File seg : f.getParentFile().listFiles()) {
+            if (seg.getName().startsWith(prefix) && (last == null || seg.getName().compareTo(last.getName()) > 0))
+                last = seg;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(last, "rw")) {
+            raf.setLength(raf.length() - bytes);
+        }
+    }
+
+    static byte[] data(int i, int length) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) i);
+        data[0] = (byte) (i >> 8);
+        return data;
+    }
+
+    /**
+     * 以 xid 把数据项整体改为 raw，长度不变
+     */
+    static void update(DataManager dm, long xid, long uid, byte[] raw) throws Exception {
+        DataItem di = dm.read(uid);
+        try {
+            di.before();
+            SubArray data = di.data();
+            System.arraycopy(raw, 0, data.raw, data.start, raw.length);
+            di.after(xid);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 批量装载 n 个数据项，返回按追加顺序排列的 uid
+     */
+    static List<Long> bulkLoad(DataManager dm, long xid, int from, int n) throws Exception {
+        BulkLoad load = dm.bulkLoad(xid);
+        List<Long> uids = new ArrayList<>();
+        for (int i = from; i < from + n; i++) {
+            for (long uid : load.append(data(i, 100)))
+                uids.add(uid);
+        }
+        for (long uid : load.finish())
+            uids.add(uid);
+        return uids;
+    }
+
+    static byte[] read(DataManager dm, long uid) throws Exception {
+        DataItem di = dm.read(uid);
+        if (di == null)
+            return null;
+        try {
+            SubArray data = di.data();
+            return Arrays.copyOfRange(data.raw, data.start, data.end);
+        } finally {
+            di.release();
+        }
+    }
+
+    /**
+     * 压缩之后的页面已经写回，恢复时不能再重做映像之前引用被回收的槽的日志，也不能把被回收的槽写回原来的位置
+     */
+    @Test
+    public void testRecoverAfterCompaction() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            uids.add(dm.insert(xid, data(i, 100)));
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(path);
+        DataManagerImpl dmi = (DataManagerImpl) DataManager.open(path, MEM, tm, false, quiet());
+        Set<Integer> pages = new TreeSet<>();
+        for (int i = 0; i < 250; i++) {
+            dmi.free(uids.get(i));  // 删除记录：以 SUPER_XID 记录的修改日志
+            pages.add(UidUtil.parseUid(uids.get(i)).getPgno());
+        }
+        for (int pgno : pages) {
+            dmi.compactor.compact(pgno);  // 页面映像日志
+        }
+        dmi.pc.flushUpTo(Long.MAX_VALUE);  // 压缩之后的页面落盘
+
+        xid = tm.begin();
+        List<Long> later = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            later.add(dmi.insert(xid, data(1000 + i, 100)));  // 只有日志，页面没有写回
+        }
+        tm.commit(xid);
+        String copy = crash(dmi, dir, path);
+        dmi.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        dm = DataManager.open(copy, MEM, tm);
+        for (int i = 0; i < 300; i++) {
+            if (i < 250)
+                assertNull(read(dm, uids.get(i)));
+            else
+                assertArrayEquals(data(i, 100), read(dm, uids.get(i)));
+        }
+        for (int i = 0; i < 50; i++) {
+            byte[] raw = read(dm, later.get(i));
+            assertNotNull(raw);
+            assertArrayEquals(data(1000 + i, 100), raw);
+        }
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 插入日志在压缩之前：恢复时它们的槽可能已经是空槽，日志中的偏移处是移动过来的其它数据项，不能再写入
+     */
+    @Test
+    public void testRedoInsertsBeforeCompaction() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            uids.add(dm.insert(xid, data(i, 100)));
+        }
+        tm.commit(xid);
+        int pgno = UidUtil.parseUid(uids.get(0)).getPgno();
+        for (int i = 0; i < 10; i++) {
+            dm.free(uids.get(i));
+        }
+        dm.compactor.compact(pgno);  // 后 10 个数据项移动到前 10 个数据项原来的位置
+        dm.pc.flushUpTo(Long.MAX_VALUE);
+
+        long active = tm.begin();
+        long undone = dm.insert(active, data(500, 100));  // 崩溃时仍然活跃，恢复时撤销
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        DataManager recovered = DataManager.open(copy, MEM, tm);
+        for (int i = 0; i < 20; i++) {
+            if (i < 10)
+                assertNull(read(recovered, uids.get(i)));
+            else
+                assertArrayEquals(data(i, 100), read(recovered, uids.get(i)));
+        }
+        assertNull(read(recovered, undone));
+        recovered.close();
+        tm.close();
+    }
+
+    /**
+     * 已提交和已中止事务的插入（逐条、批量插入、批量装载）都要重做，中止事务的可见性由 VM 判断；
+     * 崩溃时仍然活跃的事务被撤销并标记为中止
+     */
+    @Test
+    public void testRecoverByTransactionState() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long[] xids = new long[3];
+        List<List<Long>> uids = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            long xid = tm.begin();
+            xids[t] = xid;
+            List<Long> list = new ArrayList<>();
+            int base = t * 1000;
+            for (int i = 0; i < 10; i++) {
+                list.add(dm.insert(xid, data(base + i, 100)));  // SLOT_INSERT
+            }
+            List<byte[]> batch = new ArrayList<>();
+            for (int i = 10; i < 60; i++) {
+                batch.add(data(base + i, 100));
+            }
+            list.addAll(dm.insertBatch(xid, batch));  // BATCH_INSERT
+            list.addAll(bulkLoad(dm, xid, base + 60, 200));  // BULK_LOAD
+            uids.add(list);
+        }
+        tm.commit(xids[0]);
+        tm.abort(xids[1]);
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        dm = DataManager.open(copy, MEM, tm);
+        for (int t = 0; t < 3; t++) {
+            List<Long> list = uids.get(t);
+            assertEquals(260, list.size());
+            for (int i = 0; i < list.size(); i++) {
+                if (t == 2)
+                    assertNull(read(dm, list.get(i)));
+                else
+                    assertArrayEquals(data(t * 1000 + i, 100), read(dm, list.get(i)));
+            }
+        }
+        assertTrue(tm.isCommitted(xids[0]));
+        assertTrue(tm.isAborted(xids[1]));
+        assertTrue(tm.isAborted(xids[2]));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 最后一条日志只写了一半：打开时截掉 [BadTail]，之前的日志照常重做和撤销，之后可以继续写入
+     */
+    @Test
+    public void testRecoverWithTornTail() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        List<Long> committed = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            committed.add(dm.insert(xid, data(i, 100)));
+        }
+        tm.commit(xid);
+        long active = tm.begin();
+        List<Long> undone = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            undone.add(dm.insert(active, data(500 + i, 100)));
+        }
+        dm.insert(active, data(600, 100));  // 只有一半落盘
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        tearLog(copy, 50);
+
+        tm = TransactionManager.open(copy);
+        dm = DataManager.open(copy, MEM, tm);
+        for (int i = 0; i < 50; i++) {
+            assertArrayEquals(data(i, 100), read(dm, committed.get(i)));
+        }
+        for (long uid : undone) {
+            assertNull(read(dm, uid));
+        }
+        assertTrue(tm.isAborted(active));
+        xid = tm.begin();
+        long after = dm.insert(xid, data(700, 100));
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        dm = DataManager.open(copy, MEM, tm);
+        assertArrayEquals(data(700, 100), read(dm, after));
+        assertArrayEquals(data(49, 100), read(dm, committed.get(49)));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 撤销按 LSN 倒序进行：同一个数据项被活跃事务多次修改后回到第一次修改之前的值；
+     * 活跃事务插入后又修改的数据项，先撤销修改再撤销插入，最终无效
+     */
+    @Test
+    public void testUndoInReverseOrder() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        long uid = dm.insert(xid, data(1, 100));
+        tm.commit(xid);
+
+        long active = tm.begin();
+        update(dm, active, uid, data(2, 100));
+        update(dm, active, uid, data(3, 100));
+        long inserted = dm.insert(active, data(4, 100));
+        update(dm, active, inserted, data(5, 100));
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        dm = DataManager.open(copy, MEM, tm);
+        assertArrayEquals(data(1, 100), read(dm, uid));
+        assertNull(read(dm, inserted));
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 恢复把文件截断到日志涉及的最大页号：新分配的区的页面已经写入文件，插入日志却没有落盘时，这些页面被截掉，
+     * 之后重新分配，不与已有的数据项重叠
+     */
+    @Test
+    public void testTruncateUnloggedPages() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManagerImpl dm = (DataManagerImpl) DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            uids.add(dm.insert(xid, 42, data(i, 100)));
+        }
+        tm.commit(xid);
+        int logged = dm.pc.getTotalPageNumber();
+        long active = tm.begin();
+        dm.insert(active, 43, data(500, 100));  // 新的段分配一个区，这条插入日志只有一半落盘
+        assertTrue(dm.pc.getTotalPageNumber() > logged);
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+        tearLog(copy, 50);
+
+        tm = TransactionManager.open(copy);
+        dm = (DataManagerImpl) DataManager.open(copy, MEM, tm);
+        assertEquals(logged, dm.pc.getTotalPageNumber());
+        xid = tm.begin();
+        for (int i = 10; i < 200; i++) {
+            uids.add(dm.insert(xid, i % 2 == 0 ? 42 : 43, data(i, 100)));
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+
+        tm = TransactionManager.open(copy);
+        DataManager reopened = DataManager.open(copy, MEM, tm);
+        for (int i = 0; i < 200; i++) {
+            assertArrayEquals(data(i, 100), read(reopened, uids.get(i)));
+        }
+        reopened.close();
+        tm.close();
+    }
+
+    /**
+     * 同一份崩溃后的文件分别以 1 个和 4 个线程重做，恢复之后除第一页（每次打开随机的校验字节）外所有页面逐字节相同。
+     * 重做日志的内存上限很小，读取过程中会多次提前应用
+     */
+    @Test
+    public void testParallelRedoIsEquivalent() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        List<Long> uids = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            uids.add(dm.insert(xid, i % 3, data(i, 100 + i % 50)));  // 三个段，页面交错
+        }
+        tm.commit(xid);
+        xid = tm.begin();
+        for (int i = 0; i < 2000; i += 7) {
+            update(dm, xid, uids.get(i), data(5000 + i, 100 + i % 50));
+        }
+        tm.commit(xid);
+        for (int i = 3; i < 2000; i += 11) {
+            dm.free(uids.get(i));
+        }
+        long active = tm.begin();
+        for (int i = 1; i < 2000; i += 13) {
+            if (i % 11 != 3)
+                update(dm, active, uids.get(i), data(9000 + i, 100 + i % 50));
+        }
+        String first = crash(dm, dir, path);
+        String second = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        byte[][] files = new byte[2][];
+        String[] copies = {first, second};
+        int[] threads = {1, 4};
+        for (int n = 0; n < 2; n++) {
+            tm = TransactionManager.open(copies[n]);
+            dm = DataManager.open(copies[n], MEM, tm, false, quiet().redoMemory(16 << 10).redoThreads(threads[n]));
+            for (int i = 0; i < 2000; i++) {
+                byte[] expected = i % 11 == 3 ? null : data(i % 7 == 0 ? 5000 + i : i, 100 + i % 50);
+                assertArrayEquals(expected, read(dm, uids.get(i)));
+            }
+            dm.close();
+            tm.close();
+            files[n] = Files.readAllBytes(new File(copies[n] + PageCacheImpl.DB_SUFFIX).toPath());
+        }
+        assertEquals(files[0].length, files[1].length);
+        assertTrue(files[0].length > 10 * PageCache.PAGE_SIZE);
+        assertArrayEquals(Arrays.copyOfRange(files[0], PageCache.PAGE_SIZE, files[0].length),
+                Arrays.copyOfRange(files[1], PageCache.PAGE_SIZE, files[1].length));
+    }
+}
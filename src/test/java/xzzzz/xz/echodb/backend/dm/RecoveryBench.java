@@ -0,0 +1,126 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import xzzzz.xz.echodb.backend.common.SubArray;
+import xzzzz.xz.echodb.backend.dm.dataItem.DataItem;
+import xzzzz.xz.echodb.backend.dm.logger.Logger;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 崩溃恢复的速度
+ * <p>
+ * 先在子进程中关闭检查点，写入插入和修改混合的已提交事务，直到日志达到指定大小后直接退出（相当于崩溃）；
+ * 再在本进程中对文件的副本分别以不同的重做线程数计时恢复，输出每秒处理的日志量和相对单线程的加速比。
+ * 页面缓存小于数据文件时，恢复过程中会换出页面。
+ * 不是单元测试，手动运行：RecoveryBench [日志 MB] [页面缓存 MB] [数据项字节数] [重做线程数，逗号分隔]
+ */
+public class RecoveryBench {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("generate")) {
+            generate(args[1], Long.parseLong(args[2]) << 20, Integer.parseInt(args[3]));
+            return;
+        }
+        long logMb = args.length > 0 ? Long.parseLong(args[0]) : 1024;
+        long memMb = args.length > 1 ? Long.parseLong(args[1]) : 64;
+        int size = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        int[] redoThreads = args.length > 3 ? Arrays.stream(args[3].split(",")).mapToInt(Integer::parseInt).toArray()
+                : new int[]{1, Math.max(4, Runtime.getRuntime().availableProcessors())};
+
+        File dir = Files.createTempDirectory("echodb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        Process p = new ProcessBuilder(System.getProperty("java.home") + "/bin/java",
+                "-cp", System.getProperty("java.class.path"), RecoveryBench.class.getName(),
+                "generate", path, String.valueOf(logMb), String.valueOf(size)).inheritIO().start();
+        if (p.waitFor() != 0)
+            throw new IllegalStateException("generate failed");
+
+        long logBytes = logSize(dir);
+        recover(dir, memMb << 20, redoThreads[0]);  // 预热，不计入结果
+        double base = 0;
+        for (int threads : redoThreads) {
+            double seconds = recover(dir, memMb << 20, threads);
+            if (base == 0) base = seconds;
+            System.out.printf("log=%d MB, cache=%d MB, redoThreads=%-3d recovered in %.2f s, %.1f MB/s  x%.2f%n",
+                    logBytes >> 20, memMb, threads, seconds, (logBytes >> 20) / seconds, base / seconds);
+        }
+        delete(dir);
+    }
+
+    /**
+     * 在 dir 的副本上恢复（恢复会修改文件），返回耗时（秒）
+     */
+    private static double recover(File dir, long mem, int threads) throws Exception {
+        File copy = Files.createTempDirectory("echodb-bench").toFile();
+        for (File f : dir.listFiles()) {
+            Files.copy(f.toPath(), new File(copy, f.getName()).toPath());
+        }
+        String path = new File(copy, "bench").getPath();
+        TransactionManager tm = TransactionManager.open(path);
+        PageCache pc = PageCache.open(path, mem);
+        Logger lg = Logger.open(path);
+        long start = System.nanoTime();
+        Recover.recover(tm, lg, pc, Checkpoint.load(path), new DataManagerOptions().redoThreads(threads));
+        pc.flushUpTo(Long.MAX_VALUE);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        lg.close();
+        pc.close();
+        tm.close();
+        delete(copy);
+        return seconds;
+    }
+
+    private static void delete(File dir) {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static long logSize(File dir) {
+        long bytes = 0;
+        for (File f : dir.listFiles()) {
+            if (f.getName().startsWith("bench.log"))
+                bytes += f.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * 子进程：每个事务插入几个数据项、修改几个之前插入的数据项后提交，日志达到 logBytes 后不关闭直接退出
+     */
+    private static void generate(String path, long logBytes, int size) throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, 64L << 20, tm,
+                new DataManagerOptions().checkpointInterval(0).checkpointLogBytes(0));
+        Random random = new Random(42);
+        byte[] data = new byte[size];
+        List<Long> uids = new ArrayList<>();
+        File dir = new File(path).getParentFile();
+        for (long n = 0; n % 1024 != 0 || logSize(dir) < logBytes; n++) {
+            long xid = tm.begin();
+            for (int i = 0; i < 4; i++) {
+                Arrays.fill(data, (byte) random.nextInt());
+                uids.add(dm.insert(xid, 0, data));
+            }
+            for (int i = 0; i < 4; i++) {
+                DataItem di = dm.read(uids.get(random.nextInt(uids.size())));
+                di.before();
+                SubArray raw = di.data();
+                raw.raw[raw.start] = (byte) random.nextInt();
+                di.after(xid);
+                di.release();
+            }
+            tm.commit(xid);
+        }
+        dm.flushLog();
+        Runtime.getRuntime().halt(0);
+    }
+}
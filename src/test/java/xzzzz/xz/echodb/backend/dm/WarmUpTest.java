@@ -0,0 +1,146 @@
+package xzzzz.xz.echodb.backend.dm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCacheImpl;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.MEM;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.crash;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.data;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.quiet;
+import static xzzzz.xz.echodb.backend.dm.RecoverTest.read;
+
+public class WarmUpTest {
+
+    private File dir;
+
+    private String path;
+
+    private final List<Long> uids = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-warm").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        RecoverTest.delete(dir);
+    }
+
+    /**
+     * 新建数据库，写入约 40 页数据后正常关闭
+     */
+    private void populate() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, MEM, tm, quiet());
+        long xid = tm.begin();
+        for (int i = 0; i < 300; i++) {
+            uids.add(dm.insert(xid, data(i, 1000)));
+        }
+        tm.commit(xid);
+        dm.close();
+        tm.close();
+    }
+
+    /**
+     * 打开 path 处的数据库，等待预热结束，检查数据后正常关闭
+     *
+     * @return 预热装载的页数
+     */
+    private int openAndCheck(String path) throws Exception {
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, false, quiet());
+        int loaded = dm.awaitWarmUp();
+        for (int i = 0; i < uids.size(); i++) {
+            assertArrayEquals(data(i, 1000), read(dm, uids.get(i)));
+        }
+        dm.close();
+        tm.close();
+        return loaded;
+    }
+
+    private int pageNumber(String path) {
+        return (int) (new File(path + PageCacheImpl.DB_SUFFIX).length() / PageCache.PAGE_SIZE);
+    }
+
+    private void writeWarm(int count, int... pgnos) throws Exception {
+        ByteBuffer buf = ByteBuffer.allocate(4 + pgnos.length * 4);
+        buf.putInt(count);
+        for (int pgno : pgnos) {
+            buf.putInt(pgno);
+        }
+        Files.write(new File(path + WarmUp.WARM_SUFFIX).toPath(), buf.array());
+    }
+
+    @Test
+    public void testWarmUpAfterCleanClose() throws Exception {
+        populate();
+        int[] saved = WarmUp.load(path, pageNumber(path));
+        assertTrue(saved.length > 10);
+        assertEquals(saved.length, openAndCheck(path));
+    }
+
+    /**
+     * 长度不符、页号不递增、页号越界或个数为负的 .warm 文件整体放弃，正常打开，关闭时重新写入
+     */
+    @Test
+    public void testCorruptWarmFileIgnored() throws Exception {
+        populate();
+        int n = pageNumber(path);
+        int[][] corrupt = {
+                {3, 2, 3},  // 个数与长度不符
+                {3, 2, 4, 3},  // 不是升序
+                {2, 2, n + 1},  // 超出文件
+                {2, 1, 2},  // 第一页
+                {-1},
+        };
+        for (int[] c : corrupt) {
+            int[] pgnos = new int[c.length - 1];
+            System.arraycopy(c, 1, pgnos, 0, pgnos.length);
+            writeWarm(c[0], pgnos);
+            assertEquals(0, WarmUp.load(path, n).length);
+            assertEquals(0, openAndCheck(path));
+            assertTrue(WarmUp.load(path, n).length > 0);  // 关闭时重新写入
+        }
+        Files.write(new File(path + WarmUp.WARM_SUFFIX).toPath(), new byte[]{1, 2});
+        assertEquals(0, openAndCheck(path));
+        assertTrue(WarmUp.load(path, n).length > 0);
+    }
+
+    /**
+     * 崩溃后留下的 .warm 是更早一次正常关闭时写的，恢复之后不用它预热；恢复后正常关闭时重新写入
+     */
+    @Test
+    public void testUncleanShutdownSkipsWarmUp() throws Exception {
+        populate();
+        TransactionManager tm = TransactionManager.open(path);
+        DataManager dm = DataManager.open(path, MEM, tm, false, quiet());
+        dm.awaitWarmUp();
+        long xid = tm.begin();
+        for (int i = 300; i < 320; i++) {
+            uids.add(dm.insert(xid, data(i, 1000)));
+        }
+        tm.commit(xid);
+        String copy = crash(dm, dir, path);
+        dm.close();
+        tm.close();
+
+        assertTrue(WarmUp.load(copy, pageNumber(copy)).length > 0);  // 旧文件本身完好
+        assertEquals(0, openAndCheck(copy));
+        assertTrue(openAndCheck(copy) > 0);
+    }
+}
@@ -0,0 +1,60 @@
+package xzzzz.xz.echodb.backend.dm.logger;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 组提交：可持久化的日志写入吞吐随线程数的变化
+ * <p>
+ * 每个线程反复追加一条日志并等待它落盘（相当于每个事务写一条日志后提交）。
+ * 单线程时每条日志一次 fsync；线程增多时同一次 fsync 完成多个线程的日志，吞吐应随线程数增长，而不是停在 fsync 的速率上。
+ * 不是单元测试，手动运行：GroupCommitBench [每条日志字节数] [每轮秒数] [最大线程数]
+ */
+public class GroupCommitBench {
+
+    public static void main(String[] args) throws Exception {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+        File dir = Files.createTempDirectory("echodb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        Logger lg = Logger.create(path);
+
+        System.out.printf("record=%d bytes, %d s per run%n", size, seconds);
+        double base = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 4) {
+            double rate = run(lg, size, threads, seconds);
+            if (threads == 1) base = rate;
+            System.out.printf("threads=%-3d %10.0f durable records/s  x%.2f%n", threads, rate, rate / base);
+        }
+
+        lg.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static double run(Logger lg, int size, int threads, int seconds) throws Exception {
+        AtomicLong records = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                byte[] data = new byte[size];
+                long n = 0;
+                while (System.nanoTime() < deadline) {
+                    lg.flush(lg.log(data));
+                    n++;
+                }
+                records.addAndGet(n);
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        return records.get() / (double) seconds;
+    }
+}
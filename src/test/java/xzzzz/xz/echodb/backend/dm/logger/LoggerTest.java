@@ -0,0 +1,229 @@
+package xzzzz.xz.echodb.backend.dm.logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LoggerTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File dir;
+
+    private String path;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-log").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] record(int i) {
+        byte[] data = new byte[50 + i % 7];
+        Arrays.fill(data, (byte) i);
+        return data;
+    }
+
+    private File segment(int no) {
+        return new File(String.format("%s.log.%06d", path, no));
+    }
+
+    @Test
+    public void testRecordsSpanSegments() {
+        Logger lg = Logger.create(path, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            lg.log(record(i));
+        }
+        lg.close();
+        assertTrue(segment(2).exists());
+
+        lg = Logger.open(path, SEGMENT_SIZE);
+        for (int i = 0; i < 100; i++) {
+            assertArrayEquals(record(i), lg.next());
+        }
+        assertNull(lg.next());
+        lg.close();
+    }
+
+    @Test
+    public void testTornTailIsRemoved() throws Exception {
+        Logger lg = Logger.create(path, SEGMENT_SIZE);
+        long end = 0;
+        for (int i = 0; i < 10; i++) {
+            end = lg.log(record(i));
+        }
+        lg.flush(end);
+        lg.close();
+        try (RandomAccessFile raf = new RandomAccessFile(segment(1), "rw")) {  // 最后一条日志只写了一半
+            raf.setLength(raf.length() - 20);
+        }
+
+        lg = Logger.open(path, SEGMENT_SIZE);
+        for (int i = 0; i < 9; i++) {
+            assertArrayEquals(record(i), lg.next());
+        }
+        assertNull(lg.next());
+        lg.log(record(42));  // 从截断的位置继续追加
+        lg.close();
+
+        lg = Logger.open(path, SEGMENT_SIZE);
+        for (int i = 0; i < 9; i++) {
+            lg.next();
+        }
+        assertArrayEquals(record(42), lg.next());
+        assertNull(lg.next());
+        lg.close();
+    }
+
+    @Test
+    public void testDeleteBeforeCheckpoint() {
+        Logger lg = Logger.create(path, SEGMENT_SIZE);
+        long checkpoint = 0;
+        for (int i = 0; i < 100; i++) {
+            long end = lg.log(record(i));
+            if (i == 59)
+                checkpoint = end;  // 第 60 条日志的开始位置
+        }
+        lg.flush();
+        int deleted = lg.deleteBefore(checkpoint);
+        assertTrue(deleted > 0);
+        assertFalse(segment(1).exists());
+        lg.close();
+
+        lg = Logger.open(path, SEGMENT_SIZE);
+        lg.rewind(checkpoint);
+        for (int i = 60; i < 100; i++) {
+            assertArrayEquals(record(i), lg.next());
+        }
+        assertNull(lg.next());
+        lg.rewind();  // 第一条日志是剩下的第一个分段中的第一条
+        byte[] first = lg.next();
+        assertTrue(first[0] > 0 && first[0] <= 60);
+        lg.close();
+    }
+
+    @Test
+    public void testMigrateLegacyLog() throws Exception {
+        // 旧格式：[XChecksum][Size][Checksum][Data]...
+        byte[][] datas = {record(1), record(2), record(3)};
+        int xCheck = 0;
+        try (RandomAccessFile raf = new RandomAccessFile(path + ".log", "rw")) {
+            raf.writeInt(0);
+            for (byte[] data : datas) {
+                int check = 0;
+                for (byte b : data) check = check * 13331 + b;
+                byte[] log = new byte[8 + data.length];
+                log[0] = (byte) (data.length >>> 24);
+                log[1] = (byte) (data.length >>> 16);
+                log[2] = (byte) (data.length >>> 8);
+                log[3] = (byte) data.length;
+                log[4] = (byte) (check >>> 24);
+                log[5] = (byte) (check >>> 16);
+                log[6] = (byte) (check >>> 8);
+                log[7] = (byte) check;
+                System.arraycopy(data, 0, log, 8, data.length);
+                raf.write(log);
+                for (byte b : log) xCheck = xCheck * 13331 + b;
+            }
+            raf.writeBytes("torn");
+            raf.seek(0);
+            raf.writeInt(xCheck);
+        }
+
+        Logger lg = Logger.open(path, SEGMENT_SIZE);
+        assertFalse(new File(path + ".log").exists());
+        for (byte[] data : datas) {
+            assertArrayEquals(data, lg.next());
+        }
+        assertNull(lg.next());
+        lg.close();
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    /**
+     * flush(lsn) 返回时 lsn 之前的日志已经写入分段文件；已经落盘的位置再次 flush 不会再做一次 fsync
+     */
+    @Test
+    public void testFlushUpToLsn() throws Exception {
+        LoggerImpl lg = (LoggerImpl) Logger.create(path, 1 << 20);
+        long first = lg.log(record(1));
+        lg.flush(first);
+        assertTrue(lg.getFlushCount() >= 1);
+        assertTrue(segment(1).length() >= first);
+
+        long second = lg.log(record(2));
+        long third = lg.log(record(3));
+        long count = lg.getFlushCount();
+        lg.flush(second);
+        assertTrue(segment(1).length() >= second);
+        lg.flush(second);
+        lg.flush(first);
+        assertEquals(count + 1, lg.getFlushCount());  // third 与 second 在同一批中写入
+        assertTrue(segment(1).length() >= third);
+        lg.flush(third);
+        assertEquals(count + 1, lg.getFlushCount());
+        lg.close();
+        lg = (LoggerImpl) Logger.open(path, 1 << 20);
+        assertArrayEquals(record(1), lg.next());
+        assertArrayEquals(record(2), lg.next());
+        assertArrayEquals(record(3), lg.next());
+        lg.close();
+    }
+
+    /**
+     * 同时等待的多个提交由同一次 fsync 完成
+     */
+    @Test
+    public void testConcurrentFlushesShareOneFsync() throws Exception {
+        LoggerImpl lg = (LoggerImpl) Logger.create(path, 1 << 20);
+        lg.flush();
+        int threads = 16;
+        long[] lsns = new long[threads];
+        for (int i = 0; i < threads; i++) {
+            lsns[i] = lg.log(record(i));  // 都在缓冲区中，还没有 flush 请求
+        }
+        long count = lg.getFlushCount();
+
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] committers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            long lsn = lsns[i];
+            committers[i] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                lg.flush(lsn);
+            });
+            committers[i].start();
+        }
+        start.countDown();
+        for (Thread t : committers) {
+            t.join();
+        }
+        assertEquals(count + 1, lg.getFlushCount());
+        assertTrue(segment(1).length() >= lsns[threads - 1]);
+        lg.close();
+    }
+}
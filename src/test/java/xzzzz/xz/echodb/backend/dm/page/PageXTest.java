@@ -0,0 +1,139 @@
+package xzzzz.xz.echodb.backend.dm.page;
+
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.utils.Parser;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PageXTest {
+
+    private static byte[] item(int length, byte fill) {
+        byte[] raw = new byte[length];
+        Arrays.fill(raw, fill);
+        return raw;
+    }
+
+    @Test
+    public void testInsertAndLocate() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        assertEquals(PageX.MAX_FREE_SPACE, PageX.getFreeSpace(pg));
+
+        short s0 = PageX.insert(pg, item(10, (byte) 1));
+        short s1 = PageX.insert(pg, item(20, (byte) 2));
+        assertEquals(PageX.slotId(0), s0);
+        assertEquals(PageX.slotId(1), s1);
+        assertEquals(2, PageX.locate(pg, s0));
+        assertEquals(12, PageX.locate(pg, s1));
+        assertEquals(-1, PageX.locate(pg, PageX.slotId(2)));
+        assertEquals(PageX.MAX_FREE_SPACE - 30 - 2 * 2, PageX.getFreeSpace(pg));
+    }
+
+    @Test
+    public void testMigrateLegacyPage() {
+        // 旧格式：[FSO][数据项...]，FSO 最高位为 0
+        byte[] raw = new byte[PageCache.PAGE_SIZE];
+        System.arraycopy(item(100, (byte) 7), 0, raw, 2, 100);
+        System.arraycopy(Parser.short2Byte((short) 102), 0, raw, 0, 2);
+        Page pg = new PageImpl(3, raw, null);
+        assertFalse(PageX.isSlotted(pg));
+
+        assertTrue(PageX.migrate(pg));
+        assertTrue(PageX.isSlotted(pg));
+        assertEquals(102, PageX.getFSO(pg));
+        assertEquals(2, PageX.locate(pg, (short) 2));  // 旧的 uid 仍然按偏移寻址
+
+        short slot = PageX.insert(pg, item(8, (byte) 9));
+        assertEquals(102, PageX.locate(pg, slot));
+        assertEquals(7, pg.getData()[2]);
+        assertEquals(9, pg.getData()[102]);
+    }
+
+    @Test
+    public void testRecoverSlotInsertIsIdempotent() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        PageX.recoverSlotInsert(pg, item(10, (byte) 3), 1, (short) 12);  // 槽 0 的插入属于未重做的事务
+        assertEquals(2, PageX.getSlotCount(pg));
+        assertEquals(-1, PageX.locate(pg, PageX.slotId(0)));
+        assertEquals(12, PageX.locate(pg, PageX.slotId(1)));
+
+        PageX.recoverSlotInsert(pg, item(10, (byte) 4), 0, (short) 2);
+        PageX.recoverSlotInsert(pg, item(10, (byte) 3), 1, (short) 12);
+        assertEquals(2, PageX.getSlotCount(pg));
+        assertEquals(2, PageX.locate(pg, PageX.slotId(0)));
+        assertEquals(22, PageX.getFSO(pg));
+    }
+
+    @Test
+    public void testFitCount() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        byte[][] raws = {item(4000, (byte) 1), item(4000, (byte) 2), item(200, (byte) 3)};
+        assertEquals(2, PageX.fitCount(pg, raws, 0));  // 4000 + 2 + 4000 <= MAX_FREE_SPACE，第三项放不下
+        assertEquals(2, PageX.fitCount(pg, raws, 1));
+
+        PageX.insert(pg, raws[0]);
+        PageX.insert(pg, raws[1]);
+        assertEquals(0, PageX.fitCount(pg, raws, 2));
+    }
+
+    /**
+     * 数据项格式 [ValidFlag][DataSize][Data]
+     */
+    private static byte[] dataItem(int dataLength, byte fill) {
+        byte[] raw = item(3 + dataLength, fill);
+        raw[0] = 0;
+        System.arraycopy(Parser.short2Byte((short) dataLength), 0, raw, 1, 2);
+        return raw;
+    }
+
+    @Test
+    public void testCompactKeepsSlots() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        short a = PageX.insert(pg, dataItem(100, (byte) 1));
+        short b = PageX.insert(pg, dataItem(200, (byte) 2));
+        short c = PageX.insert(pg, dataItem(50, (byte) 3));
+        int before = PageX.getFreeSpace(pg);
+        assertEquals(0, PageX.getDeadBytes(pg));
+
+        pg.getData()[PageX.locate(pg, b)] = 1;  // 第二个数据项被置为无效
+        assertEquals(203, PageX.getDeadBytes(pg));
+
+        PageX.applyImage(pg, PageX.compact(pg));
+        assertEquals(before + 203, PageX.getFreeSpace(pg));
+        assertEquals(0, PageX.getDeadBytes(pg));
+        assertEquals(2, PageX.locate(pg, a));
+        assertEquals(-1, PageX.locate(pg, b));  // 空槽，不再复用
+        assertEquals(105, PageX.locate(pg, c));
+        assertEquals(3, pg.getData()[105 + 3]);
+
+        short d = PageX.insert(pg, dataItem(10, (byte) 4));
+        assertEquals(PageX.slotId(3), d);
+    }
+
+    @Test
+    public void testRecoverSlotInsertSkipsReclaimedSlot() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        short a = PageX.insert(pg, dataItem(100, (byte) 1));
+        short b = PageX.insert(pg, dataItem(100, (byte) 2));
+        pg.getData()[PageX.locate(pg, a)] = 1;
+        PageX.applyImage(pg, PageX.compact(pg));
+        assertEquals(2, PageX.locate(pg, b));  // b 移动到了 a 原来的位置
+
+        PageX.recoverSlotInsert(pg, dataItem(100, (byte) 1), 0, (short) 2);  // a 的插入日志
+        assertEquals(-1, PageX.locate(pg, a));
+        assertEquals(2, pg.getData()[2 + 3]);
+    }
+
+    @Test
+    public void testPageLsnOnlyGrows() {
+        Page pg = new PageImpl(2, PageX.initRaw(), null);
+        assertEquals(0, PageX.getPageLsn(pg));
+        PageX.setPageLsn(pg, 200);
+        PageX.setPageLsn(pg, 100);
+        assertEquals(200, PageX.getPageLsn(pg));
+    }
+}
@@ -0,0 +1,72 @@
+package xzzzz.xz.echodb.backend.dm.pageCache;
+
+import xzzzz.xz.echodb.backend.dm.page.Page;
+import xzzzz.xz.echodb.backend.dm.page.PageX;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 页面读取吞吐随线程数的变化
+ * <p>
+ * 缓存只有 64 帧（每个线程同时只固定一页，最多 32 个线程），几乎每次读取都要回源，测的是并发未命中时的页面 I/O 能否并行。
+ * 不是单元测试，手动运行：PageCacheReadBench [页数] [每轮秒数]
+ */
+public class PageCacheReadBench {
+
+    public static void main(String[] args) throws Exception {
+        int pages = args.length > 0 ? Integer.parseInt(args[0]) : 16384;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+        File dir = Files.createTempDirectory("echodb-bench").toFile();
+        String path = new File(dir, "bench").getPath();
+        PageCacheImpl pc = PageCache.create(path, 64L * PageCache.PAGE_SIZE);
+        for (int i = 0; i < pages; i++) {
+            pc.newPage(PageX.initRaw());
+        }
+
+        System.out.printf("pages=%d (%d MB), %d s per run%n", pages, pages / 128, seconds);
+        double base = 0;
+        int maxThreads = Math.min(32, Math.max(8, Runtime.getRuntime().availableProcessors() * 2));
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            double rate = run(pc, pages, threads, seconds);
+            if (threads == 1) base = rate;
+            System.out.printf("threads=%-3d %10.0f pages/s  x%.2f%n", threads, rate, rate / base);
+        }
+
+        pc.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private static double run(PageCacheImpl pc, int pages, int threads, int seconds) throws Exception {
+        AtomicLong reads = new AtomicLong();
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.nanoTime() + seconds * 1_000_000_000L;
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                long n = 0;
+                try {
+                    while (System.nanoTime() < deadline) {
+                        Page pg = pc.getPage(rnd.nextInt(pages) + 1);
+                        pg.release();
+                        n++;
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                } finally {
+                    reads.addAndGet(n);
+                    done.countDown();
+                }
+            }).start();
+        }
+        done.await();
+        return reads.get() / (double) seconds;
+    }
+}
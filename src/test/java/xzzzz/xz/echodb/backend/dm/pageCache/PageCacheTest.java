@@ -0,0 +1,290 @@
+package xzzzz.xz.echodb.backend.dm.pageCache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.page.Page;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PageCacheTest {
+
+    private static final long MEM = 64L * PageCache.PAGE_SIZE;
+
+    private File dir;
+
+    private String path;
+
+    private PageCacheImpl pc;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-pc").toFile();
+        path = new File(dir, "db").getPath();
+    }
+
+    @After
+    public void tearDown() {
+        if (pc != null)
+            pc.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    /**
+     * 内容由页号和版本决定的一页
+     */
+    static byte[] content(int pgno, int version) {
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (pgno * 31 + version * 7 + i);
+        }
+        return data;
+    }
+
+    /**
+     * 直接从数据库文件读出一页
+     */
+    byte[] onDisk(int pgno) throws Exception {
+        byte[] data = new byte[PageCache.PAGE_SIZE];
+        try (RandomAccessFile raf = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "r")) {
+            raf.seek((long) (pgno - 1) * PageCache.PAGE_SIZE);
+            raf.readFully(data);
+        }
+        return data;
+    }
+
+    /**
+     * 新建 n 页（第一页之外），内容为版本 0
+     */
+    void newPages(int n) {
+        pc.newPage(new byte[PageCache.PAGE_SIZE]);  // 第一页不由写回线程写回
+        for (int pgno = 2; pgno <= n + 1; pgno++) {
+            assertEquals(pgno, pc.newPage(content(pgno, 0)));
+        }
+    }
+
+    /**
+     * 把页面改成指定版本并标记为脏页面
+     */
+    void modify(int pgno, int version) throws Exception {
+        Page pg = pc.getPage(pgno);
+        pg.lock();
+        try {
+            System.arraycopy(content(pgno, version), 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+            pg.setDirty(true);
+        } finally {
+            pg.unlock();
+        }
+        pg.release();
+    }
+
+    /**
+     * 停掉后台写回线程，之后只有测试自己调用的 flushUpTo 写回页面
+     */
+    void stopWriter() {
+        pc.writer.close();
+    }
+
+    @Test
+    public void testWriterWritesBack() throws Exception {
+        pc = PageCache.create(path, MEM);
+        pc.setWriteBack(10, 4);
+        newPages(10);
+        for (int pgno = 2; pgno <= 11; pgno++) {
+            modify(pgno, 1);
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!pc.dirtyPageTable().isEmpty()) {  // 每批 4 页，要写几批
+            assertTrue("writer did not write back", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+        for (int pgno = 2; pgno <= 11; pgno++) {
+            assertArrayEquals(content(pgno, 1), onDisk(pgno));
+        }
+    }
+
+    /**
+     * 有进行中修改的页面不写回，也不从脏页表中移除，recLsn 保持不变；修改结束后才写回
+     */
+    @Test
+    public void testSkipPageWithUpdateInProgress() throws Exception {
+        pc = PageCache.create(path, MEM);
+        AtomicLong position = new AtomicLong(100);
+        pc.setLogPosition(position::get);
+        newPages(2);
+        stopWriter();
+
+        Page pg = pc.getPage(2);
+        pg.startUpdate();
+        System.arraycopy(content(2, 1), 0, pg.getData(), 0, PageCache.PAGE_SIZE);
+        modify(3, 1);
+        position.set(200);
+
+        assertEquals(1, pc.flushUpTo(Long.MAX_VALUE));
+        assertArrayEquals(content(2, 0), onDisk(2));
+        assertArrayEquals(content(3, 1), onDisk(3));
+        assertEquals(Map.of(2, 100L), pc.dirtyPageTable());
+
+        pg.endUpdate();
+        pg.release();
+        assertEquals(1, pc.flushUpTo(Long.MAX_VALUE));
+        assertArrayEquals(content(2, 1), onDisk(2));
+        assertTrue(pc.dirtyPageTable().isEmpty());
+    }
+
+    /**
+     * flushUpTo 只写回 recLsn 不超过给定 LSN 的页面；写回之前先让日志落盘到这些页面的 LSN
+     */
+    @Test
+    public void testFlushUpToLsn() throws Exception {
+        pc = PageCache.create(path, MEM);
+        AtomicLong position = new AtomicLong();
+        pc.setLogPosition(position::get);
+        AtomicLong flushed = new AtomicLong();
+        pc.setLogFlusher(lsn -> flushed.accumulateAndGet(lsn, Math::max));
+        newPages(4);
+        stopWriter();
+
+        for (int pgno = 2; pgno <= 5; pgno++) {
+            position.set(pgno * 100L);
+            modify(pgno, 1);
+            Page pg = pc.getPage(pgno);
+            pg.updateLsn(pgno * 100L + 50);
+            pg.release();
+        }
+        modify(2, 2);  // 已经登记的页面 recLsn 不变
+        assertEquals(Map.of(2, 200L, 3, 300L, 4, 400L, 5, 500L), pc.dirtyPageTable());
+
+        assertEquals(2, pc.flushUpTo(350));
+        assertEquals(350, flushed.get());  // 页面 3 的 LSN
+        assertArrayEquals(content(2, 2), onDisk(2));
+        assertArrayEquals(content(3, 1), onDisk(3));
+        assertArrayEquals(content(4, 0), onDisk(4));
+        assertArrayEquals(content(5, 0), onDisk(5));
+        assertEquals(Map.of(4, 400L, 5, 500L), pc.dirtyPageTable());
+
+        assertEquals(0, pc.flushUpTo(350));
+        assertEquals(2, pc.flushUpTo(500));
+        assertEquals(550, flushed.get());
+        assertArrayEquals(content(4, 1), onDisk(4));
+        assertArrayEquals(content(5, 1), onDisk(5));
+        assertTrue(pc.dirtyPageTable().isEmpty());
+    }
+
+    /**
+     * 超过 MAX_RUN 页的连续脏页面分成几次聚集写，遇到不脏的页面也断开，每页都写到自己的位置
+     */
+    @Test
+    public void testGatheringWriteSplitsRuns() throws Exception {
+        pc = PageCache.create(path, 256L * PageCache.PAGE_SIZE);  // 脏页面都留在缓存中，不被驱逐写回
+        newPages(100);
+        stopWriter();
+
+        for (int pgno = 2; pgno <= 81; pgno++) {  // 80 页，超过一组
+            modify(pgno, 1);
+        }
+        for (int pgno = 90; pgno <= 95; pgno++) {
+            modify(pgno, 1);
+        }
+        assertEquals(86, pc.flushUpTo(Long.MAX_VALUE));
+        for (int pgno = 2; pgno <= 101; pgno++) {
+            boolean dirty = pgno <= 81 || pgno >= 90 && pgno <= 95;
+            assertArrayEquals("page " + pgno, content(pgno, dirty ? 1 : 0), onDisk(pgno));
+        }
+
+        pc.close();
+        pc = PageCache.open(path, MEM);
+        for (int pgno = 2; pgno <= 101; pgno++) {
+            boolean dirty = pgno <= 81 || pgno >= 90 && pgno <= 95;
+            Page pg = pc.getPage(pgno);
+            assertArrayEquals("page " + pgno, content(pgno, dirty ? 1 : 0), pg.getData());
+            pg.release();
+        }
+    }
+
+    /**
+     * 内存映射模式下的读写：新建页面后映射随文件增长，写回后重新打开，缓存放不下的页面从映射中读取；截断后重新映射
+     */
+    @Test
+    public void testMmapRoundTrip() throws Exception {
+        pc = PageCache.create(path, MEM, true);
+        newPages(30);
+        for (int pgno = 2; pgno <= 31; pgno += 3) {
+            modify(pgno, 1);
+        }
+        pc.close();
+
+        pc = PageCache.open(path, 16L * PageCache.PAGE_SIZE, true);
+        for (int round = 0; round < 2; round++) {
+            for (int pgno = 31; pgno >= 2; pgno--) {
+                Page pg = pc.getPage(pgno);
+                assertArrayEquals("page " + pgno, content(pgno, (pgno - 2) % 3 == 0 ? 1 : 0), pg.getData());
+                pg.release();
+            }
+        }
+
+        pc.truncateByBgno(20);
+        assertEquals(21, pc.newPage(content(21, 2)));
+        for (int pgno = 22; pgno <= 40; pgno++) {  // 让页面 21 被驱逐，再从映射中读回
+            assertEquals(pgno, pc.newPage(content(pgno, 2)));
+            pc.release(pc.getPage(pgno));
+        }
+        Page pg = pc.getPage(21);
+        assertArrayEquals(content(21, 2), pg.getData());
+        pg.release();
+    }
+
+    /**
+     * 只有 10 帧的缓存反复驱逐、复用帧：每次读到的都只是这一页自己的内容，
+     * 文件末尾不完整的一页中文件之外的部分是 0，不残留帧中上一个页面的字节
+     */
+    @Test
+    public void testRecycledFrameHoldsOnlyItsPage() throws Exception {
+        checkRecycledFrames(false);
+    }
+
+    @Test
+    public void testRecycledFrameHoldsOnlyItsPageMmap() throws Exception {
+        checkRecycledFrames(true);
+    }
+
+    private void checkRecycledFrames(boolean mmap) throws Exception {
+        pc = PageCache.create(path, MEM, mmap);
+        newPages(40);
+        pc.close();
+        byte[] half = new byte[PageCache.PAGE_SIZE / 2];
+        Arrays.fill(half, (byte) 0x7f);
+        try (RandomAccessFile raf = new RandomAccessFile(path + PageCacheImpl.DB_SUFFIX, "rw")) {  // 第 42 页只写了一半
+            raf.seek(41L * PageCache.PAGE_SIZE);
+            raf.write(half);
+        }
+        byte[] partial = new byte[PageCache.PAGE_SIZE];
+        System.arraycopy(half, 0, partial, 0, half.length);
+
+        pc = PageCache.open(path, 10L * PageCache.PAGE_SIZE, mmap);
+        int reads = 0;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 41; i++) {
+                int pgno = round == 0 ? 2 + i : round == 1 ? 42 - i : 2 + i * 17 % 41;  // 顺序（触发预读）、倒序和跳跃
+                Page pg = pc.getPage(pgno);
+                assertArrayEquals("page " + pgno, pgno == 42 ? partial : content(pgno, 0), pg.getData());
+                pg.release();
+                reads++;
+            }
+        }
+        assertTrue(pc.getAllocatedFrames() < reads);  // 确实复用了帧
+    }
+}
@@ -0,0 +1,73 @@
+package xzzzz.xz.echodb.backend.dm.pageIndex;
+
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PageIndexTest {
+
+    @Test
+    public void testSelectRoundsUp() {
+        PageIndex pIndex = new PageIndex();
+        pIndex.add(2, 100);
+        pIndex.add(3, PageCache.PAGE_SIZE / 2);
+        PageInfo pi = pIndex.select(300);
+        assertEquals(3, pi.pgno);
+        assertNull(pIndex.select(300));
+    }
+
+    @Test
+    public void testStealFromOtherThread() throws Exception {
+        PageIndex pIndex = new PageIndex();
+        Thread t = new Thread(() -> pIndex.add(7, PageCache.PAGE_SIZE));
+        t.start();
+        t.join();
+        PageInfo pi = pIndex.select(1000);
+        assertNotNull(pi);
+        assertEquals(7, pi.pgno);
+    }
+
+    @Test
+    public void testConcurrentSelectNeverSharesPage() throws Exception {
+        PageIndex pIndex = new PageIndex();
+        int pages = 16;
+        for (int i = 0; i < pages; i++) {
+            pIndex.add(i + 2, PageCache.PAGE_SIZE);
+        }
+
+        Set<Integer> inUse = ConcurrentHashMap.newKeySet();
+        AtomicInteger conflicts = new AtomicInteger();
+        int threads = 8;
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    PageInfo pi = pIndex.select(100);
+                    if (pi == null)
+                        continue;
+                    if (!inUse.add(pi.pgno))
+                        conflicts.incrementAndGet();
+                    inUse.remove(pi.pgno);
+                    pIndex.add(pi.pgno, pi.freeSpace);
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+
+        assertEquals(0, conflicts.get());
+        for (int i = 0; i < pages; i++) {  // 所有页面都回到了索引中
+            assertTrue(pIndex.select(100) != null);
+        }
+        assertNull(pIndex.select(100));
+    }
+}
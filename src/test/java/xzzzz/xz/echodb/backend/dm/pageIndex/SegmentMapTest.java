@@ -0,0 +1,57 @@
+package xzzzz.xz.echodb.backend.dm.pageIndex;
+
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.page.PageX;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class SegmentMapTest {
+
+    @Test
+    public void testExtentsAreContiguousAndReloaded() throws Exception {
+        File dir = Files.createTempDirectory("echodb-segment").toFile();
+        String path = new File(dir, "db").getPath();
+        PageCache pc = PageCache.create(path, PageCache.PAGE_SIZE * 64L);
+        try {
+            pc.newPage(PageX.initRaw());  // 第一页
+            SegmentMap segments = new SegmentMap(path);
+            segments.create();
+
+            segments.grow(5, pc);  // 2..9
+            int shared = pc.newPage(PageX.initRaw());  // 10
+            segments.grow(5, pc);  // 11..18
+            segments.grow(5, pc);  // 19..34，段已有 16 页，区翻倍
+            assertEquals(10, shared);
+            assertEquals(3, segments.extentCount(5));
+            assertEquals(5, segments.ownerOf(2));
+            assertEquals(5, segments.ownerOf(18));
+            assertEquals(5, segments.ownerOf(34));
+            assertEquals(SegmentMap.SHARED, segments.ownerOf(10));
+            assertEquals(SegmentMap.SHARED, segments.ownerOf(35));
+
+            for (int i = 0; i < 32; i++) {  // 段的页面只从段自己的索引中选出
+                assertEquals(5, segments.ownerOf(segments.index(5).select(PageX.MAX_FREE_SPACE).pgno));
+            }
+            assertNull(segments.index(SegmentMap.SHARED).select(1));
+            segments.close();
+
+            SegmentMap reloaded = new SegmentMap(path);
+            reloaded.load(14);  // 恢复把文件截断到第 14 页
+            assertEquals(2, reloaded.extentCount(5));
+            assertEquals(5, reloaded.ownerOf(14));
+            assertEquals(SegmentMap.SHARED, reloaded.ownerOf(15));
+            assertEquals(2 * 16, new File(path + SegmentMap.EXT_SUFFIX).length());  // 剪短之后重写
+        } finally {
+            pc.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package xzzzz.xz.echodb.backend.im;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class ExternalSortTest {
+
+    private static long[][] drain(ExternalSort sort, int n) throws Exception {
+        long[][] res = new long[n][];
+        try (ExternalSort.Cursor c = sort.cursor()) {
+            for (int i = 0; i < n; i++) {
+                c.next();
+                res[i] = new long[]{c.key(), c.uid()};
+            }
+            assertFalse(c.next());
+        }
+        return res;
+    }
+
+    @Test
+    public void testSpilledRunsMergeDescending() throws Exception {
+        int n = 10_000;
+        long[][] expected = new long[n][];
+        Random rnd = new Random(7);
+        try (ExternalSort sort = new ExternalSort(1000, true)) {  // 10 个有序段
+            for (int i = 0; i < n; i++) {
+                long key = rnd.nextInt(100);  // 大量重复的 key
+                expected[i] = new long[]{key, i};
+                sort.add(key, i);
+            }
+            Arrays.sort(expected, (a, b) -> a[0] != b[0] ? Long.compare(b[0], a[0]) : Long.compare(b[1], a[1]));
+
+            long[][] first = drain(sort, n);
+            for (int i = 0; i < n; i++) {
+                assertArrayEquals(expected[i], first[i]);
+            }
+            assertEquals(first[n - 1][0], drain(sort, n)[n - 1][0]);  // 可以重复读取
+        }
+    }
+
+    @Test
+    public void testInMemoryAscending() throws Exception {
+        try (ExternalSort sort = new ExternalSort(false)) {
+            sort.add(5, 1);
+            sort.add(-3, 2);
+            sort.add(5, 0);
+            long[][] res = drain(sort, 3);
+            assertArrayEquals(new long[]{-3, 2}, res[0]);
+            assertArrayEquals(new long[]{5, 0}, res[1]);
+            assertArrayEquals(new long[]{5, 1}, res[2]);
+        }
+    }
+}
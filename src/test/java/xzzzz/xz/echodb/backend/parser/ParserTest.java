@@ -0,0 +1,28 @@
+package xzzzz.xz.echodb.backend.parser;
+
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.parser.statement.Insert;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParserTest {
+
+    @Test
+    public void testInsertMultipleRows() throws Exception {
+        Insert insert = (Insert) Parser.Parse("insert into t values 1 'a', 2 'b'".getBytes());
+        assertEquals("t", insert.tableName);
+        assertEquals(2, insert.values.length);
+        assertArrayEquals(new String[]{"1", "a"}, insert.values[0]);
+        assertArrayEquals(new String[]{"2", "b"}, insert.values[1]);
+    }
+
+    @Test
+    public void testQuotedCommaIsAValue() throws Exception {
+        // 引号中的逗号和空字符串都是值，只有不带引号的逗号分隔多行
+        Insert insert = (Insert) Parser.Parse("insert into t values 'a' ',', \",\" ''".getBytes());
+        assertEquals(2, insert.values.length);
+        assertArrayEquals(new String[]{"a", ","}, insert.values[0]);
+        assertArrayEquals(new String[]{",", ""}, insert.values[1]);
+    }
+}
@@ -0,0 +1,193 @@
+package xzzzz.xz.echodb.backend.tbm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.DataManager;
+import xzzzz.xz.echodb.backend.server.Executor;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+import xzzzz.xz.echodb.backend.utils.ByteCodec;
+import xzzzz.xz.echodb.backend.vm.VersionManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OverflowTest {
+
+    static final long MEM = 1 << 22;
+
+    private File dir;
+
+    private String path;
+
+    private TransactionManager tm;
+
+    private DataManager dm;
+
+    private VersionManager vm;
+
+    private TableManager tbm;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-overflow").toFile();
+        path = new File(dir, "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.create(path, vm, dm);
+        exec("create table t id int32, name string, age int32 (index id)");
+    }
+
+    @After
+    public void tearDown() {
+        vm.close();
+        dm.close();
+        tm.close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    private String exec(String sql) throws Exception {
+        Executor exe = new Executor(tbm);
+        try {
+            return new String(exe.execute(sql.getBytes()));
+        } finally {
+            exe.close();
+        }
+    }
+
+    /**
+     * 内容各不相同的 n 个字节，块的顺序错了也能发现
+     */
+    private static String text(int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; sb.length() < n; i++) {
+            sb.append(i).append('z');
+        }
+        sb.setLength(n);
+        return sb.toString();
+    }
+
+    /**
+     * 表 t 中 id 行的 name 字段：行内的值是 String，行外的值是 Ref
+     */
+    private Object name(int id) throws Exception {
+        Table tb = Table.loadTable((TableManagerImpl) tbm, ByteCodec.getLong(Booter.open(path).load(), 0));
+        long xid = vm.begin(0);
+        try {
+            Object value = null;
+            for (long uid : tb.fields.get(0).search(id, id)) {  // 索引中还有被更新掉的旧版本
+                byte[] raw = vm.read(xid, uid);
+                if (raw == null)
+                    continue;
+                assertNull(value);
+                value = tb.fields.get(1).parseValue(Arrays.copyOfRange(raw, 4, raw.length)).v;  // 跳过 id
+            }
+            assertNotNull(value);
+            return value;
+        } finally {
+            vm.commit(xid);
+        }
+    }
+
+    /**
+     * 沿链读出所有块的 uid
+     */
+    private List<Long> chunks(Overflow.Ref ref) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        long xid = vm.begin(0);
+        try {
+            for (long uid = ref.firstUid; uid != 0; ) {
+                uids.add(uid);
+                byte[] chunk = vm.read(xid, uid);
+                assertNotNull(chunk);
+                uid = ByteCodec.getLong(chunk, 0);
+            }
+        } finally {
+            vm.commit(xid);
+        }
+        return uids;
+    }
+
+    @Test
+    public void testInlineLimit() throws Exception {
+        String inline = text(Overflow.INLINE_LIMIT);
+        String overflow = text(Overflow.INLINE_LIMIT + 1);
+        exec("insert into t values 1 " + inline + " 1");
+        exec("insert into t values 2 " + overflow + " 2");
+
+        assertEquals(inline, name(1));
+        Overflow.Ref ref = (Overflow.Ref) name(2);
+        assertEquals(Overflow.INLINE_LIMIT + 1, ref.length);
+        assertEquals(1, chunks(ref).size());
+        assertTrue(exec("select name from t where id = 1").contains(inline));
+        assertTrue(exec("select name from t where id = 2").contains(overflow));
+    }
+
+    @Test
+    public void testMultiChunkRoundTrip() throws Exception {
+        String value = text(Overflow.CHUNK_SIZE * 3 + 17);
+        exec("insert into t values 1 " + value + " 1");
+
+        Overflow.Ref ref = (Overflow.Ref) name(1);
+        assertEquals(value.length(), ref.length);
+        assertEquals(4, chunks(ref).size());
+        String res = exec("select name from t where id = 1");
+        assertEquals("[" + value + "]", res.trim());
+    }
+
+    /**
+     * 更新其它字段时新记录沿用原来的 Ref，不复制块，原来的块也不删除
+     */
+    @Test
+    public void testUpdateOtherColumnReusesRef() throws Exception {
+        String value = text(Overflow.CHUNK_SIZE * 2 + 5);
+        exec("insert into t values 1 " + value + " 1");
+        Overflow.Ref before = (Overflow.Ref) name(1);
+        List<Long> chunks = chunks(before);
+
+        exec("update t set age = 2 where id = 1");
+        Overflow.Ref after = (Overflow.Ref) name(1);
+        assertEquals(before.firstUid, after.firstUid);
+        assertEquals(before.length, after.length);
+        assertEquals(chunks, chunks(after));
+        assertEquals("[" + value + ", 2]", exec("select name, age from t where id = 1").trim());
+    }
+
+    /**
+     * 删除记录时删除链上的每一块；把字段更新成短字符串时原来的块也全部删除
+     */
+    @Test
+    public void testDeleteRemovesEveryChunk() throws Exception {
+        exec("insert into t values 1 " + text(Overflow.CHUNK_SIZE * 3) + " 1");
+        exec("insert into t values 2 " + text(Overflow.CHUNK_SIZE * 2 + 1) + " 2");
+        List<Long> deleted = chunks((Overflow.Ref) name(1));
+        List<Long> replaced = chunks((Overflow.Ref) name(2));
+        assertEquals(3, deleted.size());
+        assertEquals(3, replaced.size());
+
+        exec("delete from t where id = 1");
+        exec("update t set name = short where id = 2");
+        assertEquals("short", name(2));
+
+        long xid = vm.begin(0);
+        for (long uid : deleted) {
+            assertNull(vm.read(xid, uid));
+        }
+        for (long uid : replaced) {
+            assertNull(vm.read(xid, uid));
+        }
+        vm.commit(xid);
+    }
+}
@@ -0,0 +1,143 @@
+package xzzzz.xz.echodb.backend.tbm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.dm.DataManager;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCache;
+import xzzzz.xz.echodb.backend.dm.pageCache.PageCacheImpl;
+import xzzzz.xz.echodb.backend.dm.pageIndex.SegmentMap;
+import xzzzz.xz.echodb.backend.server.Executor;
+import xzzzz.xz.echodb.backend.tm.TransactionManager;
+import xzzzz.xz.echodb.backend.vm.VersionManager;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TableTest {
+
+    static final long MEM = 1 << 22;
+
+    private File dir;
+
+    private String path;
+
+    private TransactionManager tm;
+
+    private DataManager dm;
+
+    private VersionManager vm;
+
+    private TableManager tbm;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("echodb-table").toFile();
+        path = new File(dir, "db").getPath();
+        tm = TransactionManager.create(path);
+        dm = DataManager.create(path, MEM, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.create(path, vm, dm);
+    }
+
+    @After
+    public void tearDown() {
+        if (tm != null)
+            close();
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+
+    void close() {
+        vm.close();
+        dm.close();
+        tm.close();
+        tm = null;
+    }
+
+    void reopen() {
+        tm = TransactionManager.open(path);
+        dm = DataManager.open(path, MEM, tm);
+        vm = VersionManager.newVersionManager(tm, dm);
+        tbm = TableManager.open(path, vm, dm);
+    }
+
+    String exec(String sql) throws Exception {
+        Executor exe = new Executor(tbm);
+        try {
+            return new String(exe.execute(sql.getBytes()));
+        } finally {
+            exe.close();
+        }
+    }
+
+    int pageNumber() {
+        return (int) (new File(path + PageCacheImpl.DB_SUFFIX).length() / PageCache.PAGE_SIZE);
+    }
+
+    static String repeat(char c, int n) {
+        char[] cs = new char[n];
+        Arrays.fill(cs, c);
+        return new String(cs);
+    }
+
+    /**
+     * 更新后的记录和它的行外块都插入到表自己的段：更新不产生新的段，新增的页面都属于更新之前已有的段的区
+     */
+    @Test
+    public void testUpdateStaysInTableSegment() throws Exception {
+        exec("create table t id int32, name string, age int32 (index id)");
+        for (int i = 0; i < 100; i++) {  // 索引已经分裂过，B+ 树的段也已经有区
+            exec("insert into t values " + i + " name" + i + " " + i);
+        }
+        close();
+
+        int before = pageNumber();
+        SegmentMap segments = new SegmentMap(path);
+        segments.load(before);
+        Set<Long> owners = new HashSet<>();
+        for (int pgno = 1; pgno <= before; pgno++) {
+            owners.add(segments.ownerOf(pgno));
+        }
+
+        reopen();
+        for (int i = 0; i < 50; i++) {
+            exec("update t set age = " + (100 + i) + " where id = " + i);
+        }
+        String longName = repeat('x', Overflow.INLINE_LIMIT * 4);
+        for (int i = 0; i < 5; i++) {
+            exec("update t set name = " + longName + " where id = " + i);  // 行外的块
+        }
+        for (int i = 0; i < 5; i++) {
+            exec("update t set age = " + i + " where id = " + i);  // 沿用行外的块
+        }
+        String res = exec("select * from t where id = 3");
+        assertTrue(res.contains(longName));
+        close();
+
+        int after = pageNumber();
+        segments = new SegmentMap(path);
+        segments.load(after);
+        for (int pgno = 1; pgno <= after; pgno++) {
+            long owner = segments.ownerOf(pgno);
+            assertTrue("page " + pgno + " in new segment " + owner, owners.contains(owner));
+            if (pgno > before)
+                assertNotEquals("page " + pgno + " in shared segment", SegmentMap.SHARED, owner);
+        }
+
+        reopen();
+        for (int i = 0; i < 50; i++) {
+            res = exec("select age from t where id = " + i);
+            assertEquals("[" + (i < 5 ? i : 100 + i) + "]", res.trim());
+        }
+    }
+}
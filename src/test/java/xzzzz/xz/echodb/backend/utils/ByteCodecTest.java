@@ -0,0 +1,40 @@
+package xzzzz.xz.echodb.backend.utils;
+
+import org.junit.Test;
+import xzzzz.xz.echodb.backend.common.SubArray;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ByteCodecTest {
+
+    @Test
+    public void testSameFormatAsParser() {
+        byte[] buf = new byte[32];
+        // 非对齐的偏移
+        ByteCodec.putLong(buf, 3, 0x1122334455667788L);
+        ByteCodec.putInt(buf, 13, -7);
+        ByteCodec.putShort(buf, 19, (short) 0x8003);
+        assertArrayEquals(Parser.long2Byte(0x1122334455667788L), Arrays.copyOfRange(buf, 3, 11));
+        assertArrayEquals(Parser.int2Byte(-7), Arrays.copyOfRange(buf, 13, 17));
+        assertArrayEquals(Parser.short2Byte((short) 0x8003), Arrays.copyOfRange(buf, 19, 21));
+
+        assertEquals(Parser.parseLong(Arrays.copyOfRange(buf, 3, 11)), ByteCodec.getLong(buf, 3));
+        assertEquals(-7, ByteCodec.getInt(buf, 13));
+        assertEquals((short) 0x8003, ByteCodec.getShort(buf, 19));
+        assertEquals(0x8003, ByteCodec.getUnsignedShort(buf, 19));
+    }
+
+    @Test
+    public void testSubArrayOffsets() {
+        byte[] buf = new byte[24];
+        SubArray sa = new SubArray(buf, 5, 24);
+        ByteCodec.putLong(sa, 8, Long.MIN_VALUE);
+        ByteCodec.putShort(sa, 0, (short) 42);
+        assertEquals(Long.MIN_VALUE, ByteCodec.getLong(buf, 13));
+        assertEquals(Long.MIN_VALUE, ByteCodec.getLong(sa, 8));
+        assertEquals(42, ByteCodec.getShort(sa, 0));
+    }
+}